@@ -12,7 +12,8 @@
  * =========================================================
  */
 
-#define SAMPLE_RATE        32000
+// 输出流打开之前的采样率，之后以流的实际采样率为准
+#define DEFAULT_SAMPLE_RATE 32000
 #define AUDIO_BLOCK        1024
 #define SPECTRUM_BANDS     128
 #define VISUAL_POINTS      256
@@ -97,9 +98,9 @@ struct Envelope {
 
     Envelope() = default;
 
-    Envelope(float attackMs, float releaseMs) {
-        attack = std::exp(-1.0f / (attackMs * 0.001f * SAMPLE_RATE));
-        release = std::exp(-1.0f / (releaseMs * 0.001f * SAMPLE_RATE));
+    Envelope(float attackMs, float releaseMs, float sampleRate = DEFAULT_SAMPLE_RATE) {
+        attack = std::exp(-1.0f / (attackMs * 0.001f * sampleRate));
+        release = std::exp(-1.0f / (releaseMs * 0.001f * sampleRate));
     }
 
     inline float process(float x) {
@@ -336,6 +337,15 @@ public:
 
     const float *getFrequencies() const { return freqs; }
 
+    int32_t getSampleRate() const { return sampleRate; }
+
+    // 采样率变化后重新计算滤波器系数，并清空历史
+    void setSampleRate(int32_t rate) {
+        sampleRate = rate;
+        initFilters();
+        reset();
+    }
+
     void processBlock(const AudioBlock& blk) {
         float energy[SPECTRUM_BANDS] = {};
 
@@ -379,10 +389,12 @@ private:
     MultiBiquad filters[SPECTRUM_BANDS];
     FrameSmoother smoothers[SPECTRUM_BANDS];
     float freqs[SPECTRUM_BANDS]{};
+    int32_t sampleRate = DEFAULT_SAMPLE_RATE;
 
     void initFilters() {
         float fMin = 50.0f;
-        float fMax = 12000.0f;
+        // 最高频带留在奈奎斯特频率以下
+        float fMax = std::min(12000.0f, 0.45f * sampleRate);
         float octaves = std::log2(fMax / fMin);
         float bandsPerOctave = SPECTRUM_BANDS / octaves;
 
@@ -398,7 +410,7 @@ private:
     }
 
     void makeBandpass(Biquad& bq, float fc, float q) {
-        float w0 = 2.0f * M_PI * fc / SAMPLE_RATE;
+        float w0 = 2.0f * M_PI * fc / sampleRate;
         float alpha = std::sinf(w0) / (2.0f * q);
 
         float b0 = alpha;
@@ -3,45 +3,104 @@
 
 #include <atomic>
 #include <cstddef>
-#include <array>
+#include <memory>
 
-template<typename T, size_t Capacity>
+/*
+ * Single producer / single consumer ring buffer.
+ *
+ * The capacity is chosen at construction and rounded up to a power of two. Head and tail sit on
+ * their own cache lines, kept apart by padding rather than alignas: queues are allocated with
+ * new, which only honours over-aligned types from C++17 on. Each side keeps a cached copy of the
+ * other side's index so that it only touches the shared line when the cached value says the
+ * queue looks full / empty.
+ */
+template<typename T>
 class LockFreeQueue {
-    static_assert((Capacity & (Capacity - 1)) == 0,
-                  "Capacity must be power of 2");
-
 public:
-    LockFreeQueue() : head(0), tail(0) {}
+    explicit LockFreeQueue(size_t minCapacity) : mask(roundUpToPowerOfTwo(minCapacity) - 1),
+                                                 buffer(new T[mask + 1]) {}
+
+    size_t capacity() const {
+        return mask + 1;
+    }
+
+    // Approximate when called while the other side is running
+    size_t size() const {
+        return tail.load(std::memory_order_acquire) - head.load(std::memory_order_acquire);
+    }
+
+    // Producer side
 
     bool push(const T &item) {
-        auto currentTail = tail.load(std::memory_order_relaxed);
-        auto nextTail = (currentTail + 1) & (Capacity - 1);
+        return pushN(&item, 1) == 1;
+    }
 
-        if (nextTail == head.load(std::memory_order_acquire)) {
-            return false;
+    // Pushes as many of items[0, count) as fit, in order, and returns how many that was
+    size_t pushN(const T *items, size_t count) {
+        const size_t currentTail = tail.load(std::memory_order_relaxed);
+        size_t free = capacity() - (currentTail - cachedHead);
+        if (free < count) {
+            cachedHead = head.load(std::memory_order_acquire);
+            free = capacity() - (currentTail - cachedHead);
         }
-
-        buffer[currentTail] = item;
-        tail.store(nextTail, std::memory_order_release);
-        return true;
+        const size_t n = count < free ? count : free;
+        for (size_t i = 0; i < n; i++) {
+            buffer[(currentTail + i) & mask] = items[i];
+        }
+        tail.store(currentTail + n, std::memory_order_release);
+        return n;
     }
 
+    // Consumer side
+
     bool pop(T &item) {
-        auto currentHead = head.load(std::memory_order_relaxed);
-        if (currentHead == tail.load(std::memory_order_acquire)) {
-            return false;
-        }
+        return popN(&item, 1) == 1;
+    }
 
-        item = buffer[currentHead];
-        head.store((currentHead + 1) & (Capacity - 1),
-                   std::memory_order_release);
-        return true;
+    // Pops up to maxCount items into items, returns how many
+    size_t popN(T *items, size_t maxCount) {
+        const size_t currentHead = head.load(std::memory_order_relaxed);
+        size_t available = cachedTail - currentHead;
+        if (available < maxCount) {
+            cachedTail = tail.load(std::memory_order_acquire);
+            available = cachedTail - currentHead;
+        }
+        const size_t n = maxCount < available ? maxCount : available;
+        for (size_t i = 0; i < n; i++) {
+            items[i] = buffer[(currentHead + i) & mask];
+        }
+        head.store(currentHead + n, std::memory_order_release);
+        return n;
     }
 
 private:
-    std::array<T, Capacity> buffer;
-    std::atomic<size_t> head;
-    std::atomic<size_t> tail;
+    static constexpr size_t kCacheLine = 64;
+
+    static size_t roundUpToPowerOfTwo(size_t n) {
+        size_t capacity = 1;
+        while (capacity < n) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    const size_t mask;
+    const std::unique_ptr<T[]> buffer;
+
+    // A whole line of padding between the fields of each side and whatever comes before and
+    // after them, wherever the queue starts
+    char padHead[kCacheLine];
+
+    // Indices run freely and are masked on access, so full and empty need no spare slot
+    std::atomic<size_t> head{0};
+    size_t cachedTail = 0;      // consumer's view of tail
+
+    char padTail[kCacheLine];
+
+    std::atomic<size_t> tail{0};
+    size_t cachedHead = 0;      // producer's view of head
+
+    char padEnd[kCacheLine];
 };
 
 #endif // LOCK_FREE_QUEUE_H
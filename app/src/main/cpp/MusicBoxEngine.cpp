@@ -1,5 +1,5 @@
 #include <memory>
-#include <cstring>
+#include <trace.h>
 #include "MusicBoxEngine.h"
 #include "WaveTableSynthesizerSource.h"
 #include "AudioVisualCalc.h"
@@ -15,12 +15,16 @@
  *
  * @param cpuIds
  */
-MusicBoxEngine::MusicBoxEngine(std::vector<int> cpuIds) {
+MusicBoxEngine::MusicBoxEngine(std::vector<int> cpuIds) : mCpuIds(cpuIds) {
     createCallback(cpuIds);
     start();
     runVisualCalc();
 }
 
+MusicBoxEngine::~MusicBoxEngine() {
+    stopVisualCalc();
+}
+
 void MusicBoxEngine::pause(bool isPause) {
     if (isPause) {
         mStream->pause();
@@ -41,30 +45,100 @@ void MusicBoxEngine::noteOn(uint8_t note) {
     mAudioSource->postNoteOn(note);
 }
 
-void MusicBoxEngine::restart() {
-    LOGD("Restart the playback stream.");
-    start();
-    runVisualCalc();
-    mStream->start();
+bool MusicBoxEngine::loadScore(const uint8_t *score, size_t length, uint32_t ticksPerSecond) {
+    LOGD("Load a score of %d bytes.", static_cast<int>(length));
+    return mAudioSource->loadScore(score, length, ticksPerSecond);
+}
+
+void MusicBoxEngine::playScore() {
+    mAudioSource->playScore();
 }
 
-void MusicBoxEngine::readWaveformData(const float *data) {
-    const WaveformFrame* pBlk;
-    pBlk = waveformProcessor.waveformSnapshot.beginRead();
-    if(pBlk) {
-        memcpy((void *) data, pBlk->waveform, sizeof(pBlk->waveform));
-        waveformProcessor.waveformSnapshot.endRead(pBlk);
+void MusicBoxEngine::stopScore() {
+    mAudioSource->stopScore();
+}
+
+void MusicBoxEngine::seekScore(uint32_t scoreTick) {
+    mAudioSource->seekScore(scoreTick);
+}
+
+void MusicBoxEngine::setTranspose(int32_t semitones) {
+    mAudioSource->setTranspose(semitones);
+}
+
+void MusicBoxEngine::setPolyphony(int32_t voices) {
+    mAudioSource->setPolyphony(voices);
+}
+
+void MusicBoxEngine::setNoteCacheSize(size_t maxBytes) {
+    mAudioSource->setNoteCacheSize(maxBytes);
+}
+
+void MusicBoxEngine::setMultiThreadedRendering(bool enabled) {
+    if (enabled && mCpuIds.size() < 2) {
+        LOGW("Multi-threaded rendering needs at least 2 exclusive cores, got %d",
+             static_cast<int>(mCpuIds.size()));
+        enabled = false;
     }
+    // The workers get the other cores, the callback must not spin on theirs
+    if (enabled)
+        mCallback->setFirstCpuOnly(true);
+    mAudioSource->setMultiThreadedRendering(enabled, mCpuIds);
+    if (!enabled)
+        mCallback->setFirstCpuOnly(false);
+}
 
+EventQueueStats MusicBoxEngine::getEventQueueStats() {
+    return mAudioSource->getEventQueueStats();
 }
 
-void MusicBoxEngine::readSpectrumData(const float *data) {
-    const SpectrumFrame* pBlk;
-    pBlk = spectrumProcessor.spectrumSnapshot.beginRead();
-    if(pBlk) {
-        memcpy((void *) data, pBlk->bands, sizeof(pBlk->bands));
-        spectrumProcessor.spectrumSnapshot.endRead(pBlk);
+CallbackStats MusicBoxEngine::getCallbackStats() {
+    CallbackStats stats = mTelemetry.snapshot();
+    if (mStream) {
+        auto xRuns = mStream->getXRunCount();
+        if (xRuns)
+            stats.xRunCount = xRuns.value();
     }
+    return stats;
+}
+
+void MusicBoxEngine::resetCallbackStats() {
+    mTelemetry.reset();
+}
+
+int64_t MusicBoxEngine::getFramePosition() {
+    return mAudioSource->getFramePosition();
+}
+
+int32_t MusicBoxEngine::getSampleRate() {
+    return mAudioSource->getSampleRate();
+}
+
+int32_t MusicBoxEngine::getFramesPerBurst() {
+    return mStream ? mStream->getFramesPerBurst() : 0;
+}
+
+int32_t MusicBoxEngine::getBufferSizeInFrames() {
+    return mStream ? mStream->getBufferSizeInFrames() : 0;
+}
+
+void MusicBoxEngine::setBufferSizeInFrames(int32_t frames) {
+    mCallback->getBufferSizeTuner().setStartSize(frames);
+}
+
+PlaybackClock::State *MusicBoxEngine::getPlaybackClockState() {
+    return mPlaybackClock.getState();
+}
+
+VisualDataBuffer::State *MusicBoxEngine::getVisualDataState() {
+    return mVisualData.getState();
+}
+
+void MusicBoxEngine::restart() {
+    LOGD("Restart the playback stream.");
+    start();
+    runVisualCalc();
+    mStream->start();
 }
 
 // Create the playback stream
@@ -74,8 +148,10 @@ oboe::Result MusicBoxEngine::createPlaybackStream() {
             ->setPerformanceMode(oboe::PerformanceMode::LowLatency)
             ->setFormat(oboe::AudioFormat::Float)
             ->setCallback(mCallback.get())
-            ->setSampleRate(32000)
-            ->setFramesPerCallback(512)
+            // No sample rate: the device's native one keeps the stream off the resampler and
+            // eligible for the MMAP path. The synthesizer follows whatever rate the stream has.
+            // No frames per callback either, so callbacks come once per native burst; the
+            // buffer size is left to the callback's BufferSizeTuner
             ->openManagedStream(mStream);
 }
 
@@ -89,18 +165,25 @@ void MusicBoxEngine::createCallback(std::vector<int> cpuIds) {
     // core migrations
     mCallback->setCpuIds(cpuIds);
     mCallback->setThreadAffinityEnabled(true);
+    mCallback->setTelemetry(&mTelemetry);
+    mCallback->setPlaybackClock(&mPlaybackClock);
 }
 
 void MusicBoxEngine::runVisualCalc()
 {
+    // Already running, e.g. restart() after a disconnect
+    if (visualCalcWorker.joinable())
+        return;
     visualCalcRunning.store(true);
     visualCalcWorker = std::thread(&MusicBoxEngine::visualCalcThread, this);
-    visualCalcWorker.detach();
 }
 
 void MusicBoxEngine::stopVisualCalc()
 {
     visualCalcRunning.store(false);
+    // At most one interval
+    if (visualCalcWorker.joinable())
+        visualCalcWorker.join();
 }
 
 void MusicBoxEngine::start() {
@@ -108,8 +191,17 @@ void MusicBoxEngine::start() {
     if (result == Result::OK) {
         LOGD("Start the playback stream.");
         // Create our synthesizer audio source using the properties of the stream
+        auto previousSource = mAudioSource;
         mAudioSource = std::make_shared<WaveTableSynthesizerSource>(mStream->getSampleRate(),
                                                                     mStream->getChannelCount());
+        mAudioSource->setTelemetry(&mTelemetry);
+        mAudioSource->setPlaybackClock(&mPlaybackClock);
+        // The visual thread may be analysing a block, it picks the rate up in between
+        visualSampleRate.store(mStream->getSampleRate(), std::memory_order_relaxed);
+        // Carry on with the loaded score and the frame clock when the stream is reopened
+        // after a disconnect
+        if (previousSource)
+            mAudioSource->adoptPlayback(*previousSource);
         mCallback->setSource(std::dynamic_pointer_cast<IRenderableAudio>(mAudioSource));
     } else {
         LOGE("Failed to create the playback stream. Error: %s", convertToText(result));
@@ -117,6 +209,20 @@ void MusicBoxEngine::start() {
 
 }
 
+// Copy the processors' latest frames to the buffer shared with Java
+void MusicBoxEngine::publishVisualData() {
+    const WaveformFrame *waveform = waveformProcessor.waveformSnapshot.beginRead();
+    const SpectrumFrame *spectrum = spectrumProcessor.spectrumSnapshot.beginRead();
+    const VuLevel *vuLevel = vuMeterProcessor.snapshot.beginRead();
+    mVisualData.publish(waveform, spectrum, vuLevel);
+    if (waveform)
+        waveformProcessor.waveformSnapshot.endRead(waveform);
+    if (spectrum)
+        spectrumProcessor.spectrumSnapshot.endRead(spectrum);
+    if (vuLevel)
+        vuMeterProcessor.snapshot.endRead(vuLevel);
+}
+
 void MusicBoxEngine::visualCalcThread() {
     using clock = std::chrono::steady_clock;
     constexpr auto interval = std::chrono::milliseconds(EXTRACT_INTERVAL_MS);
@@ -126,13 +232,28 @@ void MusicBoxEngine::visualCalcThread() {
     while (visualCalcRunning.load()) {
         nextTick += interval;
 
+        const int32_t sampleRate = visualSampleRate.load(std::memory_order_relaxed);
+        if (sampleRate > 0 && spectrumProcessor.getSampleRate() != sampleRate)
+            spectrumProcessor.setSampleRate(sampleRate);
+
         // 非阻塞：永远读“最新快照”
         pBlk=mAudioSource->visualInputSnapshot.beginRead();
         if (pBlk!= nullptr) {
-            waveformProcessor.processBlock(*pBlk);
-            vuMeterProcessor.processBlock(*pBlk);
-            spectrumProcessor.processBlock(*pBlk);
+            ScopedTrace trace("visualCalc");
+            {
+                ScopedTrace processorTrace("WaveformProcessor");
+                waveformProcessor.processBlock(*pBlk);
+            }
+            {
+                ScopedTrace processorTrace("VuMeterProcessor");
+                vuMeterProcessor.processBlock(*pBlk);
+            }
+            {
+                ScopedTrace processorTrace("SpectrumProcessor");
+                spectrumProcessor.processBlock(*pBlk);
+            }
             mAudioSource->visualInputSnapshot.endRead(pBlk);
+            publishVisualData();
         }
 
         std::this_thread::sleep_until(nextTick);
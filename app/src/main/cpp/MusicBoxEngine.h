@@ -8,6 +8,7 @@
 #include <TappableAudioSource.h>
 #include <IRestartable.h>
 #include "WaveTableSynthesizerSource.h"
+#include "VisualDataBuffer.h"
 
 #include <thread>
 #include <atomic>
@@ -20,7 +21,7 @@ class MusicBoxEngine : public IRestartable
 public:
     MusicBoxEngine(std::vector<int> cpuIds);
 
-    virtual ~MusicBoxEngine() = default;
+    virtual ~MusicBoxEngine();
 
     void resetSynthesizer();
 
@@ -28,23 +29,69 @@ public:
 
     void pause(bool isPause);
 
+    bool loadScore(const uint8_t *score, size_t length, uint32_t ticksPerSecond);
+
+    void playScore();
+
+    void stopScore();
+
+    void seekScore(uint32_t scoreTick);
+
+    void setTranspose(int32_t semitones);
+
+    void setPolyphony(int32_t voices);
+
+    void setNoteCacheSize(size_t maxBytes);
+
+    void setMultiThreadedRendering(bool enabled);
+
+    EventQueueStats getEventQueueStats();
+
+    CallbackStats getCallbackStats();
+
+    void resetCallbackStats();
+
+    int64_t getFramePosition();
+
+    int32_t getSampleRate();
+
+    int32_t getFramesPerBurst();
+
+    int32_t getBufferSizeInFrames();
+
+    // Buffer size the tuner carries on from, rounded up to whole bursts
+    void setBufferSizeInFrames(int32_t frames);
+
+    // Playback position heard, updated by every callback. Lives as long as the engine
+    PlaybackClock::State *getPlaybackClockState();
+
+    // Latest waveform, spectrum and VU levels. Lives as long as the engine
+    VisualDataBuffer::State *getVisualDataState();
+
     // from IRestartable
     virtual void restart() override;
 
-    void readWaveformData(const float *data);
-    void readSpectrumData(const float *data);
-
     FrameSpectrumProcessor4th spectrumProcessor;
     WaveformProcessor waveformProcessor;
     VuMeterProcessor vuMeterProcessor;
 
 private:
+    // Declared first so they outlive the stream, the callback and every audio source; they span
+    // stream restarts
+    CallbackTelemetry mTelemetry;
+    PlaybackClock mPlaybackClock;
     oboe::ManagedStream mStream;
     std::shared_ptr<WaveTableSynthesizerSource> mAudioSource;
     std::unique_ptr<DefaultAudioStreamCallback> mCallback;
+    // Cores reserved for the app, for the audio callback and the voice render workers
+    std::vector<int> mCpuIds;
 
     std::atomic<bool> visualCalcRunning{false};
+    // Of the current stream, for the spectrum; 0 until one is open
+    std::atomic<int32_t> visualSampleRate{0};
+    // Joined when stopped, so there is never more than one writer of mVisualData
     std::thread visualCalcWorker;
+    VisualDataBuffer mVisualData;
 
 
     oboe::Result createPlaybackStream();
@@ -55,6 +102,7 @@ private:
     void runVisualCalc();
     void stopVisualCalc();
     void visualCalcThread();
+    void publishVisualData();
 };
 
 #endif //MUSICBOX_ENGINE_H
@@ -0,0 +1,208 @@
+#ifndef NOTE_CACHE_H
+#define NOTE_CACHE_H
+
+#include <SynthCore.h>
+#include <trace.h>
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <climits>
+#include <condition_variable>
+#include <cstdint>
+#include <memory>
+#include <mutex>
+#include <thread>
+
+/*
+ * Whole notes rendered ahead of time for the synthesizer to mix in, see RenderedNote in
+ * SynthCore.h. Every note of the instrument decays the same way, so each pitch only has to be
+ * rendered once. Pitches are rendered on a worker thread when asked for, by the score or by a
+ * note the audio thread did not find, and dropped least recently used first once the cache goes
+ * over its size limit.
+ *
+ * The audio thread only calls lookup(). A note is only freed once it has not been started for
+ * longer than it lasts; lookup() and the worker agree on that through lastUsed and state, both
+ * sequentially consistent, so one of them always sees the other.
+ */
+class NoteCache {
+public:
+    // clock is the output frame position, stepSamples the player's envelope step interval
+    NoteCache(uint32_t sampleRate, uint32_t stepSamples, const std::atomic<int64_t> &clock)
+            : sampleRate(sampleRate), stepSamples(stepSamples), clock(clock) {}
+
+    ~NoteCache() {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            running = false;
+        }
+        wakeUp.notify_all();
+        if (worker.joinable())
+            worker.join();
+    }
+
+    // Bytes of rendered samples to keep at most, 0 turns the cache off. Notes already rendered
+    // are dropped in the background once nothing can be playing them any more.
+    void setMaxBytes(size_t bytes) {
+        std::lock_guard<std::mutex> lock(mutex);
+        maxBytes.store(bytes, std::memory_order_relaxed);
+        if (bytes > 0 && !worker.joinable()) {
+            running = true;
+            worker = std::thread(&NoteCache::run, this);
+        }
+        wakeUp.notify_all();
+    }
+
+    size_t getMaxBytes() const {
+        return maxBytes.load(std::memory_order_relaxed);
+    }
+
+    bool isEnabled() const {
+        return getMaxBytes() > 0;
+    }
+
+    // Render note soon, from any thread but the audio thread
+    void request(uint8_t note) {
+        entries[note & 0x7F].requested.store(true, std::memory_order_relaxed);
+        wakeUp.notify_all();
+    }
+
+    // RenderedNoteLookup for SynthSetRenderedNoteLookup(), context is the NoteCache
+    static const RenderedNote *lookup(void *context, uint8_t note) {
+        auto *cache = static_cast<NoteCache *>(context);
+        Entry &entry = cache->entries[note & 0x7F];
+        if (entry.state.load(std::memory_order_acquire) != Ready) {
+            // Picked up by the worker's next round
+            if (cache->isEnabled())
+                entry.requested.store(true, std::memory_order_relaxed);
+            return nullptr;
+        }
+        entry.lastUsed.store(cache->clock.load(std::memory_order_relaxed));
+        if (entry.state.load() != Ready)
+            return nullptr;
+        return &entry.note;
+    }
+
+private:
+    enum State : int {
+        Empty,
+        Ready,
+        Evicting
+    };
+
+    struct Entry {
+        std::atomic<int> state{Empty};
+        std::atomic<bool> requested{false};
+        std::atomic<int64_t> lastUsed{INT64_MIN / 2};
+        RenderedNote note{};
+        std::unique_ptr<int16_t[]> samples;
+    };
+
+    // Requests from the audio thread do not wake the worker, it looks for them this often
+    static constexpr auto kPollInterval = std::chrono::milliseconds(20);
+
+    void run() {
+        // wait_for() takes the interval by reference, a copy keeps C++14 from needing a
+        // definition of the static member
+        const auto pollInterval = kPollInterval;
+        std::unique_lock<std::mutex> lock(mutex);
+        while (running) {
+            lock.unlock();
+            renderRequested();
+            evictOverLimit(getMaxBytes());
+            lock.lock();
+            wakeUp.wait_for(lock, pollInterval);
+        }
+    }
+
+    void renderRequested() {
+        for (uint32_t note = 0; note < 128; note++) {
+            Entry &entry = entries[note];
+            if (!isEnabled() || !entry.requested.load(std::memory_order_relaxed))
+                continue;
+            if (entry.state.load(std::memory_order_acquire) != Empty) {
+                entry.requested.store(false, std::memory_order_relaxed);
+                continue;
+            }
+
+            SynthInit(&scratch);
+            SynthSetSampleRate(&scratch, sampleRate);
+            const uint32_t capacity = SynthRenderedNoteMaxLength(&scratch, note, stepSamples);
+            const size_t bytes = capacity * sizeof(int16_t);
+            if (bytes > getMaxBytes() / 2) {
+                // Would crowd out everything else, keep synthesizing this one
+                entry.requested.store(false, std::memory_order_relaxed);
+                continue;
+            }
+            // Stays requested if there is no room yet; notes still in use may free some later
+            if (!evictOverLimit(getMaxBytes() - bytes))
+                continue;
+            entry.requested.store(false, std::memory_order_relaxed);
+
+            ScopedTrace trace("NoteCache render");
+            std::unique_ptr<int16_t[]> buffer(new int16_t[capacity]);
+            uint32_t attackSamples;
+            const uint32_t length = SynthRenderNote(&scratch, static_cast<uint8_t>(note),
+                                                    stepSamples, buffer.get(), capacity,
+                                                    &attackSamples);
+            entry.samples.reset(new int16_t[length]);
+            std::copy(buffer.get(), buffer.get() + length, entry.samples.get());
+            entry.note = RenderedNote{entry.samples.get(), length, attackSamples, stepSamples};
+            usedBytes += length * sizeof(int16_t);
+            entry.state.store(Ready, std::memory_order_release);
+        }
+    }
+
+    // Drops least recently used notes until at most limit bytes are left, passing over the ones
+    // that may still be playing. Returns false if the rest cannot free enough.
+    bool evictOverLimit(size_t limit) {
+        if (usedBytes <= limit)
+            return true;
+        Entry *ready[128];
+        int count = 0;
+        for (Entry &entry : entries) {
+            if (entry.state.load(std::memory_order_relaxed) == Ready)
+                ready[count++] = &entry;
+        }
+        std::sort(ready, ready + count, [](const Entry *a, const Entry *b) {
+            return a->lastUsed.load(std::memory_order_relaxed) <
+                   b->lastUsed.load(std::memory_order_relaxed);
+        });
+        for (int i = 0; i < count && usedBytes > limit; i++)
+            evict(*ready[i]);
+        return usedBytes <= limit;
+    }
+
+    bool evict(Entry &entry) {
+        entry.state.store(Evicting);
+        // A voice started at lastUsed lasts the note's length, plus the buffer it started in
+        // and a steal fade; half a second covers both
+        const int64_t lastPlaying = entry.lastUsed.load() + entry.note.length + sampleRate / 2;
+        if (clock.load(std::memory_order_acquire) <= lastPlaying) {
+            entry.state.store(Ready, std::memory_order_release);
+            return false;
+        }
+        usedBytes -= entry.note.length * sizeof(int16_t);
+        entry.samples.reset();
+        entry.note = RenderedNote{};
+        entry.state.store(Empty, std::memory_order_release);
+        return true;
+    }
+
+    const uint32_t sampleRate;
+    const uint32_t stepSamples;
+    const std::atomic<int64_t> &clock;
+    std::atomic<size_t> maxBytes{0};
+    Entry entries[128];
+
+    // Worker thread only
+    Synthesizer scratch;
+    size_t usedBytes = 0;
+
+    std::mutex mutex;
+    std::condition_variable wakeUp;
+    bool running = false;
+    std::thread worker;
+};
+
+#endif // NOTE_CACHE_H
@@ -0,0 +1,208 @@
+/*
+ * Host test of WaveTableSynthesizerSource, built by WaveTableSynthesizer/CMakeLists.txt next to
+ * AlgorithmTest. It is not part of the Android library.
+ */
+#include <atomic>
+#include <cmath>
+#include <cstdio>
+#include <thread>
+#include <vector>
+#include "WaveTableSynthesizerSource.h"
+
+static const int kSampleRate = 48000;
+static const int kFramesPerBuffer = 192;
+static const int kBuffers = 4000;
+// Written past the end of every buffer, must come back untouched
+static const float kGuard = 12345.0f;
+
+static int errors = 0;
+
+// Renders one buffer into out[0, kFramesPerBuffer) and checks it stayed there
+static void RenderChecked(WaveTableSynthesizerSource &source, std::vector<float> &out,
+                          const char *test) {
+    const int64_t before = source.getFramePosition();
+    for (size_t k = kFramesPerBuffer; k < out.size(); k++)
+        out[k] = kGuard;
+    source.renderAudio(out.data(), kFramesPerBuffer);
+    for (size_t k = kFramesPerBuffer; k < out.size(); k++) {
+        if (out[k] != kGuard) {
+            printf("%s: guard sample %zu overwritten.\n", test, k);
+            errors++;
+            break;
+        }
+    }
+    for (int k = 0; k < kFramesPerBuffer; k++) {
+        if (!std::isfinite(out[k])) {
+            printf("%s: sample %d is not finite.\n", test, k);
+            errors++;
+            break;
+        }
+    }
+    if (source.getFramePosition() != before + kFramesPerBuffer) {
+        printf("%s: frame position %lld, expected %lld.\n", test,
+               (long long) source.getFramePosition(), (long long) (before + kFramesPerBuffer));
+        errors++;
+    }
+}
+
+// Events posted between buffers, as many as there is room for
+static void TestPostedEvents(void) {
+    WaveTableSynthesizerSource source(kSampleRate, 1);
+    std::vector<float> out(kFramesPerBuffer + 64);
+    const int errorsBefore = errors;
+    for (int b = 0; b < 100; b++) {
+        for (int k = 0; k <= b; k++)
+            source.postNoteOn(static_cast<uint8_t>(48 + k % 36));
+        RenderChecked(source, out, "Posted events");
+    }
+    if (errors == errorsBefore)
+        printf("Posted events passed the test.\n");
+}
+
+// Events posted past the queue's room are counted, not lost silently
+static void TestQueueOverflow(void) {
+    WaveTableSynthesizerSource source(kSampleRate, 1);
+    std::vector<float> out(kFramesPerBuffer + 64);
+    const int errorsBefore = errors;
+    const int64_t capacity = source.getEventQueueStats().capacity;
+    for (int64_t k = 0; k < capacity + 10; k++)
+        source.postNoteOn(static_cast<uint8_t>(48 + k % 36));
+    EventQueueStats stats = source.getEventQueueStats();
+    if (stats.highWaterMark != capacity || stats.droppedEvents != 10) {
+        printf("Queue overflow: high-water %lld, dropped %lld, expected %lld and 10.\n",
+               (long long) stats.highWaterMark, (long long) stats.droppedEvents,
+               (long long) capacity);
+        errors++;
+    }
+    // Drained by the next buffer, there is room again
+    RenderChecked(source, out, "Queue overflow");
+    source.postNoteOn(60);
+    if (source.getEventQueueStats().droppedEvents != 10) {
+        printf("Queue overflow: event dropped after the queue was drained.\n");
+        errors++;
+    }
+    if (errors == errorsBefore)
+        printf("Queue overflow passed the test.\n");
+}
+
+// Every sample of the buffer is 0
+static bool IsSilent(const std::vector<float> &out) {
+    for (int k = 0; k < kFramesPerBuffer; k++) {
+        if (out[k] != 0.0f)
+            return false;
+    }
+    return true;
+}
+
+// The score plays from the buffer after playScore(), and a stop silences nothing by itself but
+// keeps new notes from starting
+static void TestScoreControl(void) {
+    // C4 at once, E4 a second later, then the end
+    static const uint8_t score[] = {0, 60 | 0x80, 0xFF, 0xFF, 0xFF, 235, 64 | 0x80, 0, 0xFF};
+    WaveTableSynthesizerSource source(kSampleRate, 1);
+    std::vector<float> out(kFramesPerBuffer + 64);
+    const int errorsBefore = errors;
+    if (!source.loadScore(score, sizeof(score), 1000)) {
+        printf("Score control: score refused.\n");
+        errors++;
+    }
+    RenderChecked(source, out, "Score control");
+    if (!IsSilent(out)) {
+        printf("Score control: the score played before playScore().\n");
+        errors++;
+    }
+    source.playScore();
+    RenderChecked(source, out, "Score control");
+    if (IsSilent(out)) {
+        printf("Score control: the score did not start with playScore().\n");
+        errors++;
+    }
+    source.stopScore();
+    source.resetSynthesizer();
+    for (int b = 0; b < kSampleRate / kFramesPerBuffer * 2; b++) {
+        RenderChecked(source, out, "Score control");
+        if (!IsSilent(out)) {
+            printf("Score control: notes played after stopScore(), buffer %d.\n", b);
+            errors++;
+            break;
+        }
+    }
+    if (errors == errorsBefore)
+        printf("Score control passed the test.\n");
+}
+
+// Another thread loads, plays, seeks and stops scores and transposes while buffers render. The
+// audio thread never waits for it, and no score is freed while it plays
+static void TestScoreControlWhileRendering(void) {
+    static const uint8_t score[] = {0, 48, 55, 60 | 0x80, 100, 64 | 0x80, 0xFF, 20, 67 | 0x80,
+                                    0, 0xFF};
+    WaveTableSynthesizerSource source(kSampleRate, 1);
+    source.setNoteCacheSize(1 << 20);
+    std::vector<float> out(kFramesPerBuffer + 64);
+    std::atomic<bool> running{true};
+    std::thread control([&] {
+        uint32_t n = 0;
+        while (running.load(std::memory_order_relaxed)) {
+            switch (n % 5) {
+                case 0:
+                    source.loadScore(score, sizeof(score), 1000 + n % 7);
+                    break;
+                case 1:
+                    source.playScore();
+                    break;
+                case 2:
+                    source.seekScore(n % 500);
+                    break;
+                case 3:
+                    source.setTranspose(static_cast<int32_t>(n % 25) - 12);
+                    break;
+                default:
+                    if (n % 3 == 0)
+                        source.stopScore();
+                    break;
+            }
+            n++;
+        }
+    });
+    const int errorsBefore = errors;
+    for (int b = 0; b < kBuffers && errors == errorsBefore; b++)
+        RenderChecked(source, out, "Score control while rendering");
+    running.store(false);
+    control.join();
+    if (errors == errorsBefore)
+        printf("Score control while rendering passed the test (%d buffers).\n", kBuffers);
+}
+
+// A producer posts while buffers are being rendered, so events turn up between the audio
+// thread's looks at the queue
+static void TestEventsWhileRendering(void) {
+    WaveTableSynthesizerSource source(kSampleRate, 1);
+    std::vector<float> out(kFramesPerBuffer + 64);
+    std::atomic<bool> running{true};
+    std::thread producer([&] {
+        uint32_t n = 0;
+        while (running.load(std::memory_order_relaxed)) {
+            for (int k = 0; k < 8; k++)
+                source.postNoteOn(static_cast<uint8_t>(40 + (n + k) % 40));
+            n++;
+        }
+    });
+    const int errorsBefore = errors;
+    for (int b = 0; b < kBuffers && errors == errorsBefore; b++)
+        RenderChecked(source, out, "Events while rendering");
+    running.store(false);
+    producer.join();
+    if (errors == errorsBefore)
+        printf("Events while rendering passed the test (%d buffers).\n", kBuffers);
+}
+
+int main(void) {
+    TestPostedEvents();
+    TestQueueOverflow();
+    TestScoreControl();
+    TestScoreControlWhileRendering();
+    TestEventsWhileRendering();
+    if (errors != 0)
+        printf("%d error(s) found in SynthSourceTest.\n", errors);
+    return errors != 0;
+}
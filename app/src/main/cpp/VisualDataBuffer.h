@@ -0,0 +1,63 @@
+#ifndef VISUAL_DATA_BUFFER_H
+#define VISUAL_DATA_BUFFER_H
+
+#include <atomic>
+#include <cstdint>
+#include "AudioVisualCalc.h"
+
+/*
+ * Latest waveform, spectrum and VU levels of the visual analysis, published for the UI to read
+ * from a direct buffer, see AudioVisualData.java. The buffer is handed out once when the engine
+ * is created, so drawing a frame takes no JNI call and no allocation.
+ *
+ * The visual analysis thread is the only writer. It publishes under a sequence lock: readers
+ * retry while the sequence is odd or has changed under them.
+ */
+class VisualDataBuffer {
+public:
+    // Shared with Java, see AudioVisualData.java for the offsets. Native byte order
+    struct State {
+        // Odd while being written
+        std::atomic<int64_t> sequence{0};
+        std::atomic<float> waveform[VISUAL_POINTS]{};
+        // dBFS per band
+        std::atomic<float> spectrum[SPECTRUM_BANDS]{};
+        // dBFS
+        std::atomic<float> rmsDb{-60.0f};
+        std::atomic<float> peakDb{-60.0f};
+        std::atomic<float> peakHoldDb{-60.0f};
+    };
+
+    static_assert(sizeof(std::atomic<float>) == sizeof(float), "State is read as floats");
+
+    State *getState() {
+        return &mState;
+    }
+
+    // Visual analysis thread. A null frame leaves what was published of it before
+    void publish(const WaveformFrame *waveform, const SpectrumFrame *spectrum,
+                 const VuLevel *vuLevel) {
+        const int64_t sequence = mState.sequence.load(std::memory_order_relaxed);
+        mState.sequence.store(sequence + 1, std::memory_order_relaxed);
+        std::atomic_thread_fence(std::memory_order_release);
+        if (waveform) {
+            for (int i = 0; i < VISUAL_POINTS; i++)
+                mState.waveform[i].store(waveform->waveform[i], std::memory_order_relaxed);
+        }
+        if (spectrum) {
+            for (int i = 0; i < SPECTRUM_BANDS; i++)
+                mState.spectrum[i].store(spectrum->bands[i], std::memory_order_relaxed);
+        }
+        if (vuLevel) {
+            mState.rmsDb.store(vuLevel->rmsDb, std::memory_order_relaxed);
+            mState.peakDb.store(vuLevel->peakDb, std::memory_order_relaxed);
+            mState.peakHoldDb.store(vuLevel->peakHoldDb, std::memory_order_relaxed);
+        }
+        mState.sequence.store(sequence + 2, std::memory_order_release);
+    }
+
+private:
+    State mState;
+};
+
+#endif // VISUAL_DATA_BUFFER_H
@@ -0,0 +1,299 @@
+#ifndef VOICE_RENDER_POOL_H
+#define VOICE_RENDER_POOL_H
+
+#include <SynthCore.h>
+#include <logging_macros.h>
+#include <trace.h>
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <condition_variable>
+#include <cstdint>
+#include <cstring>
+#include <memory>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+#include <sched.h>
+#include <unistd.h>
+
+/*
+ * Splits the synthesized voices of each block between the audio thread and a few worker
+ * threads, each pinned to one of the CPU cores reserved for the app (see getExclusiveCores() in
+ * MusicBoxEngine.java). Installed with SynthSetVoiceRenderer().
+ *
+ * A block is cut into parts, one range of voices each. The audio thread renders part 0 straight
+ * into the output while the workers claim the others and render them into buffers of their own;
+ * the audio thread claims whatever is left too, then spins until every claimed part is done and
+ * adds the buffers in. A worker that is late, descheduled or asleep therefore never holds up
+ * the block, it just finds nothing left to claim. Workers spin while a buffer is being rendered
+ * and sleep in between.
+ *
+ * The audio thread has to stay off the workers' cores (see
+ * DefaultAudioStreamCallback::setFirstCpuOnly()): a SCHED_FIFO thread spinning on a worker's
+ * core would never let it finish the part it claimed. In case it does not, the spin is bounded;
+ * after that the audio thread sleeps in short steps until the part is done, renders the rest of
+ * the buffer alone and, should it happen again, stops splitting altogether.
+ *
+ * Threads only pay off with many voices sounding, so the audio thread reports how long each
+ * buffer took and the voices are only split while one thread would use up too much of the
+ * buffer.
+ */
+class VoiceRenderPool {
+public:
+    ~VoiceRenderPool() {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            running.store(false, std::memory_order_relaxed);
+        }
+        wakeUp.notify_all();
+        for (std::thread &worker : workers) {
+            worker.join();
+        }
+    }
+
+    // Lets the audio thread split the voices from now on, or not. The workers are started the
+    // first time, one for each of cpuIds but the first, which is left to the audio thread. With
+    // fewer than two cores there is nobody to split with and every voice stays on the audio
+    // thread.
+    void setEnabled(bool enable, const std::vector<int> &cpuIds) {
+        std::lock_guard<std::mutex> lock(mutex);
+        if (enable && workers.empty() && cpuIds.size() >= 2) {
+            coreIds = cpuIds;
+            running.store(true, std::memory_order_relaxed);
+            const size_t count = std::min(cpuIds.size() - 1, kMaxWorkers);
+            for (size_t i = 0; i < count; i++) {
+                workers.emplace_back(&VoiceRenderPool::run, this, cpuIds[i + 1]);
+            }
+            workerCount.store(count, std::memory_order_relaxed);
+            LOGD("Voice render pool: %d worker(s)", static_cast<int>(count));
+        }
+        enabled.store(enable && !workers.empty(), std::memory_order_release);
+    }
+
+    bool isEnabled() const {
+        return enabled.load(std::memory_order_acquire);
+    }
+
+    std::vector<int> getCpuIds() {
+        std::lock_guard<std::mutex> lock(mutex);
+        return coreIds;
+    }
+
+    // Audio thread, before rendering a buffer. Returns whether to split its voices, i.e. whether
+    // to install render() as the voice renderer.
+    bool beginBuffer() {
+        stalled = false;
+        if (!isEnabled() || stallCount >= kMaxStalls) {
+            splitting = false;
+            return false;
+        }
+        if (splitting) {
+            awake.store(true, std::memory_order_relaxed);
+            // A futex wake, it does not block. A wake-up that slips past a worker going to
+            // sleep only costs that worker's share until its timeout
+            if (parked.load(std::memory_order_relaxed) > 0)
+                wakeUp.notify_all();
+        }
+        return splitting;
+    }
+
+    // Audio thread, after rendering a buffer of bufferNanos in renderNanos
+    void endBuffer(int64_t renderNanos, int64_t bufferNanos) {
+        awake.store(false, std::memory_order_relaxed);
+        if (bufferNanos <= 0)
+            return;
+        const float load = static_cast<float>(renderNanos) / static_cast<float>(bufferNanos);
+        averageLoad += (load - averageLoad) * kLoadSmoothing;
+        // Scaling the average by the threads keeps it comparable across the switch. It
+        // overestimates the one-thread load a little, which only keeps the voices split longer
+        const float threads = static_cast<float>(workerCount.load(std::memory_order_relaxed) + 1);
+        if (!splitting && averageLoad > kSplitLoad) {
+            splitting = true;
+            averageLoad /= threads;
+        } else if (splitting && averageLoad * threads < kSplitLoad / 2) {
+            splitting = false;
+            averageLoad *= threads;
+        }
+    }
+
+    // SynthVoiceRenderer, context is the VoiceRenderPool
+    static void render(void *context, Synthesizer *synth, int32_t *out, uint32_t frames) {
+        auto *pool = static_cast<VoiceRenderPool *>(context);
+        const uint32_t count = synth->activeCount;
+        const auto parts = static_cast<uint32_t>(
+                std::min<size_t>(pool->workerCount.load(std::memory_order_relaxed) + 1,
+                                 count / kMinVoicesPerPart));
+        // Handing over a few samples or voices costs more than rendering them
+        if (parts < 2 || frames < kMinFrames || frames > kMaxFrames || pool->stalled) {
+            SynthRenderVoices(synth, out, frames, 0, count);
+            return;
+        }
+
+        pool->jobSynth = synth;
+        pool->jobFrames = frames;
+        pool->jobCount = count;
+        pool->pending.store(parts - 1, std::memory_order_relaxed);
+        // Part 0 is the audio thread's, the workers may claim from 1 on
+        pool->claim.store(pool->nextJob | (uint64_t(parts) << kPartsShift) | 1,
+                          std::memory_order_release);
+        pool->nextJob += kJobIncrement;
+
+        SynthRenderVoices(synth, out, frames, 0, count / parts);
+        uint32_t part;
+        uint32_t jobParts;
+        while (pool->claimPart(part, jobParts)) {
+            pool->renderPart(part, jobParts);
+        }
+        pool->waitForParts();
+        for (uint32_t p = 1; p < parts; p++) {
+            const int32_t *partOut = pool->partBuffers[p - 1].samples;
+            for (uint32_t n = 0; n < frames; n++) {
+                out[n] += partOut[n];
+            }
+        }
+    }
+
+private:
+    static constexpr size_t kMaxWorkers = 3;
+    static constexpr uint32_t kMinVoicesPerPart = 8;
+    static constexpr uint32_t kMinFrames = 16;
+    static constexpr uint32_t kMaxFrames = 256;
+    // Split once one thread takes this much of the buffer on average
+    static constexpr float kSplitLoad = 0.4f;
+    static constexpr float kLoadSmoothing = 0.05f;
+    // Longest a worker sleeps through a lost wake-up
+    static constexpr auto kParkTimeout = std::chrono::milliseconds(5);
+    static constexpr size_t kCacheLine = 64;
+    static constexpr uint32_t kSpinsPerClockRead = 64;
+    static constexpr int kMaxStalls = 3;
+
+    // claim packs the job (top 32 bits), its number of parts and the next part to hand out, so
+    // a claim can never land on a part of another job
+    static constexpr uint64_t kPartsShift = 16;
+    static constexpr uint64_t kPartMask = (1u << kPartsShift) - 1;
+    static constexpr uint64_t kJobIncrement = uint64_t(1) << 32;
+
+    // Padded rather than aligned, the pool lives in objects allocated with new, which only
+    // honours over-aligned types from C++17 on
+    struct PartBuffer {
+        int32_t samples[kMaxFrames];
+        char pad[kCacheLine];
+    };
+
+    static void cpuRelax() {
+#if defined(__i386__) || defined(__x86_64__)
+        __builtin_ia32_pause();
+#elif defined(__aarch64__) || defined(__arm__)
+        asm volatile("yield");
+#endif
+    }
+
+    // Audio thread, until every claimed part is done
+    void waitForParts() {
+        // A part takes a few microseconds; waiting longer means its worker is not running
+        const std::chrono::microseconds spinTimeout(1000);
+        const std::chrono::microseconds stallSleep(50);
+        const auto deadline = std::chrono::steady_clock::now() + spinTimeout;
+        uint32_t spins = 0;
+        while (pending.load(std::memory_order_acquire) != 0) {
+            if (stalled) {
+                // Gives up the core, to a worker stuck on it if that is what is going on
+                std::this_thread::sleep_for(stallSleep);
+            } else if (++spins % kSpinsPerClockRead == 0 &&
+                       std::chrono::steady_clock::now() >= deadline) {
+                stalled = true;
+                if (++stallCount == kMaxStalls)
+                    LOGW("Voice render workers keep stalling the audio thread, not splitting");
+            } else {
+                cpuRelax();
+            }
+        }
+    }
+
+    // Takes the next part of the current job, false once they are all taken
+    bool claimPart(uint32_t &part, uint32_t &parts) {
+        uint64_t current = claim.load(std::memory_order_acquire);
+        while (true) {
+            part = static_cast<uint32_t>(current & kPartMask);
+            parts = static_cast<uint32_t>((current >> kPartsShift) & kPartMask);
+            if (part >= parts)
+                return false;
+            if (claim.compare_exchange_weak(current, current + 1, std::memory_order_acq_rel,
+                                            std::memory_order_acquire))
+                return true;
+        }
+    }
+
+    // The job fields are written before the claim that hands out the part, and the audio thread
+    // leaves them alone until every claimed part is done
+    void renderPart(uint32_t part, uint32_t parts) {
+        ScopedTrace trace("VoiceRenderPool part");
+        int32_t *partOut = partBuffers[part - 1].samples;
+        memset(partOut, 0, jobFrames * sizeof(int32_t));
+        SynthRenderVoices(jobSynth, partOut, jobFrames, jobCount * part / parts,
+                          jobCount * (part + 1) / parts);
+        pending.fetch_sub(1, std::memory_order_release);
+    }
+
+    void run(int cpuId) {
+        cpu_set_t cpuSet;
+        CPU_ZERO(&cpuSet);
+        CPU_SET(cpuId, &cpuSet);
+        if (sched_setaffinity(gettid(), sizeof(cpu_set_t), &cpuSet) != 0)
+            LOGW("Voice render worker could not bind to CPU %d", cpuId);
+
+        uint32_t part;
+        uint32_t parts;
+        while (running.load(std::memory_order_relaxed)) {
+            if (claimPart(part, parts)) {
+                renderPart(part, parts);
+            } else if (awake.load(std::memory_order_relaxed)) {
+                cpuRelax();
+            } else {
+                std::unique_lock<std::mutex> lock(mutex);
+                parked.fetch_add(1, std::memory_order_relaxed);
+                wakeUp.wait_for(lock, kParkTimeout, [this] {
+                    return awake.load(std::memory_order_relaxed) ||
+                           !running.load(std::memory_order_relaxed);
+                });
+                parked.fetch_sub(1, std::memory_order_relaxed);
+            }
+        }
+    }
+
+    std::atomic<bool> enabled{false};
+    std::atomic<bool> running{false};
+    std::atomic<bool> awake{false};
+    std::atomic<int> parked{0};
+    std::atomic<size_t> workerCount{0};
+    // Written on every claim and part, each on a cache line of its own, see PartBuffer
+    char padClaim[kCacheLine];
+    std::atomic<uint64_t> claim{0};
+    char padPending[kCacheLine];
+    std::atomic<uint32_t> pending{0};
+    char padJob[kCacheLine];
+
+    // Current job, see renderPart()
+    Synthesizer *jobSynth = nullptr;
+    uint32_t jobFrames = 0;
+    uint32_t jobCount = 0;
+    PartBuffer partBuffers[kMaxWorkers];
+
+    // Audio thread only
+    uint64_t nextJob = kJobIncrement;
+    bool splitting = false;
+    float averageLoad = 0.0f;
+    // Gave up spinning in this buffer
+    bool stalled = false;
+    int stallCount = 0;
+
+    std::mutex mutex;
+    std::condition_variable wakeUp;
+    std::vector<int> coreIds;
+    std::vector<std::thread> workers;
+};
+
+#endif // VOICE_RENDER_POOL_H
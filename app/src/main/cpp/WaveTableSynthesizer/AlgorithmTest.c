@@ -1,8 +1,12 @@
 //#ifdef RUN_TEST
 #include "SynthCore.h"
 #include "Player.h"
+#include "WaveTable.h"
 #include <stdint.h>
 #include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <trace.h>
 
 #define TEST_LOOP_NUN 10000
 
@@ -156,10 +160,489 @@ void TestSynth(void)
     }
 }
 
+#define RENDER_TEST_SAMPLES 320000
+
+static Player playerPerSample;
+static Player playerBlock;
+
+uint32_t PlayerStateCompare(Player* playerA,Player* playerB)
+{
+    uint32_t error=0;
+    SoundUnit* sa=playerA->mainSynthesizer.SoundUnitList;
+    SoundUnit* sb=playerB->mainSynthesizer.SoundUnitList;
+
+    if(playerA->currentTick!=playerB->currentTick||playerA->decayGenTick!=playerB->decayGenTick)
+        error++;
+    if(playerA->scorePointer!=playerB->scorePointer||playerA->status!=playerB->status)
+        error++;
+    if(playerA->mainSynthesizer.mixOut!=playerB->mainSynthesizer.mixOut)
+        error++;
+    for(uint32_t k=0;k<POLY_NUM;k++)
+    {
+        if(sa[k].val!=sb[k].val||sa[k].sampleVal!=sb[k].sampleVal)
+            error++;
+        if(sa[k].envelopeLevel!=sb[k].envelopeLevel||sa[k].envelopePos!=sb[k].envelopePos)
+            error++;
+        if(sa[k].wavetablePos!=sb[k].wavetablePos||sa[k].increment!=sb[k].increment)
+            error++;
+    }
+    return error;
+}
+
+// PlayerRenderBlock must match Player32kProc + PlayerProcess sample for sample
+static void TestRenderBlockAt(uint32_t sampleRate)
+{
+    static int32_t blockOut[1024];
+    // Uneven sizes, so block edges fall everywhere relative to envelope steps and score notes
+    static const uint32_t blockSizes[]={512,1,37,150,149,1024,256,3};
+    uint32_t done=0;
+    uint32_t block=0;
+    uint32_t error=0;
+
+    printf("~~~~~~~Start testing block rendering at %u Hz.~~~~~~~\n",sampleRate);
+    PlayerInit(&playerPerSample);
+    PlayerInit(&playerBlock);
+    PlayerSetSampleRate(&playerPerSample,sampleRate);
+    PlayerSetSampleRate(&playerBlock,sampleRate);
+    PlayerPlay(&playerPerSample);
+    PlayerPlay(&playerBlock);
+    while(done<RENDER_TEST_SAMPLES&&error==0)
+    {
+        uint32_t n=blockSizes[block++%(sizeof(blockSizes)/sizeof(blockSizes[0]))];
+        PlayerRenderBlock(&playerBlock,blockOut,n,1);
+        for(uint32_t k=0;k<n;k++)
+        {
+            Player32kProc(&playerPerSample);
+            if(playerPerSample.mainSynthesizer.mixOut!=blockOut[k])
+            {
+                printf("Block output differs at sample %u: %d != %d\n",done+k,
+                       playerPerSample.mainSynthesizer.mixOut,blockOut[k]);
+                error++;
+                break;
+            }
+            PlayerProcess(&playerPerSample);
+        }
+        done+=n;
+    }
+    if(error==0)
+        error=PlayerStateCompare(&playerPerSample,&playerBlock);
+    if(error>0)
+    {
+        printf("%u error(s) found:\n",error);
+        printf("Per sample:\n");
+        PrintParameters(&playerPerSample.mainSynthesizer);
+        printf("Block:\n");
+        PrintParameters(&playerBlock.mainSynthesizer);
+    }
+    else
+    {
+        printf("Block rendering passed the test (%u samples).\n",done);
+    }
+}
+
+void TestRenderBlock(void)
+{
+    TestRenderBlockAt(WAVETABLE_SAMPLE_RATE);
+    TestRenderBlockAt(48000);
+    TestRenderBlockAt(44100);
+}
+
+// The increments worked out for WAVETABLE_SAMPLE_RATE must be the table itself, other rates
+// scale them
+void TestSampleRate(void)
+{
+    static Synthesizer synth;
+    uint32_t error=0;
+
+    printf("~~~~~~~Start testing sample rates.~~~~~~~\n");
+    SynthInit(&synth);
+    SynthSetSampleRate(&synth,WAVETABLE_SAMPLE_RATE);
+    for(uint32_t note=0;note<128;note++)
+    {
+        if(synth.noteIncrement[note]!=WaveTable_Increment[note])
+        {
+            printf("Note %u: increment %u != %u\n",note,synth.noteIncrement[note],WaveTable_Increment[note]);
+            error++;
+        }
+    }
+    SynthSetSampleRate(&synth,48000);
+    for(uint32_t note=0;note<128;note++)
+    {
+        // floor(x * 2 / 3) against floor(x) * 2 / 3
+        int32_t expected=(int32_t)WaveTable_Increment[note]*2/3;
+        if(abs_s32((int32_t)synth.noteIncrement[note]-expected)>1)
+        {
+            printf("Note %u at 48 kHz: increment %u, expected about %d\n",note,synth.noteIncrement[note],expected);
+            error++;
+        }
+    }
+    if(error>0)
+        printf("%u error(s) found in sample rates.\n",error);
+    else
+        printf("Sample rates passed the test.\n");
+}
+
+static Synthesizer synthesizerSteal;
+
+// Which voice a new note takes once all are busy, and what SynthSetPolyphony keeps
+void TestVoiceStealing(void)
+{
+    SoundUnit* su=synthesizerSteal.SoundUnitList;
+    uint32_t error=0;
+
+    printf("~~~~~~~Start testing voice stealing.~~~~~~~\n");
+    memset(&synthesizerSteal,0,sizeof(synthesizerSteal));
+    SynthInit(&synthesizerSteal);
+    for(uint32_t k=0;k<POLY_NUM;k++)
+        NoteOnC(&synthesizerSteal,40);
+    if(synthesizerSteal.activeCount!=POLY_NUM||synthesizerSteal.fadingCount!=0)
+        error++;
+
+    // Voices 20 and 7 are the quietest; 7 started first
+    for(uint32_t k=0;k<POLY_NUM;k++)
+        su[k].envelopeLevel=100;
+    su[20].envelopeLevel=30;
+    su[7].envelopeLevel=30;
+    NoteOnC(&synthesizerSteal,60);
+    if(su[7].envelopeLevel!=255||su[7].increment!=WaveTable_Increment[60]||su[20].envelopeLevel!=30)
+        error++;
+    if(synthesizerSteal.fadingCount!=1||synthesizerSteal.fadingUnits[0].unit.envelopeLevel!=30)
+        error++;
+    // Now 20 is the only quiet one
+    NoteOnC(&synthesizerSteal,61);
+    if(su[20].envelopeLevel!=255||su[20].increment!=WaveTable_Increment[61])
+        error++;
+    // All equal again but 7 and 20: the oldest of the rest, voice 0, goes first
+    su[7].envelopeLevel=100;
+    su[20].envelopeLevel=100;
+    NoteOnC(&synthesizerSteal,62);
+    if(su[0].increment!=WaveTable_Increment[62])
+        error++;
+
+    // The fades run out after STEAL_FADE_SAMPLES
+    for(uint32_t k=0;k<STEAL_FADE_SAMPLES;k++)
+        SynthC(&synthesizerSteal);
+    if(synthesizerSteal.fadingCount!=0)
+        error++;
+
+    SynthSetPolyphony(&synthesizerSteal,POLY_MIN);
+    if(synthesizerSteal.activeCount!=POLY_MIN||synthesizerSteal.polyphony!=POLY_MIN)
+        error++;
+    for(uint32_t k=0;k<synthesizerSteal.activeCount;k++)
+        if(synthesizerSteal.activeVoices[k]>=POLY_MIN)
+            error++;
+    SynthSetPolyphony(&synthesizerSteal,1000);
+    if(synthesizerSteal.polyphony!=POLY_MAX)
+        error++;
+    for(uint32_t k=0;k<POLY_MAX-POLY_MIN;k++)
+        NoteOnC(&synthesizerSteal,40);
+    if(synthesizerSteal.activeCount!=POLY_MAX)
+        error++;
+
+    if(error>0)
+        printf("%u error(s) found in voice stealing.\n",error);
+    else
+        printf("Voice stealing passed the test.\n");
+}
+
+#define RENDERED_NOTE 60
+#define RENDERED_NOTE_MAX 120000
+
+static Synthesizer synthesizerScratch;
+static int16_t renderedSamples[RENDERED_NOTE_MAX];
+static RenderedNote renderedNote;
+
+static const RenderedNote *LookupRenderedNote(void *context, uint8_t note)
+{
+    return note==RENDERED_NOTE?(const RenderedNote *)context:0;
+}
+
+// A note played from its rendered samples must sound like the synthesized one when both start
+// on an envelope step, and free its voice at the end
+void TestRenderedNote(void)
+{
+    static int32_t outLive[1024];
+    static int32_t outRendered[1024];
+    static const uint32_t blockSizes[]={1024,17,150,333};
+    uint32_t done=0;
+    uint32_t block=0;
+    uint32_t error=0;
+
+    printf("~~~~~~~Start testing rendered notes.~~~~~~~\n");
+    SynthInit(&synthesizerScratch);
+    renderedNote.samples=renderedSamples;
+    renderedNote.stepSamples=150;
+    renderedNote.length=SynthRenderNote(&synthesizerScratch,RENDERED_NOTE,renderedNote.stepSamples,
+                                        renderedSamples,RENDERED_NOTE_MAX,&renderedNote.attackSamples);
+    if(renderedNote.length>=RENDERED_NOTE_MAX||
+       renderedNote.length>SynthRenderedNoteMaxLength(&synthesizerScratch,RENDERED_NOTE,150))
+        error++;
+
+    PlayerInit(&playerPerSample);
+    PlayerInit(&playerBlock);
+    SynthSetRenderedNoteLookup(&playerBlock.mainSynthesizer,LookupRenderedNote,&renderedNote);
+    NoteOn(&playerPerSample.mainSynthesizer,RENDERED_NOTE);
+    NoteOn(&playerBlock.mainSynthesizer,RENDERED_NOTE);
+    if(playerBlock.mainSynthesizer.SoundUnitList[0].renderedNote!=&renderedNote)
+        error++;
+    while(done<renderedNote.length+2000&&error==0)
+    {
+        uint32_t n=blockSizes[block++%(sizeof(blockSizes)/sizeof(blockSizes[0]))];
+        PlayerRenderBlock(&playerPerSample,outLive,n,0);
+        PlayerRenderBlock(&playerBlock,outRendered,n,0);
+        for(uint32_t k=0;k<n;k++)
+        {
+            if((outLive[k]>>8)!=(outRendered[k]>>8))
+            {
+                printf("Rendered note differs at sample %u: %d != %d\n",done+k,
+                       outLive[k]>>8,outRendered[k]>>8);
+                error++;
+                break;
+            }
+        }
+        done+=n;
+    }
+    if(playerBlock.mainSynthesizer.activeCount!=0||playerPerSample.mainSynthesizer.activeCount!=0)
+        error++;
+    if(error>0)
+        printf("%u error(s) found in rendered notes.\n",error);
+    else
+        printf("Rendered notes passed the test (%u samples, attack %u).\n",renderedNote.length,
+               renderedNote.attackSamples);
+}
+
+#define SPLIT_TEST_PARTS 3
+
+// Renders the voices in SPLIT_TEST_PARTS ranges into buffers of their own, like the worker
+// threads of the audio engine do, and adds those up
+static void RenderVoicesSplit(void *context, Synthesizer *synth, int32_t *out, uint32_t frames)
+{
+    static int32_t partOut[SPLIT_TEST_PARTS][1024];
+    const uint32_t count=synth->activeCount;
+    (void)context;
+    for(uint32_t part=0;part<SPLIT_TEST_PARTS;part++)
+    {
+        for(uint32_t k=0;k<frames;k++)
+            partOut[part][k]=0;
+        SynthRenderVoices(synth,partOut[part],frames,count*part/SPLIT_TEST_PARTS,
+                          count*(part+1)/SPLIT_TEST_PARTS);
+    }
+    // Backwards, the order must not matter
+    for(uint32_t part=SPLIT_TEST_PARTS;part-->0;)
+        for(uint32_t k=0;k<frames;k++)
+            out[k]+=partOut[part][k];
+}
+
+// Voices rendered in separate ranges through a SynthVoiceRenderer must mix to the same output
+void TestVoiceRenderer(void)
+{
+    static int32_t outWhole[1024];
+    static int32_t outSplit[1024];
+    static const uint32_t blockSizes[]={256,1,37,150,1024,5};
+    uint32_t done=0;
+    uint32_t block=0;
+    uint32_t error=0;
+
+    printf("~~~~~~~Start testing split voice rendering.~~~~~~~\n");
+    memset(&playerPerSample,0,sizeof(playerPerSample));
+    memset(&playerBlock,0,sizeof(playerBlock));
+    PlayerInit(&playerPerSample);
+    PlayerInit(&playerBlock);
+    SynthSetVoiceRenderer(&playerBlock.mainSynthesizer,RenderVoicesSplit,0);
+    PlayerPlay(&playerPerSample);
+    PlayerPlay(&playerBlock);
+    while(done<RENDER_TEST_SAMPLES&&error==0)
+    {
+        uint32_t n=blockSizes[block++%(sizeof(blockSizes)/sizeof(blockSizes[0]))];
+        PlayerRenderBlock(&playerPerSample,outWhole,n,1);
+        PlayerRenderBlock(&playerBlock,outSplit,n,1);
+        for(uint32_t k=0;k<n;k++)
+        {
+            if(outWhole[k]!=outSplit[k])
+            {
+                printf("Split rendering differs at sample %u: %d != %d\n",done+k,outWhole[k],
+                       outSplit[k]);
+                error++;
+                break;
+            }
+        }
+        done+=n;
+    }
+    if(error==0)
+        error=PlayerStateCompare(&playerPerSample,&playerBlock);
+    if(error>0)
+        printf("%u error(s) found in split voice rendering.\n",error);
+    else
+        printf("Split voice rendering passed the test (%u samples).\n",done);
+}
+
+#define SILENT_TEST_SAMPLES 500000
+
+// Long silent stretches between notes: PlayerRenderBlock skips the envelope steps there, the
+// next note must still decay on the same samples as in the per-sample path
+void TestSilentRender(void)
+{
+    static int32_t blockOut[1024];
+    static const uint32_t blockSizes[]={1024,997,150,1,333};
+    uint32_t done=0;
+    uint32_t block=0;
+    uint32_t nextNote=0;
+    uint32_t error=0;
+
+    printf("~~~~~~~Start testing silent rendering.~~~~~~~\n");
+    PlayerInit(&playerPerSample);
+    PlayerInit(&playerBlock);
+    while(done<SILENT_TEST_SAMPLES&&error==0)
+    {
+        uint32_t n=blockSizes[block++%(sizeof(blockSizes)/sizeof(blockSizes[0]))];
+        if(done>=nextNote)
+        {
+            NoteOn(&playerPerSample.mainSynthesizer,(uint8_t)(40+block%20));
+            NoteOn(&playerBlock.mainSynthesizer,(uint8_t)(40+block%20));
+            // Longer than a note lasts, at an odd phase of the envelope steps
+            nextNote=done+60000+block*7;
+        }
+        PlayerRenderBlock(&playerBlock,blockOut,n,0);
+        for(uint32_t k=0;k<n;k++)
+        {
+            Player32kProc(&playerPerSample);
+            if(playerPerSample.mainSynthesizer.mixOut!=blockOut[k])
+            {
+                printf("Silent render differs at sample %u: %d != %d\n",done+k,
+                       playerPerSample.mainSynthesizer.mixOut,blockOut[k]);
+                error++;
+                break;
+            }
+            PlayerUpdateEnvelope(&playerPerSample);
+        }
+        done+=n;
+    }
+    if(error==0&&(playerPerSample.decayGenTick!=playerBlock.decayGenTick||
+                  playerPerSample.mainSynthesizer.activeCount!=playerBlock.mainSynthesizer.activeCount))
+        error++;
+    if(error>0)
+        printf("%u error(s) found in silent rendering.\n",error);
+    else
+        printf("Silent rendering passed the test (%u samples).\n",done);
+}
+
+#if defined(SYNTH_HAVE_SSE2_KERNEL) || defined(SYNTH_HAVE_NEON_KERNEL)
+#if defined(SYNTH_HAVE_SSE2_KERNEL)
+#define SynthRenderBlockSIMD SynthRenderBlockSSE2
+#else
+#define SynthRenderBlockSIMD SynthRenderBlockNEON
+#endif
+
+#define KERNEL_TEST_BLOCKS 4000
+
+static Synthesizer synthesizerKernel;
+
+static uint32_t SoundUnitCompare(Synthesizer* synthA,Synthesizer* synthB)
+{
+    uint32_t error=0;
+    SoundUnit* sa=synthA->SoundUnitList;
+    SoundUnit* sb=synthB->SoundUnitList;
+
+    for(uint32_t k=0;k<POLY_NUM;k++)
+    {
+        if(sa[k].val!=sb[k].val||sa[k].sampleVal!=sb[k].sampleVal)
+            error++;
+        if(sa[k].envelopeLevel!=sb[k].envelopeLevel||sa[k].envelopePos!=sb[k].envelopePos)
+            error++;
+        if(sa[k].wavetablePos!=sb[k].wavetablePos||sa[k].increment!=sb[k].increment)
+            error++;
+    }
+    return error;
+}
+
+// The SIMD kernel must match SynthRenderBlockC bit for bit, output and voice state
+void TestRenderKernels(void)
+{
+    static int32_t outC[1024];
+    static int32_t outSIMD[1024];
+    // Odd sizes too, so every remainder of the four-sample loop gets exercised
+    static const uint32_t blockSizes[]={256,1,2,3,4,5,7,150,1024,63};
+    uint32_t error=0;
+    uint32_t block;
+
+    printf("~~~~~~~Start testing render kernel %s.~~~~~~~\n",SynthRenderKernelName());
+    // SynthInit leaves sampleVal alone, start both from the same state
+    memset(&synthesizerC,0,sizeof(synthesizerC));
+    memset(&synthesizerKernel,0,sizeof(synthesizerKernel));
+    SynthInit(&synthesizerC);
+    SynthInit(&synthesizerKernel);
+    for(block=0;block<KERNEL_TEST_BLOCKS&&error==0;block++)
+    {
+        uint32_t n=blockSizes[block%(sizeof(blockSizes)/sizeof(blockSizes[0]))];
+        if(block%3==0)
+        {
+            NoteOnC(&synthesizerC,block%56);
+            NoteOnC(&synthesizerKernel,block%56);
+        }
+        // Something already in the buffer, the kernels add to it
+        for(uint32_t k=0;k<n;k++)
+            outC[k]=outSIMD[k]=(int32_t)(k*2654435761u);
+        SynthRenderBlockC(&synthesizerC,outC,n);
+        SynthRenderBlockSIMD(&synthesizerKernel,outSIMD,n);
+        for(uint32_t k=0;k<n;k++)
+        {
+            if(outC[k]!=outSIMD[k])
+            {
+                printf("Block %u differs at sample %u: %d != %d\n",block,k,outC[k],outSIMD[k]);
+                error++;
+                break;
+            }
+        }
+        if(error==0)
+            error=SoundUnitCompare(&synthesizerC,&synthesizerKernel);
+        GenDecayEnvlopeC(&synthesizerC);
+        GenDecayEnvlopeC(&synthesizerKernel);
+    }
+    if(error>0)
+    {
+        printf("%u error(s) found in block %u:\n",error,block-1);
+        printf("Synth C:\n");
+        PrintParameters(&synthesizerC);
+        printf("Synth %s:\n",SynthRenderKernelName());
+        PrintParameters(&synthesizerKernel);
+    }
+    else
+        printf("Render kernel %s passed the test (%u blocks).\n",SynthRenderKernelName(),block);
+}
+#endif
+
+// One trace section per test
+static void RunTest(const char *name, void (*test)(void))
+{
+    TRACE_BEGIN(name);
+    test();
+    TRACE_END();
+}
+
 void TestProcess(void)
 {
     TestInit();
-    TestUpdateTickFunc();
-    TestSynth();
+    RunTest("TestUpdateTickFunc", TestUpdateTickFunc);
+    RunTest("TestSynth", TestSynth);
+    RunTest("TestRenderBlock", TestRenderBlock);
+    RunTest("TestSampleRate", TestSampleRate);
+    RunTest("TestSilentRender", TestSilentRender);
+    RunTest("TestVoiceStealing", TestVoiceStealing);
+    RunTest("TestRenderedNote", TestRenderedNote);
+    RunTest("TestVoiceRenderer", TestVoiceRenderer);
+#if defined(SYNTH_HAVE_SSE2_KERNEL) || defined(SYNTH_HAVE_NEON_KERNEL)
+    RunTest("TestRenderKernels", TestRenderKernels);
+#endif
+}
+
+#ifdef ALGORITHM_TEST_MAIN
+int main(void)
+{
+    // TRACE_FILE=trace.json ./AlgorithmTest also writes the trace sections, see trace.cpp
+    if (getenv("TRACE_FILE") != NULL)
+        TraceSetEnabled(1);
+    TestProcess();
+    return 0;
 }
+#endif
 //#endif
@@ -3,48 +3,110 @@
 #include <string.h>
 #include "SynthCore.h"
 #include "Player.h"
+#include "WaveTable.h"
 #include <logging_macros.h>
+#include <trace.h>
 
 extern unsigned char Score[];
 
 void Player32kProc(Player *player) {
     Synth(&(player->mainSynthesizer));
     player->currentTick++;
-    if (player->decayGenTick < 200)
+    if (player->decayGenTick < player->decayInterval)
         player->decayGenTick += 1;
 }
 
 void PlayerProcess(Player *player) {
-
-    uint8_t temp;
     //LOGD("PlayerProcess\n");
-    if (player->decayGenTick >= 150) {
+    PlayerUpdateEnvelope(player);
+    PlayerProcessScore(player);
+    //LOGD("PlayerProcessWEnd\n");
+}
+
+void PlayerUpdateEnvelope(Player *player) {
+    if (player->decayGenTick >= player->decayInterval) {
         //LOGD("GenDecayEnvlope\n");
         GenDecayEnvlope(&(player->mainSynthesizer));
         player->decayGenTick = 0;
     }
+}
+
+void PlayerProcessScore(Player *player) {
+    uint8_t temp;
+    int32_t note;
     if (player->status == STATUS_PLAYING) {
-        if ((player->currentTick >> 8) >= player->lastScoreTick)
+        if (player->currentTick >= player->nextScoreSample)
         {
+            TRACE_BEGIN("PlayerProcessScore");
             do
             {
                 temp = *(player->scorePointer);
                 player->scorePointer++;
                 if (temp == 0xFF)
                 {
+                    // End of score, there is no delta after the marker
                     player->status = STATUS_STOP;
+                    TRACE_END();
+                    return;
                 }
-                else
+                note = (int32_t) (temp & 0x7F) + player->transpose;
+                if (note >= 0 && note <= 127)
                 {
-                    LOGD("Note On:%d\n",temp);
-                    NoteOn(&(player->mainSynthesizer), temp);
+                    //LOGD("Note On:%d\n",note);
+                    NoteOn(&(player->mainSynthesizer), (uint8_t) note);
                 }
             } while ((temp & 0x80) == 0);
 
             PlayUpdateNextScoreTick(player);
+            TRACE_END();
         }
     }
-    //LOGD("PlayerProcessWEnd\n");
+}
+
+// Block version of calling Player32kProc then PlayerProcess for each of frames samples, with the
+// mixOut of every sample in out[]. The block is cut wherever the envelope steps or a note group
+// of the score starts, so both land on the same sample as in the per-sample path. withScore == 0
+// leaves the score where it is, like calling PlayerUpdateEnvelope alone.
+void PlayerRenderBlock(Player *player, int32_t *out, uint32_t frames, uint8_t withScore) {
+    uint32_t done = 0;
+    uint32_t n;
+    while (done < frames) {
+        n = frames - done;
+        // With no voice sounding the envelope steps do nothing, only their phase has to be kept
+        const uint32_t interval = player->decayInterval;
+        const uint8_t silent = player->mainSynthesizer.activeCount == 0 &&
+                               player->decayGenTick < interval;
+        // The envelope steps once decayInterval samples have been rendered since the last step
+        if (player->decayGenTick < interval) {
+            if (!silent && interval - player->decayGenTick < n)
+                n = interval - player->decayGenTick;
+        } else {
+            n = 1;
+        }
+        if (withScore && player->status == STATUS_PLAYING) {
+            if (player->nextScoreSample > player->currentTick) {
+                if (player->nextScoreSample - player->currentTick < n)
+                    n = player->nextScoreSample - player->currentTick;
+            } else {
+                n = 1;
+            }
+        }
+
+        SynthRenderBlock(&(player->mainSynthesizer), out + done, n);
+        player->currentTick += n;
+        if (silent) {
+            player->decayGenTick = (player->decayGenTick + n) % interval;
+        } else {
+            player->decayGenTick += n;
+            if (player->decayGenTick > interval)
+                player->decayGenTick = interval;
+        }
+
+        PlayerUpdateEnvelope(player);
+        if (withScore)
+            PlayerProcessScore(player);
+        done += n;
+    }
 }
 
 void PlayUpdateNextScoreTick(Player *player) {
@@ -57,26 +119,86 @@ void PlayUpdateNextScoreTick(Player *player) {
         tempU32 += temp;
     } while (temp == 0xFF);
     player->lastScoreTick = tempU32;
+    player->nextScoreSample = PlayerScoreTickToSample(player, tempU32);
 }
 
-void PlayerPlay(Player *player) {
+uint32_t PlayerScoreTickToSample(Player *player, uint32_t scoreTick) {
+    return (uint32_t) ((uint64_t) scoreTick * player->sampleRate / player->scoreTicksPerSecond);
+}
+
+// Back to the first note group of the score, without changing the status
+static void PlayerRewind(Player *player) {
     player->currentTick = 0;
     player->lastScoreTick = 0;
-    player->decayGenTick = 0;
-    player->scorePointer = Score;
+    player->scorePointer = (uint8_t *) player->score;
     PlayUpdateNextScoreTick(player);
+}
+
+void PlayerPlay(Player *player) {
+    PlayerRewind(player);
+    player->decayGenTick = 0;
     player->status = STATUS_PLAYING;
 }
 
+void PlayerStart(Player *player) {
+    if (player->status == STATUS_REDAY_TO_PLAY)
+        player->status = STATUS_PLAYING;
+}
+
+void PlayerStop(Player *player) {
+    PlayerRewind(player);
+    player->status = STATUS_REDAY_TO_PLAY;
+}
+
+void PlayerSetScore(Player *player, const uint8_t *score, uint32_t scoreTicksPerSecond) {
+    player->score = score;
+    player->scoreTicksPerSecond = scoreTicksPerSecond;
+    PlayerStop(player);
+}
+
+void PlayerSetSampleRate(Player *player, uint32_t sampleRate) {
+    player->sampleRate = sampleRate;
+    player->nextScoreSample = PlayerScoreTickToSample(player, player->lastScoreTick);
+    // The envelope was made for 150 samples per step at 32 kHz, keep its length in time
+    player->decayInterval = (150 * sampleRate + WAVETABLE_SAMPLE_RATE / 2) / WAVETABLE_SAMPLE_RATE;
+    if (player->decayGenTick > player->decayInterval)
+        player->decayGenTick = player->decayInterval;
+    SynthSetSampleRate(&(player->mainSynthesizer), sampleRate);
+}
+
+void PlayerSeek(Player *player, uint32_t scoreTick) {
+    uint8_t temp;
+    PlayerRewind(player);
+    // Skip every note group that starts before scoreTick
+    while (player->lastScoreTick < scoreTick) {
+        do {
+            temp = *(player->scorePointer);
+            player->scorePointer++;
+            if (temp == 0xFF) {
+                player->scorePointer--;
+                player->currentTick = player->nextScoreSample;
+                return;
+            }
+        } while ((temp & 0x80) == 0);
+        PlayUpdateNextScoreTick(player);
+    }
+    player->currentTick = PlayerScoreTickToSample(player, scoreTick);
+}
+
 void PlayerInit(Player *player) {
     player->status = STATUS_STOP;
-    player->currentTick = 0;
-    player->lastScoreTick = 0;
     player->decayGenTick = 0;
-    player->scorePointer = Score;
+    player->transpose = 0;
+    // The built-in score advances one tick every 256 samples at 32 kHz
+    player->sampleRate = WAVETABLE_SAMPLE_RATE;
+    player->scoreTicksPerSecond = 125;
+    player->score = Score;
+    PlayerRewind(player);
     SynthInit(&(player->mainSynthesizer));
+    PlayerSetSampleRate(player, WAVETABLE_SAMPLE_RATE);
 }
 
 void PlayerResetSynthesizer(Player *player) {
     SynthInit(&(player->mainSynthesizer));
+    SynthSetSampleRate(&(player->mainSynthesizer), player->sampleRate);
 }
@@ -15,13 +15,25 @@ enum PLAY_STATUS{
     STATUS_PLAYING=2
 };
 
+/*
+ * Score format: a delta (in score ticks) before each note group, then the group itself.
+ * A delta is a run of 0xFF bytes, each worth 255 ticks, closed by a byte below 0xFF.
+ * A group is a list of note bytes, the last one with bit 7 set. A 0xFF in place of a group
+ * ends the score.
+ */
 typedef struct _Player
 {
-    uint32_t currentTick;
-    uint32_t lastScoreTick;
+    uint32_t currentTick;       // samples since the start of the score
+    uint32_t lastScoreTick;     // score tick of the next note group
     uint32_t status;
     uint32_t decayGenTick;
+    uint32_t decayInterval;     // samples between envelope steps, ~4.7 ms
     uint8_t *scorePointer;
+    const uint8_t *score;
+    uint32_t sampleRate;
+    uint32_t scoreTicksPerSecond;
+    uint32_t nextScoreSample;   // lastScoreTick in samples
+    int32_t transpose;          // semitones added to every score note
     Synthesizer mainSynthesizer;
 } Player;
 
@@ -32,8 +44,26 @@ extern void Player32kProc(Player *player);
 
 extern void PlayerProcess(Player *player);
 
+extern void PlayerUpdateEnvelope(Player *player);
+
+extern void PlayerProcessScore(Player *player);
+
+extern void PlayerRenderBlock(Player *player, int32_t *out, uint32_t frames, uint8_t withScore);
+
 extern void PlayerPlay(Player *player);
 
+extern void PlayerStart(Player *player);
+
+extern void PlayerStop(Player *player);
+
+extern void PlayerSetScore(Player *player, const uint8_t *score, uint32_t scoreTicksPerSecond);
+
+extern void PlayerSetSampleRate(Player *player, uint32_t sampleRate);
+
+extern void PlayerSeek(Player *player, uint32_t scoreTick);
+
+extern uint32_t PlayerScoreTickToSample(Player *player, uint32_t scoreTick);
+
 extern void UpdateTick(Player *player);
 
 extern uint8_t PlayNoteTimingCheck(Player *player);
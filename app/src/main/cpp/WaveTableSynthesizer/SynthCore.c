@@ -8,7 +8,7 @@
 
 void SynthInit(Synthesizer *synth) {
     SoundUnit *soundUnits = synth->SoundUnitList;
-    for (uint32_t i = 0; i < POLY_NUM; i++) {
+    for (uint32_t i = 0; i < POLY_MAX; i++) {
         soundUnits[i].increment = 0;
         soundUnits[i].wavetablePos = 0;
         soundUnits[i].envelopeLevel = 0;
@@ -18,19 +18,129 @@ void SynthInit(Synthesizer *synth) {
         soundUnits[i].waveTableLen = WAVETABLE_LEN;
         soundUnits[i].waveTableLoopLen = WAVETABLE_LOOP_LEN;
         soundUnits[i].waveTableAttackLen = WAVETABLE_ATTACK_LEN;
+        soundUnits[i].noteId = 0;
+        soundUnits[i].renderedNote = 0;
+        soundUnits[i].renderedPos = 0;
     }
     synth->lastSoundUnit = 0;
+    synth->activeCount = 0;
+    synth->polyphony = POLY_NUM;
+    synth->noteCount = 0;
+    synth->fadingCount = 0;
+    for (uint32_t note = 0; note < 128; note++)
+        synth->noteIncrement[note] = WaveTable_Increment[note];
+    synth->renderedNoteLookup = 0;
+    synth->renderedNoteContext = 0;
+    synth->voiceRenderer = 0;
+    synth->voiceRendererContext = 0;
+    SynthSelectRenderKernel();
+}
+
+void SynthSetRenderedNoteLookup(Synthesizer *synth, RenderedNoteLookup lookup, void *context) {
+    synth->renderedNoteLookup = lookup;
+    synth->renderedNoteContext = context;
+}
+
+void SynthSetVoiceRenderer(Synthesizer *synth, SynthVoiceRenderer renderer, void *context) {
+    synth->voiceRenderer = renderer;
+    synth->voiceRendererContext = context;
+}
+
+void SynthSetSampleRate(Synthesizer *synth, uint32_t sampleRate) {
+    // A semitone is 2^(1/12); stepping out from A4 keeps libm out of the synthesizer
+    const double semitone = 1.0594630943592953;
+    const double a4 = WAVETABLE_A4_INCREMENT * WAVETABLE_SAMPLE_RATE / sampleRate;
+    double increment = a4;
+    for (int32_t note = 69; note < 128; note++) {
+        synth->noteIncrement[note] = (uint32_t) increment;
+        increment *= semitone;
+    }
+    increment = a4;
+    for (int32_t note = 68; note >= 0; note--) {
+        increment /= semitone;
+        synth->noteIncrement[note] = (uint32_t) increment;
+    }
+}
+
+// Hands a sounding voice over to a fade slot. With every slot taken, the fade closest to its end
+// is cut short instead.
+static void SynthFadeOut(Synthesizer *synth, uint32_t voice) {
+    uint32_t slot = synth->fadingCount;
+    if (slot == STEAL_FADE_NUM) {
+        slot = 0;
+        for (uint32_t k = 1; k < STEAL_FADE_NUM; k++) {
+            if (synth->fadingUnits[k].remaining < synth->fadingUnits[slot].remaining)
+                slot = k;
+        }
+    } else {
+        synth->fadingCount++;
+    }
+    synth->fadingUnits[slot].unit = synth->SoundUnitList[voice];
+    synth->fadingUnits[slot].remaining = STEAL_FADE_SAMPLES;
+}
+
+void SynthSetPolyphony(Synthesizer *synth, uint32_t polyphony) {
+    SoundUnit *soundUnits = synth->SoundUnitList;
+    if (polyphony < POLY_MIN)
+        polyphony = POLY_MIN;
+    if (polyphony > POLY_MAX)
+        polyphony = POLY_MAX;
+
+    uint32_t k = 0;
+    while (k < synth->activeCount) {
+        const uint32_t i = synth->activeVoices[k];
+        if (i >= polyphony) {
+            SynthFadeOut(synth, i);
+            soundUnits[i].envelopeLevel = 0;
+            synth->activeVoices[k] = synth->activeVoices[--synth->activeCount];
+            continue;
+        }
+        k++;
+    }
+    synth->polyphony = polyphony;
+    if (synth->lastSoundUnit >= polyphony)
+        synth->lastSoundUnit = 0;
+}
+
+// A free voice if there is one, going round from lastSoundUnit. Otherwise the quietest voice,
+// and of those the oldest.
+static uint32_t SynthAllocVoice(Synthesizer *synth) {
+    SoundUnit *soundUnits = synth->SoundUnitList;
+    uint32_t voice = synth->lastSoundUnit;
+
+    if (synth->activeCount < synth->polyphony) {
+        while (soundUnits[voice].envelopeLevel != 0) {
+            voice++;
+            if (voice == synth->polyphony)
+                voice = 0;
+        }
+        return voice;
+    }
+
+    voice = synth->activeVoices[0];
+    for (uint32_t k = 1; k < synth->activeCount; k++) {
+        const uint32_t i = synth->activeVoices[k];
+        if (soundUnits[i].envelopeLevel < soundUnits[voice].envelopeLevel ||
+            (soundUnits[i].envelopeLevel == soundUnits[voice].envelopeLevel &&
+             synth->noteCount - soundUnits[i].noteId > synth->noteCount - soundUnits[voice].noteId))
+            voice = i;
+    }
+    return voice;
 }
 
 //#ifdef RUN_TEST
 void NoteOnC(Synthesizer *synth, uint8_t note) {
     //disable_interrupts();
-    uint32_t lastSoundUnit = synth->lastSoundUnit;
+    uint32_t lastSoundUnit = SynthAllocVoice(synth);
     SoundUnit *soundUnits = synth->SoundUnitList;
 
     // LOGD("NoteOnC pthread_mutex_lock() %d", rc);
 
-    soundUnits[lastSoundUnit].increment = WaveTable_Increment[note & 0x7F];
+    if (soundUnits[lastSoundUnit].envelopeLevel == 0)
+        synth->activeVoices[synth->activeCount++] = (uint8_t) lastSoundUnit;
+    else
+        SynthFadeOut(synth, lastSoundUnit);
+    soundUnits[lastSoundUnit].increment = synth->noteIncrement[note & 0x7F];
     soundUnits[lastSoundUnit].wavetablePos = 0;
     soundUnits[lastSoundUnit].waveTableAddress = (int16_t *) WaveTable;
     soundUnits[lastSoundUnit].waveTableLen = WAVETABLE_LEN;
@@ -38,11 +148,15 @@ void NoteOnC(Synthesizer *synth, uint8_t note) {
     soundUnits[lastSoundUnit].waveTableAttackLen = WAVETABLE_ATTACK_LEN;
     soundUnits[lastSoundUnit].envelopeLevel = 255;
     soundUnits[lastSoundUnit].envelopePos = 0;
+    soundUnits[lastSoundUnit].noteId = synth->noteCount++;
+    soundUnits[lastSoundUnit].renderedNote = synth->renderedNoteLookup != 0 ?
+            synth->renderedNoteLookup(synth->renderedNoteContext, note & 0x7F) : 0;
+    soundUnits[lastSoundUnit].renderedPos = 0;
     //enable_interrupts();
 
 
     lastSoundUnit++;
-    if (lastSoundUnit == POLY_NUM)
+    if (lastSoundUnit == synth->polyphony)
         lastSoundUnit = 0;
 
     synth->lastSoundUnit = lastSoundUnit;
@@ -58,35 +172,226 @@ void SynthC(Synthesizer *synth) {
 
     // LOGD("SynthC pthread_mutex_lock() %d", rc);
 
-    for (uint32_t i = 0; i < POLY_NUM; i++) {
-        if (soundUnits[i].envelopeLevel != 0) {
-            pWaveTable = soundUnits[i].waveTableAddress;
-            waveTablePosInt = (soundUnits[i].wavetablePos) >> 8;
-            int16_t s1 = pWaveTable[waveTablePosInt];
+    for (uint32_t k = 0; k < synth->activeCount; k++) {
+        const uint32_t i = synth->activeVoices[k];
+        if (soundUnits[i].renderedNote != 0)
+            continue;
+        pWaveTable = soundUnits[i].waveTableAddress;
+        waveTablePosInt = (soundUnits[i].wavetablePos) >> 8;
+        int16_t s1 = pWaveTable[waveTablePosInt];
+        int16_t s2 = pWaveTable[waveTablePosInt + 1];
+        int16_t s = s1 + (((s2 - s1) * (soundUnits[i].wavetablePos & 0xff)) >> 8);
+        soundUnits[i].val = ((int32_t) soundUnits[i].envelopeLevel) * s;
+        soundUnits[i].sampleVal = pWaveTable[waveTablePosInt];
+        uint32_t waveTablePos = soundUnits[i].increment + soundUnits[i].wavetablePos;
+
+        if (waveTablePos >= soundUnits[i].waveTableLen << 8)
+            waveTablePos -= soundUnits[i].waveTableLoopLen << 8;
+        soundUnits[i].wavetablePos = waveTablePos;
+        synth->mixOut += soundUnits[i].val;
+    }
+    SynthMixRenderedNotes(synth, &synth->mixOut, 1);
+    SynthRenderFades(synth, &synth->mixOut, 1);
+    // LOGD("SynthC pthread_mutex_unlock() %d", rc);
+
+}
+
+// Same output as calling SynthC frames times, with the mixOut of each call in out[]. Envelopes
+// must not change within the block. Renders voice by voice so each voice's state stays in
+// registers for the whole block.
+void SynthRenderBlockC(Synthesizer *synth, int32_t *out, uint32_t frames) {
+    if (frames == 0)
+        return;
+    for (uint32_t n = 0; n < frames; n++)
+        out[n] = 0;
+
+    SynthRenderVoicesC(synth, out, frames, 0, synth->activeCount);
+    SynthMixRenderedNotes(synth, out, frames);
+    SynthRenderFades(synth, out, frames);
+    synth->mixOut = out[frames - 1];
+}
+
+void SynthRenderVoicesC(Synthesizer *synth, int32_t *out, uint32_t frames, uint32_t begin,
+                        uint32_t end) {
+    SoundUnit *soundUnits = synth->SoundUnitList;
+
+    if (frames == 0)
+        return;
+    for (uint32_t k = begin; k < end; k++) {
+        const uint32_t i = synth->activeVoices[k];
+        if (soundUnits[i].renderedNote != 0)
+            continue;
+        const int16_t *pWaveTable = soundUnits[i].waveTableAddress;
+        const int32_t envelopeLevel = (int32_t) soundUnits[i].envelopeLevel;
+        const uint32_t increment = soundUnits[i].increment;
+        const uint32_t waveTableEnd = soundUnits[i].waveTableLen << 8;
+        const uint32_t waveTableLoopLen = soundUnits[i].waveTableLoopLen << 8;
+        uint32_t waveTablePos = soundUnits[i].wavetablePos;
+        int32_t val = 0;
+        int16_t s1 = 0;
+
+        for (uint32_t n = 0; n < frames; n++) {
+            uint32_t waveTablePosInt = waveTablePos >> 8;
+            s1 = pWaveTable[waveTablePosInt];
             int16_t s2 = pWaveTable[waveTablePosInt + 1];
-            int16_t s = s1 + (((s2 - s1) * (soundUnits[i].wavetablePos & 0xff)) >> 8);
-            soundUnits[i].val = ((int32_t) soundUnits[i].envelopeLevel) * s;
-            soundUnits[i].sampleVal = pWaveTable[waveTablePosInt];
-            uint32_t waveTablePos = soundUnits[i].increment + soundUnits[i].wavetablePos;
-
-            if (waveTablePos >= soundUnits[i].waveTableLen << 8)
-                waveTablePos -= soundUnits[i].waveTableLoopLen << 8;
-            soundUnits[i].wavetablePos = waveTablePos;
-            synth->mixOut += soundUnits[i].val;
+            int16_t s = s1 + (((s2 - s1) * (waveTablePos & 0xff)) >> 8);
+            val = envelopeLevel * s;
+            out[n] += val;
+            waveTablePos += increment;
+            if (waveTablePos >= waveTableEnd)
+                waveTablePos -= waveTableLoopLen;
         }
+        soundUnits[i].wavetablePos = waveTablePos;
+        soundUnits[i].val = val;
+        soundUnits[i].sampleVal = s1;
     }
-    // LOGD("SynthC pthread_mutex_unlock() %d", rc);
+}
+
+uint32_t SynthRenderedNoteMaxLength(const Synthesizer *synth, uint8_t note,
+                                    uint32_t stepSamples) {
+    uint32_t increment = synth->noteIncrement[note & 0x7F];
+    if (increment == 0)
+        increment = 1;
+    const uint32_t attack = (WAVETABLE_ATTACK_LEN << 8) / increment + 1;
+    return attack + (sizeof(EnvelopeTable) + 1) * stepSamples;
+}
+
+uint32_t SynthRenderNote(Synthesizer *scratch, uint8_t note, uint32_t stepSamples,
+                         int16_t *out, uint32_t capacity, uint32_t *attackSamples) {
+    int32_t block[256];
+    uint32_t done = 0;
+    uint32_t phase = 0;
 
+    SynthSetRenderedNoteLookup(scratch, 0, 0);
+    NoteOnC(scratch, note);
+    const SoundUnit *unit = &scratch->SoundUnitList[scratch->activeVoices[scratch->activeCount - 1]];
+    *attackSamples = capacity;
+    while (scratch->activeCount > 0 && done < capacity) {
+        uint32_t n = stepSamples - phase;
+        if (n > sizeof(block) / sizeof(block[0]))
+            n = sizeof(block) / sizeof(block[0]);
+        if (n > capacity - done)
+            n = capacity - done;
+        SynthRenderBlockC(scratch, block, n);
+        for (uint32_t j = 0; j < n; j++)
+            out[done + j] = (int16_t) (block[j] >> 8);
+        done += n;
+        phase += n;
+        if (phase == stepSamples) {
+            phase = 0;
+            GenDecayEnvlopeC(scratch);
+            // The first step past the attack
+            if (unit->envelopePos == 1 && *attackSamples == capacity)
+                *attackSamples = done;
+        }
+    }
+    return done;
+}
+
+void SynthMixRenderedNotes(Synthesizer *synth, int32_t *out, uint32_t frames) {
+    SoundUnit *soundUnits = synth->SoundUnitList;
+    for (uint32_t k = 0; k < synth->activeCount; k++) {
+        SoundUnit *unit = &soundUnits[synth->activeVoices[k]];
+        const RenderedNote *rendered = unit->renderedNote;
+        if (rendered == 0)
+            continue;
+        const uint32_t pos = unit->renderedPos;
+        // Past the end the voice is silent until the next envelope step frees it
+        if (pos < rendered->length) {
+            const int16_t *samples = rendered->samples + pos;
+            const uint32_t n = rendered->length - pos < frames ? rendered->length - pos : frames;
+            for (uint32_t j = 0; j < n; j++)
+                out[j] += samples[j] * 256;
+            unit->val = samples[n - 1] * 256;
+        } else {
+            unit->val = 0;
+        }
+        unit->renderedPos = pos + frames;
+    }
 }
 
+void SynthRenderFades(Synthesizer *synth, int32_t *out, uint32_t frames) {
+    uint32_t k = 0;
+    while (k < synth->fadingCount) {
+        FadingUnit *fading = &synth->fadingUnits[k];
+        const SoundUnit *unit = &fading->unit;
+        const int16_t *pWaveTable = unit->waveTableAddress;
+        const int32_t envelopeLevel = (int32_t) unit->envelopeLevel;
+        const uint32_t waveTableEnd = unit->waveTableLen << 8;
+        const uint32_t waveTableLoopLen = unit->waveTableLoopLen << 8;
+        uint32_t waveTablePos = unit->wavetablePos;
+        uint32_t remaining = fading->remaining;
+        const uint32_t n = frames < remaining ? frames : remaining;
+
+        if (unit->renderedNote != 0) {
+            const RenderedNote *rendered = unit->renderedNote;
+            uint32_t pos = unit->renderedPos;
+            for (uint32_t j = 0; j < n; j++, pos++) {
+                if (pos < rendered->length)
+                    out[j] += (rendered->samples[pos] * 256 * (int32_t) remaining) >> STEAL_FADE_SHIFT;
+                remaining--;
+            }
+            fading->unit.renderedPos = pos;
+        } else {
+            for (uint32_t j = 0; j < n; j++) {
+                uint32_t waveTablePosInt = waveTablePos >> 8;
+                int16_t s1 = pWaveTable[waveTablePosInt];
+                int16_t s2 = pWaveTable[waveTablePosInt + 1];
+                int16_t s = s1 + (((s2 - s1) * (waveTablePos & 0xff)) >> 8);
+                // remaining / STEAL_FADE_SAMPLES of the level, in steps of one sample
+                out[j] += (envelopeLevel * s * (int32_t) remaining) >> STEAL_FADE_SHIFT;
+                remaining--;
+                waveTablePos += unit->increment;
+                if (waveTablePos >= waveTableEnd)
+                    waveTablePos -= waveTableLoopLen;
+            }
+        }
+        if (remaining == 0) {
+            *fading = synth->fadingUnits[--synth->fadingCount];
+            continue;
+        }
+        fading->unit.wavetablePos = waveTablePos;
+        fading->remaining = remaining;
+        k++;
+    }
+}
+
+// Silent voices are left alone: EnvelopeTable only reaches 0 at its end, so they would not
+// change anyway.
 void GenDecayEnvlopeC(Synthesizer *synth) {
     SoundUnit *soundUnits = synth->SoundUnitList;
-    for (uint32_t i = 0; i < POLY_NUM; i++) {
+    uint32_t k = 0;
+    while (k < synth->activeCount) {
+        const uint32_t i = synth->activeVoices[k];
+        const RenderedNote *rendered = soundUnits[i].renderedNote;
+        if (rendered != 0) {
+            // The envelope is in the samples already; the level is only kept for voice stealing
+            const uint32_t pos = soundUnits[i].renderedPos;
+            if (pos >= rendered->length) {
+                soundUnits[i].envelopeLevel = 0;
+            } else if (pos >= rendered->attackSamples) {
+                uint32_t step = (pos - rendered->attackSamples) / rendered->stepSamples;
+                soundUnits[i].envelopeLevel = EnvelopeTable[step < sizeof(EnvelopeTable) - 2 ?
+                                                            step : sizeof(EnvelopeTable) - 2];
+            }
+            if (soundUnits[i].envelopeLevel == 0) {
+                synth->activeVoices[k] = synth->activeVoices[--synth->activeCount];
+                continue;
+            }
+            k++;
+            continue;
+        }
         if ((soundUnits[i].wavetablePos >> 8) >= soundUnits[i].waveTableAttackLen &&
             soundUnits[i].envelopePos < (sizeof(EnvelopeTable) - 1)) {
             soundUnits[i].envelopeLevel = EnvelopeTable[soundUnits[i].envelopePos];
             soundUnits[i].envelopePos += 1;
+            if (soundUnits[i].envelopeLevel == 0) {
+                // Faded out, the last active voice takes its place
+                synth->activeVoices[k] = synth->activeVoices[--synth->activeCount];
+                continue;
+            }
         }
+        k++;
     }
 }
 
@@ -3,11 +3,19 @@
 
 #include <stdint.h>
 
+// Default polyphony; SynthSetPolyphony() picks anything from POLY_MIN to POLY_MAX
 #define POLY_NUM 32
+#define POLY_MIN 16
+#define POLY_MAX 128
+// Voices cut off by a new note fade out over this many samples, see FadingUnit
+#define STEAL_FADE_SHIFT 6
+#define STEAL_FADE_SAMPLES (1 << STEAL_FADE_SHIFT)
+#define STEAL_FADE_NUM 4
 
 #define NoteOn NoteOnC
 #define GenDecayEnvlope GenDecayEnvlopeC
 #define Synth SynthC
+#define SynthRenderBlock SynthRenderBlockAuto
 
 #if defined(__aarch64__) || defined(__x86_64__)
 #define ADDRESS_TYPE uint64_t
@@ -20,6 +28,25 @@
 extern "C" {
 #endif
 
+// A whole note rendered ahead of time, from the note on until it has decayed to silence. Voices
+// playing one just mix it in instead of synthesizing the note.
+typedef struct _RenderedNote {
+    const int16_t *samples;     // the voice's val >> 8 for every sample
+    uint32_t length;
+    uint32_t attackSamples;     // samples before the envelope starts to decay
+    uint32_t stepSamples;       // samples between envelope steps after that
+} RenderedNote;
+
+// Returns the rendered version of note, or NULL to synthesize it. Called by NoteOnC.
+typedef const RenderedNote *(*RenderedNoteLookup)(void *context, uint8_t note);
+
+struct _Synthesizer;
+
+// Adds the synthesized voices of synth to out[0, frames), which is already cleared. Lets the
+// voices be split across threads with SynthRenderVoices(). Called by SynthRenderBlockAuto.
+typedef void (*SynthVoiceRenderer)(void *context, struct _Synthesizer *synth, int32_t *out,
+                                   uint32_t frames);
+
 typedef struct _SoundUnit {
     uint32_t wavetablePos;
     int16_t *waveTableAddress;
@@ -31,13 +58,39 @@ typedef struct _SoundUnit {
     int32_t val;
     int32_t sampleVal;
     uint32_t envelopeLevel;
+    // Value of Synthesizer.noteCount when the note started, tells the oldest voice
+    uint32_t noteId;
+    // Set when the voice plays a RenderedNote, renderedPos is its next sample
+    const RenderedNote *renderedNote;
+    uint32_t renderedPos;
 } SoundUnit;
 
+// A stolen voice playing on for STEAL_FADE_SAMPLES with a linear fade, so it does not click
+typedef struct _FadingUnit {
+    SoundUnit unit;
+    uint32_t remaining;
+} FadingUnit;
+
 
 typedef struct _Synthesizer {
-    SoundUnit SoundUnitList[POLY_NUM];
+    SoundUnit SoundUnitList[POLY_MAX];
     int32_t mixOut;
     uint32_t lastSoundUnit;
+    // Indices of the voices with envelopeLevel != 0, in no particular order. Added by NoteOnC,
+    // removed by GenDecayEnvlopeC once the envelope reaches 0.
+    uint8_t activeVoices[POLY_MAX];
+    uint32_t activeCount;
+    // Voices in use are SoundUnitList[0, polyphony)
+    uint32_t polyphony;
+    uint32_t noteCount;
+    FadingUnit fadingUnits[STEAL_FADE_NUM];
+    uint32_t fadingCount;
+    // Wavetable increment of every MIDI note at the output sample rate
+    uint32_t noteIncrement[128];
+    RenderedNoteLookup renderedNoteLookup;
+    void *renderedNoteContext;
+    SynthVoiceRenderer voiceRenderer;
+    void *voiceRendererContext;
 } Synthesizer;
 
 typedef struct _SampleInfo {
@@ -61,14 +114,77 @@ typedef struct _InstrumentInfo {
 
 extern void SynthInit(Synthesizer *synth);
 
+// Tunes the notes started from now on for output at sampleRate. SynthInit sets up
+// WAVETABLE_SAMPLE_RATE.
+extern void SynthSetSampleRate(Synthesizer *synth, uint32_t sampleRate);
+
+// Voices beyond the new polyphony that are still sounding are faded out
+extern void SynthSetPolyphony(Synthesizer *synth, uint32_t polyphony);
+
+// Notes started from now on are looked up with lookup first, NULL synthesizes them all.
+// SynthInit clears it.
+extern void SynthSetRenderedNoteLookup(Synthesizer *synth, RenderedNoteLookup lookup, void *context);
+
+// SynthRenderBlockAuto leaves the synthesized voices to renderer, NULL renders them on the
+// calling thread. SynthInit clears it.
+extern void SynthSetVoiceRenderer(Synthesizer *synth, SynthVoiceRenderer renderer, void *context);
+
+// Adds the synthesized voices among activeVoices[begin, end) to out[0, frames), with the kernel
+// SynthSelectRenderKernel() picked. Only those voices are touched, so disjoint ranges can be
+// rendered on different threads at once; the mix is the same in any order.
+extern void SynthRenderVoices(Synthesizer *synth, int32_t *out, uint32_t frames, uint32_t begin,
+                              uint32_t end);
+
+// Adds the stolen voices fading out to out[0, frames), used by every render kernel
+extern void SynthRenderFades(Synthesizer *synth, int32_t *out, uint32_t frames);
+
+// Upper bound of the samples SynthRenderNote() writes for note
+extern uint32_t SynthRenderedNoteMaxLength(const Synthesizer *synth, uint8_t note,
+                                           uint32_t stepSamples);
+
+// Renders note on its own, from the note on until it is silent, with the envelope stepping every
+// stepSamples from the start of the note. scratch must be initialised and have the output rate
+// set; its voices are used up. Returns the number of samples written to out.
+extern uint32_t SynthRenderNote(Synthesizer *scratch, uint8_t note, uint32_t stepSamples,
+                                int16_t *out, uint32_t capacity, uint32_t *attackSamples);
+
+// Adds the voices playing a RenderedNote to out[0, frames); the render kernels skip those voices
+// and call this instead
+extern void SynthMixRenderedNotes(Synthesizer *synth, int32_t *out, uint32_t frames);
+
 //#ifdef RUN_TEST
 extern void NoteOnC(Synthesizer *synth, uint8_t note);
 
 extern void SynthC(Synthesizer *synth);
 
 extern void GenDecayEnvlopeC(Synthesizer *synth);
+
+extern void SynthRenderBlockC(Synthesizer *synth, int32_t *out, uint32_t frames);
+
+extern void SynthRenderVoicesC(Synthesizer *synth, int32_t *out, uint32_t frames, uint32_t begin,
+                               uint32_t end);
 //#endif
 
+// SIMD render kernels, bit-exact with SynthRenderBlockC (SynthKernels.c)
+#if defined(__i386__) || defined(__x86_64__)
+#define SYNTH_HAVE_SSE2_KERNEL 1
+extern void SynthRenderBlockSSE2(Synthesizer *synth, int32_t *out, uint32_t frames);
+extern void SynthRenderVoicesSSE2(Synthesizer *synth, int32_t *out, uint32_t frames,
+                                  uint32_t begin, uint32_t end);
+#elif defined(__aarch64__) || defined(__ARM_NEON) || defined(__ARM_NEON__)
+#define SYNTH_HAVE_NEON_KERNEL 1
+extern void SynthRenderBlockNEON(Synthesizer *synth, int32_t *out, uint32_t frames);
+extern void SynthRenderVoicesNEON(Synthesizer *synth, int32_t *out, uint32_t frames,
+                                  uint32_t begin, uint32_t end);
+#endif
+
+// Picks the fastest kernel the CPU supports for SynthRenderBlockAuto, once. Called by SynthInit.
+extern void SynthSelectRenderKernel(void);
+
+extern const char *SynthRenderKernelName(void);
+
+extern void SynthRenderBlockAuto(Synthesizer *synth, int32_t *out, uint32_t frames);
+
 extern void NoteOnAsm(Synthesizer *synth, uint8_t note);
 
 extern void GenDecayEnvlopeAsm(Synthesizer *synth);
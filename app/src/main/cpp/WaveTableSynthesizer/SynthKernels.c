@@ -0,0 +1,264 @@
+#include <pthread.h>
+#include <stdint.h>
+#include <string.h>
+#include "SynthCore.h"
+#include <logging_macros.h>
+
+#if defined(__i386__) || defined(__x86_64__)
+#include <emmintrin.h>
+#elif defined(__aarch64__) || defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#if !defined(__aarch64__) && defined(__linux__)
+#include <sys/auxv.h>
+#include <asm/hwcap.h>
+#endif
+#endif
+
+/*
+ * SIMD versions of SynthRenderBlockC, four samples of a voice at a time. The table lookups stay
+ * scalar (neither SSE2 nor NEON can gather), the interpolation, envelope and mixing are vector
+ * operations. Every step keeps the integer semantics of SynthC, including the truncation of the
+ * interpolated sample to int16_t, so the output is bit-exact; AlgorithmTest.c checks it.
+ */
+
+typedef void (*SynthRenderBlockFunc)(Synthesizer *synth, int32_t *out, uint32_t frames);
+typedef void (*SynthRenderVoicesFunc)(Synthesizer *synth, int32_t *out, uint32_t frames,
+                                      uint32_t begin, uint32_t end);
+
+// Written once under renderKernelOnce, which also publishes them to every thread passing it:
+// SynthInit runs on the NoteCache worker as well as on the audio thread
+static pthread_once_t renderKernelOnce = PTHREAD_ONCE_INIT;
+static SynthRenderBlockFunc renderBlockKernel = SynthRenderBlockC;
+static SynthRenderVoicesFunc renderVoicesKernel = SynthRenderVoicesC;
+static const char *renderBlockKernelName = "C";
+
+// Positions of the next four samples, advancing and wrapping exactly like SynthC
+static inline void NextPositions(uint32_t *waveTablePos, uint32_t increment, uint32_t waveTableEnd,
+                                 uint32_t waveTableLoopLen, uint32_t pos[4]) {
+    uint32_t p = *waveTablePos;
+    for (uint32_t k = 0; k < 4; k++) {
+        pos[k] = p;
+        p += increment;
+        if (p >= waveTableEnd)
+            p -= waveTableLoopLen;
+    }
+    *waveTablePos = p;
+}
+
+// Scalar rendering of out[from, frames), returns the last val and sets *lastSample
+static inline int32_t RenderTail(const int16_t *pWaveTable, int32_t envelopeLevel,
+                                 uint32_t *waveTablePos, uint32_t increment,
+                                 uint32_t waveTableEnd, uint32_t waveTableLoopLen,
+                                 int32_t *out, uint32_t from, uint32_t frames,
+                                 int16_t *lastSample) {
+    uint32_t p = *waveTablePos;
+    int32_t val = 0;
+    int16_t s1 = 0;
+    for (uint32_t n = from; n < frames; n++) {
+        uint32_t waveTablePosInt = p >> 8;
+        s1 = pWaveTable[waveTablePosInt];
+        int16_t s2 = pWaveTable[waveTablePosInt + 1];
+        int16_t s = s1 + (((s2 - s1) * (p & 0xff)) >> 8);
+        val = envelopeLevel * s;
+        out[n] += val;
+        p += increment;
+        if (p >= waveTableEnd)
+            p -= waveTableLoopLen;
+    }
+    *waveTablePos = p;
+    *lastSample = s1;
+    return val;
+}
+
+// Everything SynthRenderBlockC does around the synthesized voices
+static inline void FinishBlock(Synthesizer *synth, int32_t *out, uint32_t frames) {
+    SynthMixRenderedNotes(synth, out, frames);
+    SynthRenderFades(synth, out, frames);
+    synth->mixOut = out[frames - 1];
+}
+
+#if defined(__i386__) || defined(__x86_64__)
+
+// _mm_mullo_epi32 is SSE4.1; the low 32 bits of the product are the same for signed operands
+__attribute__((target("sse2")))
+static inline __m128i MulLo32SSE2(__m128i a, __m128i b) {
+    __m128i even = _mm_mul_epu32(a, b);
+    __m128i odd = _mm_mul_epu32(_mm_srli_epi64(a, 32), _mm_srli_epi64(b, 32));
+    return _mm_unpacklo_epi32(_mm_shuffle_epi32(even, _MM_SHUFFLE(0, 0, 2, 0)),
+                              _mm_shuffle_epi32(odd, _MM_SHUFFLE(0, 0, 2, 0)));
+}
+
+void SynthRenderBlockSSE2(Synthesizer *synth, int32_t *out, uint32_t frames) {
+    if (frames == 0)
+        return;
+    memset(out, 0, frames * sizeof(int32_t));
+    SynthRenderVoicesSSE2(synth, out, frames, 0, synth->activeCount);
+    FinishBlock(synth, out, frames);
+}
+
+__attribute__((target("sse2")))
+void SynthRenderVoicesSSE2(Synthesizer *synth, int32_t *out, uint32_t frames, uint32_t begin,
+                          uint32_t end) {
+    SoundUnit *soundUnits = synth->SoundUnitList;
+
+    if (frames == 0)
+        return;
+    for (uint32_t k = begin; k < end; k++) {
+        const uint32_t i = synth->activeVoices[k];
+        if (soundUnits[i].renderedNote != 0)
+            continue;
+        const int16_t *pWaveTable = soundUnits[i].waveTableAddress;
+        const int32_t envelopeLevel = (int32_t) soundUnits[i].envelopeLevel;
+        const uint32_t increment = soundUnits[i].increment;
+        const uint32_t waveTableEnd = soundUnits[i].waveTableLen << 8;
+        const uint32_t waveTableLoopLen = soundUnits[i].waveTableLoopLen << 8;
+        const __m128i envelope = _mm_set1_epi32(envelopeLevel);
+        const __m128i fracMask = _mm_set1_epi32(0xff);
+        uint32_t waveTablePos = soundUnits[i].wavetablePos;
+        uint32_t pos[4];
+        uint32_t n = 0;
+        int16_t s1;
+
+        // The last sample always goes through the scalar tail, which leaves val and sampleVal
+        for (; n + 4 < frames; n += 4) {
+            NextPositions(&waveTablePos, increment, waveTableEnd, waveTableLoopLen, pos);
+            __m128i p = _mm_set_epi32((int32_t) pos[3], (int32_t) pos[2], (int32_t) pos[1],
+                                      (int32_t) pos[0]);
+            __m128i a = _mm_set_epi32(pWaveTable[pos[3] >> 8], pWaveTable[pos[2] >> 8],
+                                      pWaveTable[pos[1] >> 8], pWaveTable[pos[0] >> 8]);
+            __m128i b = _mm_set_epi32(pWaveTable[(pos[3] >> 8) + 1], pWaveTable[(pos[2] >> 8) + 1],
+                                      pWaveTable[(pos[1] >> 8) + 1], pWaveTable[(pos[0] >> 8) + 1]);
+            __m128i frac = _mm_and_si128(p, fracMask);
+            __m128i s = _mm_add_epi32(a, _mm_srai_epi32(MulLo32SSE2(_mm_sub_epi32(b, a), frac), 8));
+            // Wrap to int16_t like the assignment in SynthC
+            s = _mm_srai_epi32(_mm_slli_epi32(s, 16), 16);
+            __m128i mixed = _mm_add_epi32(_mm_loadu_si128((const __m128i *) (out + n)),
+                                          MulLo32SSE2(envelope, s));
+            _mm_storeu_si128((__m128i *) (out + n), mixed);
+        }
+        soundUnits[i].val = RenderTail(pWaveTable, envelopeLevel, &waveTablePos, increment,
+                                       waveTableEnd, waveTableLoopLen, out, n, frames, &s1);
+        soundUnits[i].sampleVal = s1;
+        soundUnits[i].wavetablePos = waveTablePos;
+    }
+}
+
+#elif defined(__aarch64__) || defined(__ARM_NEON) || defined(__ARM_NEON__)
+
+void SynthRenderBlockNEON(Synthesizer *synth, int32_t *out, uint32_t frames) {
+    if (frames == 0)
+        return;
+    memset(out, 0, frames * sizeof(int32_t));
+    SynthRenderVoicesNEON(synth, out, frames, 0, synth->activeCount);
+    FinishBlock(synth, out, frames);
+}
+
+void SynthRenderVoicesNEON(Synthesizer *synth, int32_t *out, uint32_t frames, uint32_t begin,
+                          uint32_t end) {
+    SoundUnit *soundUnits = synth->SoundUnitList;
+
+    if (frames == 0)
+        return;
+    for (uint32_t k = begin; k < end; k++) {
+        const uint32_t i = synth->activeVoices[k];
+        if (soundUnits[i].renderedNote != 0)
+            continue;
+        const int16_t *pWaveTable = soundUnits[i].waveTableAddress;
+        const int32_t envelopeLevel = (int32_t) soundUnits[i].envelopeLevel;
+        const uint32_t increment = soundUnits[i].increment;
+        const uint32_t waveTableEnd = soundUnits[i].waveTableLen << 8;
+        const uint32_t waveTableLoopLen = soundUnits[i].waveTableLoopLen << 8;
+        const int32x4_t envelope = vdupq_n_s32(envelopeLevel);
+        const uint32x4_t fracMask = vdupq_n_u32(0xff);
+        uint32_t waveTablePos = soundUnits[i].wavetablePos;
+        uint32_t pos[4];
+        int32_t a[4];
+        int32_t b[4];
+        uint32_t n = 0;
+        int16_t s1;
+
+        // The last sample always goes through the scalar tail, which leaves val and sampleVal
+        for (; n + 4 < frames; n += 4) {
+            NextPositions(&waveTablePos, increment, waveTableEnd, waveTableLoopLen, pos);
+            for (uint32_t k = 0; k < 4; k++) {
+                a[k] = pWaveTable[pos[k] >> 8];
+                b[k] = pWaveTable[(pos[k] >> 8) + 1];
+            }
+            int32x4_t va = vld1q_s32(a);
+            int32x4_t vb = vld1q_s32(b);
+            int32x4_t frac = vreinterpretq_s32_u32(vandq_u32(vld1q_u32(pos), fracMask));
+            int32x4_t s = vaddq_s32(va, vshrq_n_s32(vmulq_s32(vsubq_s32(vb, va), frac), 8));
+            // Wrap to int16_t like the assignment in SynthC
+            s = vshrq_n_s32(vshlq_n_s32(s, 16), 16);
+            vst1q_s32(out + n, vmlaq_s32(vld1q_s32(out + n), envelope, s));
+        }
+        soundUnits[i].val = RenderTail(pWaveTable, envelopeLevel, &waveTablePos, increment,
+                                       waveTableEnd, waveTableLoopLen, out, n, frames, &s1);
+        soundUnits[i].sampleVal = s1;
+        soundUnits[i].wavetablePos = waveTablePos;
+    }
+}
+
+#endif
+
+static void SelectRenderKernel(void) {
+    SynthRenderBlockFunc kernel = SynthRenderBlockC;
+    SynthRenderVoicesFunc voicesKernel = SynthRenderVoicesC;
+    const char *name = "C";
+#if defined(__i386__) || defined(__x86_64__)
+    __builtin_cpu_init();
+    if (__builtin_cpu_supports("sse2")) {
+        kernel = SynthRenderBlockSSE2;
+        voicesKernel = SynthRenderVoicesSSE2;
+        name = "SSE2";
+    }
+#elif defined(__aarch64__)
+    // Advanced SIMD is mandatory on ARMv8-A
+    kernel = SynthRenderBlockNEON;
+    voicesKernel = SynthRenderVoicesNEON;
+    name = "NEON";
+#elif defined(__ARM_NEON) || defined(__ARM_NEON__)
+#if defined(__linux__)
+    if (getauxval(AT_HWCAP) & HWCAP_NEON)
+#endif
+    {
+        kernel = SynthRenderBlockNEON;
+        voicesKernel = SynthRenderVoicesNEON;
+        name = "NEON";
+    }
+#endif
+    renderVoicesKernel = voicesKernel;
+    renderBlockKernel = kernel;
+    renderBlockKernelName = name;
+    LOGD("Synth render kernel: %s", name);
+}
+
+void SynthSelectRenderKernel(void) {
+    pthread_once(&renderKernelOnce, SelectRenderKernel);
+}
+
+const char *SynthRenderKernelName(void) {
+    SynthSelectRenderKernel();
+    return renderBlockKernelName;
+}
+
+void SynthRenderBlockAuto(Synthesizer *synth, int32_t *out, uint32_t frames) {
+    SynthSelectRenderKernel();
+    if (synth->voiceRenderer == 0) {
+        renderBlockKernel(synth, out, frames);
+        return;
+    }
+    if (frames == 0)
+        return;
+    memset(out, 0, frames * sizeof(int32_t));
+    synth->voiceRenderer(synth->voiceRendererContext, synth, out, frames);
+    FinishBlock(synth, out, frames);
+}
+
+void SynthRenderVoices(Synthesizer *synth, int32_t *out, uint32_t frames, uint32_t begin,
+                       uint32_t end) {
+    if (frames == 0)
+        return;
+    SynthSelectRenderKernel();
+    renderVoicesKernel(synth, out, frames, begin, end);
+}
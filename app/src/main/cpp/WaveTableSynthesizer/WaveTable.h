@@ -7,6 +7,11 @@
 #define WAVETABLE_ATTACK_LEN 5290
 #define WAVETABLE_LOOP_LEN 121
 #define WAVETABLE_ACTUAL_LEN 5412
+// WaveTable_Increment is for this output rate; SynthSetSampleRate() works out the others
+#define WAVETABLE_SAMPLE_RATE 32000
+// Increment of A4 (note 69) at WAVETABLE_SAMPLE_RATE before rounding down. Note n steps by
+// WAVETABLE_A4_INCREMENT * 2^((n - 69) / 12) in 8.8 fixed point
+#define WAVETABLE_A4_INCREMENT 427.8725
 
 #ifndef __ASSEMBLER__
 #include <stdint.h>
@@ -4,12 +4,23 @@
 #include <array>
 #include <TappableAudioSource.h>
 #include <MonoToStereo.h>
+#include <CallbackTelemetry.h>
+#include <PlaybackClock.h>
 #include <Player.h>
+#include <trace.h>
 #include "LockFreeQueue.h"
+#include "NoteCache.h"
+#include "VoiceRenderPool.h"
 #include "PinnedSnapshot.h"
 #include "AudioVisualCalc.h"
 
+#include <algorithm>
+#include <bitset>
+#include <chrono>
 #include <cstdint>
+#include <memory>
+#include <mutex>
+#include <vector>
 
 struct SynthEvent {
     enum Type : uint8_t {
@@ -20,6 +31,14 @@ struct SynthEvent {
     uint8_t note;
 };
 
+struct EventQueueStats {
+    int64_t capacity;
+    // Most events ever waiting in the queue at once
+    int64_t highWaterMark;
+    // Events lost because the queue was full
+    int64_t droppedEvents;
+};
+
 
 
 
@@ -28,6 +47,15 @@ extern "C" void pushAudio(const float *data);
 
 
 class WaveTableSynthesizerSource : public IRenderableAudio {
+    using EventQueue = LockFreeQueue<SynthEvent>;
+
+    // A loaded score, owned by whichever side holds it: the control side until the audio thread
+    // takes it, the audio thread while it plays, and the control side again once retired
+    struct Score {
+        std::vector<uint8_t> bytes;
+        uint32_t ticksPerSecond;
+    };
+
 public:
 
     PinnedSnapshot<AudioBlock> visualInputSnapshot;
@@ -36,12 +64,40 @@ public:
         mChannelCount = channelCount;
         mSampleRate = sampleRate;
         PlayerInit(&player);
+        PlayerSetSampleRate(&player, (uint32_t) sampleRate);
+        noteCache.reset(new NoteCache((uint32_t) sampleRate, player.decayInterval, framePosition));
+    }
+
+    virtual ~WaveTableSynthesizerSource() {
+        delete pendingScore.exchange(nullptr, std::memory_order_acquire);
+        freeRetiredScores();
     }
 
     // 主线程或 MIDI 线程调用
     void postNoteOn(uint8_t note) {
+        std::lock_guard<std::mutex> lock(producerMutex);
         SynthEvent evt{SynthEvent::NoteOn, note};
-        eventQueue.push(evt);
+        if (eventQueue.push(evt))
+            highWaterMark = std::max(highWaterMark, eventQueue.size());
+        else
+            droppedEvents++;
+    }
+
+    EventQueueStats getEventQueueStats() {
+        std::lock_guard<std::mutex> lock(producerMutex);
+        return EventQueueStats{
+                static_cast<int64_t>(eventQueue.capacity()),
+                static_cast<int64_t>(highWaterMark),
+                droppedEvents};
+    }
+
+    // Frames rendered since the source was created, i.e. the frame time of the next buffer
+    int64_t getFramePosition() const {
+        return framePosition.load(std::memory_order_acquire);
+    }
+
+    int32_t getSampleRate() const {
+        return mSampleRate;
     }
 
     void noteOn(uint8_t note) {
@@ -52,34 +108,196 @@ public:
         PlayerResetSynthesizer(&player);
     }
 
+    // Score playback, see Player.h for the format. These only publish what the player should do
+    // and never wait for the audio thread, which picks it up at the start of its next buffer;
+    // it never waits for them either.
+
+    // Copies the score, which must end with the 0xFF marker. Playback waits for playScore().
+    bool loadScore(const uint8_t *score, size_t length, uint32_t ticksPerSecond) {
+        if (length == 0 || score[length - 1] != 0xFF || ticksPerSecond == 0)
+            return false;
+        std::unique_ptr<Score> next(new Score{std::vector<uint8_t>(score, score + length),
+                                              ticksPerSecond});
+        const std::bitset<128> notes = findScoreNotes(next->bytes);
+        std::lock_guard<std::mutex> lock(controlMutex);
+        scoreNotes = notes;
+        scoreLoaded = true;
+        publishControl(false, true, 0);
+        // Replaces a score the audio thread has not taken yet
+        delete pendingScore.exchange(next.release(), std::memory_order_acq_rel);
+        freeRetiredScores();
+        requestScoreNotes();
+        return true;
+    }
+
+    void playScore() {
+        std::lock_guard<std::mutex> lock(controlMutex);
+        if (scoreLoaded)
+            publishControl(true, false, 0);
+    }
+
+    // Stops and rewinds to the beginning
+    void stopScore() {
+        std::lock_guard<std::mutex> lock(controlMutex);
+        if (scoreLoaded)
+            publishControl(false, true, 0);
+    }
+
+    void seekScore(uint32_t scoreTick) {
+        std::lock_guard<std::mutex> lock(controlMutex);
+        if (scoreLoaded)
+            publishControl((control & kControlPlaying) != 0, true, scoreTick);
+    }
+
+    void setTranspose(int32_t semitones) {
+        transpose.store(semitones, std::memory_order_relaxed);
+        std::lock_guard<std::mutex> lock(controlMutex);
+        requestScoreNotes();
+    }
+
+    // Play notes from whole notes rendered ahead of time, keeping up to maxBytes of them; 0 goes
+    // back to synthesizing every voice. Trades memory for much less work per voice.
+    void setNoteCacheSize(size_t maxBytes) {
+        noteCache->setMaxBytes(maxBytes);
+        std::lock_guard<std::mutex> lock(controlMutex);
+        requestScoreNotes();
+    }
+
+    // Report the voices and events of every buffer to telemetry, which must outlive this source.
+    // Set before the source goes to the callback.
+    void setTelemetry(CallbackTelemetry *telemetry) {
+        this->telemetry = telemetry;
+    }
+
+    // Record where every buffer starts, on the frame clock and in the score, in clock, which
+    // must outlive this source. Set before the source goes to the callback.
+    void setPlaybackClock(PlaybackClock *clock) {
+        playbackClock = clock;
+    }
+
+    // Split the voices across worker threads pinned to cpuIds when rendering them on the audio
+    // thread alone takes too long, see VoiceRenderPool
+    void setMultiThreadedRendering(bool enabled, const std::vector<int> &cpuIds) {
+        voicePool.setEnabled(enabled, cpuIds);
+    }
+
+    // Voices the synthesizer may use, POLY_MIN to POLY_MAX. Applied by the audio thread at the
+    // start of the next buffer; notes beyond the new limit fade out.
+    void setPolyphony(int32_t voices) {
+        polyphony.store(static_cast<uint32_t>(std::min(std::max(voices, POLY_MIN), POLY_MAX)),
+                        std::memory_order_relaxed);
+    }
+
+    // Take over the score, its position and the frame clock from the source this one replaces.
+    // The old source's stream must be closed and this one not handed to a stream yet, so both
+    // audio threads' state can be moved here.
+    void adoptPlayback(WaveTableSynthesizerSource &other) {
+        // Frame times handed out by the old source stay meaningful
+        framePosition.store(other.getFramePosition(), std::memory_order_release);
+
+        std::lock(controlMutex, other.controlMutex);
+        std::lock_guard<std::mutex> lock(controlMutex, std::adopt_lock);
+        std::lock_guard<std::mutex> otherLock(other.controlMutex, std::adopt_lock);
+        transpose.store(other.transpose.load(std::memory_order_relaxed),
+                        std::memory_order_relaxed);
+        polyphony.store(other.polyphony.load(std::memory_order_relaxed),
+                        std::memory_order_relaxed);
+        noteCache->setMaxBytes(other.noteCache->getMaxBytes());
+        voicePool.setEnabled(other.voicePool.isEnabled(), other.voicePool.getCpuIds());
+        other.freeRetiredScores();
+        scoreLoaded = other.scoreLoaded;
+        scoreNotes = other.scoreNotes;
+        control = other.control;
+        scoreControl.store(control, std::memory_order_relaxed);
+        pendingScore.store(other.pendingScore.exchange(nullptr, std::memory_order_acquire),
+                           std::memory_order_release);
+        if (other.playingScore) {
+            // The score's bytes move along, so the player's pointers stay valid
+            playingScore = std::move(other.playingScore);
+            appliedControl = other.appliedControl;
+            const uint32_t scoreTick = other.player.lastScoreTick;
+            const uint32_t status = other.player.status;
+            PlayerSetScore(&player, playingScore->bytes.data(), playingScore->ticksPerSecond);
+            PlayerSeek(&player, scoreTick);
+            // Playing, waiting or played to the end, it carries on the same
+            player.status = status;
+        }
+        requestScoreNotes();
+    }
+
     // From IRenderableAudio
     void renderAudio(float *audioData, int32_t numFrames) override {
+        ScopedTrace trace("renderAudio");
 
         SynthEvent evt;
+        const int64_t firstFrame = framePosition.load(std::memory_order_relaxed);
+        applyScoreControl();
+        player.transpose = transpose.load(std::memory_order_relaxed);
+        const uint32_t voices = polyphony.load(std::memory_order_relaxed);
+        if (player.mainSynthesizer.polyphony != voices)
+            SynthSetPolyphony(&player.mainSynthesizer, voices);
+        const RenderedNoteLookup lookup = noteCache->isEnabled() ? NoteCache::lookup : nullptr;
+        if (player.mainSynthesizer.renderedNoteLookup != lookup)
+            SynthSetRenderedNoteLookup(&player.mainSynthesizer, lookup, noteCache.get());
+        const bool timed = voicePool.isEnabled();
+        const auto renderStart = timed ? std::chrono::steady_clock::now()
+                                       : std::chrono::steady_clock::time_point();
+        const SynthVoiceRenderer renderer = voicePool.beginBuffer() ? VoiceRenderPool::render
+                                                                    : nullptr;
+        if (player.mainSynthesizer.voiceRenderer != renderer)
+            SynthSetVoiceRenderer(&player.mainSynthesizer, renderer, &voicePool);
+        if (playbackClock != nullptr) {
+            if (!playingScore)
+                playbackClock->recordBuffer(firstFrame, -1, false, false);
+            else
+                playbackClock->recordBuffer(firstFrame, player.currentTick,
+                                            player.status == STATUS_PLAYING, isScoreFinished());
+        }
 
-
-        for (int i = 0; i < numFrames; ++i) {
-            while (eventQueue.pop(evt)) {
+        // Render in runs of up to kMixBlockFrames, taking the events posted meanwhile before each;
+        // PlayerRenderBlock cuts them further at envelope steps and score notes. The output
+        // matches the per-sample path (Player32kProc + PlayerProcess) bit for bit, see
+        // TestRenderBlock in AlgorithmTest.c.
+        uint32_t eventsApplied = 0;
+        uint32_t peakVoices = player.mainSynthesizer.activeCount;
+        int i = 0;
+        while (i < numFrames) {
+            while (takeEvent(evt)) {
                 if (evt.type == SynthEvent::NoteOn) {
+                    ScopedTrace noteTrace("NoteOn");
                     NoteOn(&player.mainSynthesizer, evt.note);
                 }
+                eventsApplied++;
             }
-            Player32kProc(&player);
-            audioData[i] = (float) (player.mainSynthesizer.mixOut >> 8) / (float) 32768 * 0.5;
-
-            // ======== 频谱 tap（新增） ========
-            pcmSamples[rawPCMTapPtr++] = audioData[i];
-            if (rawPCMTapPtr == AUDIO_BLOCK) {
-                auto *block = visualInputSnapshot.beginWrite();
-                memcpy(block->samples, pcmSamples, sizeof(block->samples));
-                visualInputSnapshot.endWrite(block);
-                rawPCMTapPtr = 0;
+            const int n = numFrames - i < kMixBlockFrames ? numFrames - i : kMixBlockFrames;
+            PlayerRenderBlock(&player, mixBlock, static_cast<uint32_t>(n), playingScore ? 1 : 0);
+            peakVoices = std::max(peakVoices, player.mainSynthesizer.activeCount);
+            for (int k = 0; k < n; k++) {
+                audioData[i + k] = (float) (mixBlock[k] >> 8) / (float) 32768 * 0.5;
+
+                // ======== 频谱 tap（新增） ========
+                pcmSamples[rawPCMTapPtr++] = audioData[i + k];
+                if (rawPCMTapPtr == AUDIO_BLOCK) {
+                    auto *block = visualInputSnapshot.beginWrite();
+                    memcpy(block->samples, pcmSamples, sizeof(block->samples));
+                    visualInputSnapshot.endWrite(block);
+                    rawPCMTapPtr = 0;
+                }
+                // =================================
             }
-            // =================================
-            PlayerProcess(&player);
+            i += n;
         }
 
 
+        framePosition.store(firstFrame + numFrames, std::memory_order_release);
+        if (telemetry != nullptr)
+            telemetry->recordRender(peakVoices, eventsApplied);
+        if (timed) {
+            const auto renderNanos = std::chrono::duration_cast<std::chrono::nanoseconds>(
+                    std::chrono::steady_clock::now() - renderStart).count();
+            voicePool.endBuffer(renderNanos, int64_t(numFrames) * 1000000000 / mSampleRate);
+        }
+
         constexpr int kChannelCountStereo = 2;
         // We assume that audioData has sufficient frames to hold the stereo output, so copy each
         // frame in the input to the output twice, working our way backwards through the input array
@@ -92,15 +310,160 @@ public:
         }
     };
 
-    virtual ~WaveTableSynthesizerSource() {
+private:
+    // The player drops to STATUS_STOP on the end marker of the score, the song is over once the
+    // notes it left ringing have faded out as well. Audio thread, with a score.
+    bool isScoreFinished() const {
+        return player.status == STATUS_STOP && player.mainSynthesizer.activeCount == 0;
+    }
+
+    // Control side, under controlMutex: the player should be playing or not, and if move is set,
+    // be at scoreTick
+    void publishControl(bool playing, bool move, uint32_t scoreTick) {
+        const control_t moves = control & ~(kControlPlaying | kControlTickMask);
+        control_t next;
+        if (move)
+            next = ((moves + kControlMoveStep) & ~(kControlPlaying | kControlTickMask)) | scoreTick;
+        else
+            next = moves | (control & kControlTickMask);
+        control = playing ? next | kControlPlaying : next;
+        scoreControl.store(control, std::memory_order_release);
+    }
+
+    // Audio thread: take up the score and what was published for it since the last buffer
+    void applyScoreControl() {
+        // Taken before the control word: a score always comes with the word published with it
+        Score *next = pendingScore.exchange(nullptr, std::memory_order_acq_rel);
+        if (next != nullptr) {
+            if (playingScore) {
+                // Freed by the control side. It drains the retired scores before publishing a
+                // new one, so there is never more than one waiting and the push cannot fail
+                Score *previous = playingScore.release();
+                if (!retiredScores.push(previous))
+                    delete previous;
+            }
+            playingScore.reset(next);
+            PlayerSetScore(&player, next->bytes.data(), next->ticksPerSecond);
+            // Apply the position again, it may have been applied to the previous score
+            appliedControl = ~control_t(0);
+        }
+        if (!playingScore)
+            return;
+        const control_t word = scoreControl.load(std::memory_order_acquire);
+        if ((word & ~kControlPlaying) != (appliedControl & ~kControlPlaying)) {
+            PlayerSeek(&player, static_cast<uint32_t>(word & kControlTickMask));
+            // Moved away from the end, or rewound by a stop
+            if (player.status == STATUS_STOP)
+                player.status = STATUS_REDAY_TO_PLAY;
+        }
+        appliedControl = word;
+        if (word & kControlPlaying)
+            PlayerStart(&player);
+        else if (player.status == STATUS_PLAYING)
+            player.status = STATUS_REDAY_TO_PLAY;
+    }
+
+    // Control side, under controlMutex
+    void freeRetiredScores() {
+        Score *retired;
+        while (retiredScores.pop(retired))
+            delete retired;
+    }
+
+    // Distinct notes of a score, untransposed
+    static std::bitset<128> findScoreNotes(const std::vector<uint8_t> &score) {
+        std::bitset<128> notes;
+        size_t i = 0;
+        while (i < score.size()) {
+            // Delta: 0xFF bytes closed by a smaller one, then a group or the end marker
+            while (i < score.size() && score[i] == 0xFF)
+                i++;
+            i++;
+            if (i >= score.size() || score[i] == 0xFF)
+                break;
+            uint8_t b;
+            do {
+                b = score[i++];
+                notes.set(b & 0x7F);
+            } while ((b & 0x80) == 0 && i < score.size());
+        }
+        return notes;
+    }
+
+    // Has the note cache render the notes of the loaded score, as transposed now. Called with
+    // controlMutex held.
+    void requestScoreNotes() {
+        if (!noteCache->isEnabled() || !scoreLoaded)
+            return;
+        const int32_t semitones = transpose.load(std::memory_order_relaxed);
+        for (int32_t n = 0; n < 128; n++) {
+            const int32_t note = n + semitones;
+            if (scoreNotes.test(static_cast<size_t>(n)) && note >= 0 && note <= 127)
+                noteCache->request(static_cast<uint8_t>(note));
+        }
+    }
+
+    // Next queued event, in the order posted
+    bool takeEvent(SynthEvent &evt) {
+        if (stagedPos == stagedCount && !refillStagedEvents())
+            return false;
+        evt = stagedEvents[stagedPos++];
+        return true;
+    }
+
+    // Audio thread only
+    bool refillStagedEvents() {
+        stagedPos = 0;
+        stagedCount = eventQueue.popN(stagedEvents, kStagedEvents);
+        return stagedCount != 0;
     }
 
-private:
     // Rendering objects
     int mChannelCount;
     int mSampleRate;
     Player player;
-    LockFreeQueue<SynthEvent, 32> eventQueue;
+    // Live notes only, the score's notes never go through the queue
+    static constexpr size_t kEventQueueCapacity = 256;
+    // The queue takes a single producer, this serialises them. Also guards the fields below
+    // that only producers touch
+    std::mutex producerMutex;
+    EventQueue eventQueue{kEventQueueCapacity};
+    size_t highWaterMark = 0;
+    int64_t droppedEvents = 0;
+    // Popped from the queue in batches, audio thread only
+    static constexpr size_t kStagedEvents = 16;
+    SynthEvent stagedEvents[kStagedEvents];
+    size_t stagedCount = 0;
+    size_t stagedPos = 0;
+    std::atomic<int64_t> framePosition{0};
+    // Score control word: bit 63 playing, a counter above bit 32 that moves on with every
+    // seek, stop or load, and the score tick to be at in the low 32 bits
+    using control_t = uint64_t;
+    static constexpr control_t kControlPlaying = control_t(1) << 63;
+    static constexpr control_t kControlMoveStep = control_t(1) << 32;
+    static constexpr control_t kControlTickMask = kControlMoveStep - 1;
+    // Serialises the control side, and guards the fields below up to scoreControl
+    std::mutex controlMutex;
+    bool scoreLoaded = false;
+    std::bitset<128> scoreNotes;
+    control_t control = 0;
+    std::atomic<control_t> scoreControl{0};
+    // Loaded, waiting for the audio thread to take it
+    std::atomic<Score *> pendingScore{nullptr};
+    // Replaced by the audio thread, waiting for the control side to free them
+    LockFreeQueue<Score *> retiredScores{4};
+    // Audio thread only
+    std::unique_ptr<Score> playingScore;
+    control_t appliedControl = 0;
+    std::atomic<int32_t> transpose{0};
+    std::atomic<uint32_t> polyphony{POLY_NUM};
+    std::unique_ptr<NoteCache> noteCache;
+    VoiceRenderPool voicePool;
+    CallbackTelemetry *telemetry = nullptr;
+    PlaybackClock *playbackClock = nullptr;
+    // Longest run rendered in one go, bounds the mix buffer
+    static constexpr int kMixBlockFrames = 256;
+    int32_t mixBlock[kMixBlockFrames];
     float pcmSamples[AUDIO_BLOCK];
     int rawPCMTapPtr = 0;
 };
@@ -16,13 +16,14 @@
  */
 #ifndef __SAMPLE_ANDROID_DEBUG_H__
 #define __SAMPLE_ANDROID_DEBUG_H__
-#include <android/log.h>
 
-#if 1
 #ifndef MODULE_NAME
 #define MODULE_NAME  "com.yuan.music_box"
 #endif
 
+#if defined(__ANDROID__)
+#include <android/log.h>
+
 #define LOGV(...) __android_log_print(ANDROID_LOG_VERBOSE, MODULE_NAME, __VA_ARGS__)
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, MODULE_NAME, __VA_ARGS__)
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, MODULE_NAME, __VA_ARGS__)
@@ -31,6 +32,21 @@
 #define LOGF(...) __android_log_print(ANDROID_LOG_FATAL,MODULE_NAME, __VA_ARGS__)
 
 #define ASSERT(cond, ...) if (!(cond)) {__android_log_assert(#cond, MODULE_NAME, __VA_ARGS__);}
+#elif !defined(NDEBUG) || defined(HOST_LOGGING)
+// Host builds, e.g. AlgorithmTest: log to stderr
+#include <stdio.h>
+#include <stdlib.h>
+
+#define HOST_LOG(level, ...) (fprintf(stderr, "%s/" MODULE_NAME ": ", level), \
+                              fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+#define LOGV(...) HOST_LOG("V", __VA_ARGS__)
+#define LOGD(...) HOST_LOG("D", __VA_ARGS__)
+#define LOGI(...) HOST_LOG("I", __VA_ARGS__)
+#define LOGW(...) HOST_LOG("W", __VA_ARGS__)
+#define LOGE(...) HOST_LOG("E", __VA_ARGS__)
+#define LOGF(...) HOST_LOG("F", __VA_ARGS__)
+
+#define ASSERT(cond, ...) if (!(cond)) {HOST_LOG("F", __VA_ARGS__); abort();}
 #else
 
 #define LOGV(...)
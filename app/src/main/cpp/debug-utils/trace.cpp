@@ -14,72 +14,186 @@
  * limitations under the License.
  */
 
-#include <dlfcn.h>
 #include "logging_macros.h"
+#include <cstdarg>
 #include <cstdio>
 #include "trace.h"
 
 static const int TRACE_MAX_SECTION_NAME_LENGTH = 100;
 
+int gTraceEnabled = 0;
+
+#if defined(__ANDROID__)
+
+#include <atomic>
+#include <dlfcn.h>
+#include <mutex>
+
 // Tracing functions
-static void *(*ATrace_beginSection)(const char *sectionName);
+typedef void (*fp_ATrace_beginSection)(const char *sectionName);
 
-static void *(*ATrace_endSection)(void);
+typedef void (*fp_ATrace_endSection)(void);
 
-static bool *(*ATrace_isEnabled)(void);
+static std::atomic<fp_ATrace_beginSection> ATrace_beginSection{nullptr};
 
-typedef void *(*fp_ATrace_beginSection)(const char *sectionName);
+static std::atomic<fp_ATrace_endSection> ATrace_endSection{nullptr};
 
-typedef void *(*fp_ATrace_endSection)(void);
+static std::once_flag initialized;
 
-typedef bool *(*fp_ATrace_isEnabled)(void);
+void Trace::initialize() {
 
-bool Trace::is_enabled_ = false;
-bool Trace::has_error_been_shown_ = false;
+  std::call_once(initialized, [] {
+    // Using dlsym allows us to use tracing on API 21+ without needing android/trace.h which
+    // wasn't published until API 23
+    void *lib = dlopen("libandroid.so", RTLD_NOW | RTLD_LOCAL);
+    if (lib == nullptr) {
+      LOGE("Could not open libandroid.so to dynamically load tracing symbols");
+    } else {
+      ATrace_beginSection.store(
+          reinterpret_cast<fp_ATrace_beginSection>(dlsym(lib, "ATrace_beginSection")),
+          std::memory_order_release);
+      ATrace_endSection.store(
+          reinterpret_cast<fp_ATrace_endSection>(dlsym(lib, "ATrace_endSection")),
+          std::memory_order_release);
+    }
+  });
+}
 
-void Trace::beginSection(const char *fmt, ...) {
+void TraceSetEnabled(int enabled) {
 
-  if (is_enabled_) {
-    static char buff[TRACE_MAX_SECTION_NAME_LENGTH];
-    va_list args;
-    va_start(args, fmt);
-    vsprintf(buff, fmt, args);
-    va_end(args);
-    ATrace_beginSection(buff);
-  } else if (!has_error_been_shown_) {
-    LOGE("Tracing is either not initialized (call Trace::initialize()) "
-         "or not supported on this device");
-    has_error_been_shown_ = true;
+  if (enabled) {
+    Trace::initialize();
+    if (ATrace_beginSection.load(std::memory_order_acquire) == nullptr ||
+        ATrace_endSection.load(std::memory_order_acquire) == nullptr) {
+      LOGE("Tracing is not supported on this device");
+      enabled = 0;
+    }
   }
+  __atomic_store_n(&gTraceEnabled, enabled ? 1 : 0, __ATOMIC_RELAXED);
 }
 
-void Trace::endSection() {
+void TraceBeginSection(const char *name) {
+
+  ATrace_beginSection.load(std::memory_order_acquire)(name);
+}
+
+void TraceEndSection(void) {
+
+  ATrace_endSection.load(std::memory_order_acquire)();
+}
+
+#else
+
+// Host builds, e.g. AlgorithmTest: write the sections to the file named by the TRACE_FILE
+// environment variable, trace.json by default, in the JSON array format of the Chrome trace
+// event format
+
+#include <chrono>
+#include <cstdlib>
+#include <mutex>
+
+static std::mutex traceMutex;
+
+static FILE *traceFile = nullptr;
+
+static bool traceHasEvents = false;
+
+static int traceNextThreadId = 1;
+
+static thread_local int traceThreadId = 0;
+
+static const std::chrono::steady_clock::time_point traceStart = std::chrono::steady_clock::now();
+
+static void closeTraceFile() {
 
-  if (is_enabled_) {
-    ATrace_endSection();
+  std::lock_guard<std::mutex> lock(traceMutex);
+  if (traceFile != nullptr) {
+    fputs("\n]\n", traceFile);
+    fclose(traceFile);
+    traceFile = nullptr;
   }
 }
 
+static void writeTraceEvent(char phase, const char *name) {
+
+  const double micros = std::chrono::duration<double, std::micro>(
+      std::chrono::steady_clock::now() - traceStart).count();
+  std::lock_guard<std::mutex> lock(traceMutex);
+  if (traceFile == nullptr)
+    return;
+  if (traceThreadId == 0)
+    traceThreadId = traceNextThreadId++;
+  fprintf(traceFile, "%s{\"ph\":\"%c\",\"ts\":%.3f,\"pid\":1,\"tid\":%d",
+          traceHasEvents ? ",\n" : "", phase, micros, traceThreadId);
+  if (name != nullptr) {
+    fputs(",\"name\":\"", traceFile);
+    for (const char *c = name; *c != '\0'; c++) {
+      if (*c == '"' || *c == '\\')
+        fputc('\\', traceFile);
+      if (static_cast<unsigned char>(*c) >= 0x20)
+        fputc(*c, traceFile);
+    }
+    fputc('"', traceFile);
+  }
+  fputc('}', traceFile);
+  traceHasEvents = true;
+}
+
 void Trace::initialize() {
 
-  // Using dlsym allows us to use tracing on API 21+ without needing android/trace.h which wasn't
-  // published until API 23
-  void *lib = dlopen("libandroid.so", RTLD_NOW | RTLD_LOCAL);
-  if (lib == nullptr) {
-    LOGE("Could not open libandroid.so to dynamically load tracing symbols");
+  std::lock_guard<std::mutex> lock(traceMutex);
+  if (traceFile != nullptr)
+    return;
+  const char *path = getenv("TRACE_FILE");
+  if (path == nullptr)
+    path = "trace.json";
+  traceFile = fopen(path, "w");
+  if (traceFile == nullptr) {
+    LOGE("Could not open %s to write trace events", path);
   } else {
-    ATrace_beginSection =
-        reinterpret_cast<fp_ATrace_beginSection >(
-            dlsym(lib, "ATrace_beginSection"));
-    ATrace_endSection =
-        reinterpret_cast<fp_ATrace_endSection >(
-            dlsym(lib, "ATrace_endSection"));
-    ATrace_isEnabled =
-        reinterpret_cast<fp_ATrace_isEnabled >(
-            dlsym(lib, "ATrace_isEnabled"));
-
-    if (ATrace_isEnabled != nullptr && ATrace_isEnabled()) {
-      is_enabled_ = true;
-    }
+    fputs("[\n", traceFile);
+    atexit(closeTraceFile);
+  }
+}
+
+void TraceSetEnabled(int enabled) {
+
+  if (enabled) {
+    Trace::initialize();
+    std::lock_guard<std::mutex> lock(traceMutex);
+    if (traceFile == nullptr)
+      enabled = 0;
+  }
+  __atomic_store_n(&gTraceEnabled, enabled ? 1 : 0, __ATOMIC_RELAXED);
+}
+
+void TraceBeginSection(const char *name) {
+
+  writeTraceEvent('B', name);
+}
+
+void TraceEndSection(void) {
+
+  writeTraceEvent('E', nullptr);
+}
+
+#endif
+
+void Trace::beginSection(const char *fmt, ...) {
+
+  if (isEnabled()) {
+    char buff[TRACE_MAX_SECTION_NAME_LENGTH];
+    va_list args;
+    va_start(args, fmt);
+    vsnprintf(buff, sizeof(buff), fmt, args);
+    va_end(args);
+    TraceBeginSection(buff);
+  }
+}
+
+void Trace::endSection() {
+
+  if (isEnabled()) {
+    TraceEndSection();
   }
 }
@@ -17,17 +17,72 @@
 #ifndef SIMPLESYNTH_TRACE_H
 #define SIMPLESYNTH_TRACE_H
 
+/*
+ * Trace sections, shown by systrace / Perfetto on Android. Host builds write them to a Chrome
+ * trace-event JSON file instead (see trace.cpp), which chrome://tracing and ui.perfetto.dev open.
+ *
+ * Nothing is recorded until tracing is switched on at runtime with TraceSetEnabled(); until
+ * then a section costs a relaxed load and a branch. Sections nest, and must end on the thread
+ * that began them.
+ */
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+extern int gTraceEnabled;
+
+static inline int TraceIsEnabled(void) {
+  return __atomic_load_n(&gTraceEnabled, __ATOMIC_RELAXED);
+}
+
+// Any thread. Stays off where tracing is not supported
+void TraceSetEnabled(int enabled);
+
+// Call through TRACE_BEGIN / TRACE_END or ScopedTrace, which skip them while tracing is off
+void TraceBeginSection(const char *name);
+void TraceEndSection(void);
+
+// For C: at most one pair per scope. The end matches the begin even if tracing was switched
+// in between
+#define TRACE_BEGIN(name) \
+  const int traceSectionBegun = TraceIsEnabled(); \
+  if (traceSectionBegun) TraceBeginSection(name)
+#define TRACE_END() \
+  if (traceSectionBegun) TraceEndSection()
+
+#ifdef __cplusplus
+}
+
 class Trace {
 
 public:
   static void beginSection(const char *format, ...);
   static void endSection();
-  static bool isEnabled() { return is_enabled_; }
+  static bool isEnabled() { return TraceIsEnabled() != 0; }
+  static void setEnabled(bool enabled) { TraceSetEnabled(enabled ? 1 : 0); }
   static void initialize();
+};
+
+// Section for the rest of the scope, e.g. ScopedTrace trace("renderAudio");
+class ScopedTrace {
+
+public:
+  explicit ScopedTrace(const char *name) : begun_(TraceIsEnabled() != 0) {
+    if (begun_) TraceBeginSection(name);
+  }
+
+  ~ScopedTrace() {
+    if (begun_) TraceEndSection();
+  }
+
+  ScopedTrace(const ScopedTrace &) = delete;
+  ScopedTrace &operator=(const ScopedTrace &) = delete;
 
 private:
-  static bool is_enabled_;
-  static bool has_error_been_shown_;
+  const bool begun_;
 };
 
+#endif // __cplusplus
+
 #endif //SIMPLESYNTH_TRACE_H
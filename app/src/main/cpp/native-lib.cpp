@@ -1,6 +1,8 @@
 #include <jni.h>
+#include <algorithm>
 #include <string>
 #include <vector>
+#include <trace.h>
 #include "MusicBoxEngine.h"
 
 
@@ -68,12 +70,19 @@ Java_com_yuan_midiplayer_MusicBoxEngine_nativeSetDefaultStreamValues(JNIEnv *env
     oboe::DefaultStreamValues::FramesPerBurst = (int32_t) framesPerBurst;
 }
 
+JNIEXPORT void JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeSetTracingEnabled(JNIEnv *env, jclass clazz,
+                                                                jboolean enabled) {
+    Trace::setEnabled(enabled);
+}
+
 } // extern "C"
 
 extern "C"
 JNIEXPORT void JNICALL
 Java_com_yuan_midiplayer_MusicBoxEngine_nativeNoteOn(JNIEnv *env, jclass thiz, jlong engine_handle,
                                                      jint note) {
+    ScopedTrace trace("nativeNoteOn");
     auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
     if (engine) {
         engine->noteOn(static_cast<uint8_t>(note));
@@ -93,89 +102,262 @@ Java_com_yuan_midiplayer_MusicBoxEngine_nativePause(JNIEnv *env, jclass thiz, jl
 }
 
 extern "C"
-JNIEXPORT jfloatArray JNICALL
-Java_com_yuan_midiplayer_MusicBoxEngine_nativeGetWaveformData(JNIEnv *env, jclass thiz,
-                                                              jlong engine_handle) {
-    //1.新建长度len数组
-    jfloatArray jarr = env->NewFloatArray(256);
-    //2.获取数组指针
-    jfloat *arr = env->GetFloatArrayElements(jarr, NULL);
-    //3.赋值
+JNIEXPORT void JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeResetSynthesizer(JNIEnv *env, jclass clazz,
+                                                               jlong engine_handle) {
     auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
     if (engine) {
-        engine->readWaveformData(arr);
+        engine->resetSynthesizer();
     } else {
         LOGE("Engine handle is invalid, call createEngine() to create a new one");
     }
-    //4.释放资源
-    env->ReleaseFloatArrayElements(jarr, arr, 0);
-    //5.返回数组
-    return jarr;
 }
 
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeLoadScore(JNIEnv *env, jclass clazz,
+                                                        jlong engine_handle, jobject score,
+                                                        jint length, jint ticks_per_second) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (!engine) {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+        return JNI_FALSE;
+    }
+    auto *data = static_cast<const uint8_t *>(env->GetDirectBufferAddress(score));
+    if (!data || length < 0 || length > env->GetDirectBufferCapacity(score)) {
+        LOGE("Score must be a direct buffer holding %d bytes", length);
+        return JNI_FALSE;
+    }
+    // The engine keeps its own copy, the buffer can be reused as soon as this returns
+    return static_cast<jboolean>(engine->loadScore(data, static_cast<size_t>(length),
+                                                   static_cast<uint32_t>(ticks_per_second)));
+}
 
 extern "C"
-JNIEXPORT jfloatArray JNICALL
-Java_com_yuan_midiplayer_MusicBoxEngine_nativeGetSpectrumData(JNIEnv *env, jclass thiz,
-                                                              jlong engine_handle) {
-    //1.新建长度len数组
-    jfloatArray jarr = env->NewFloatArray(128);
-    //2.获取数组指针
-    jfloat *arr = env->GetFloatArrayElements(jarr, NULL);
-    //3.赋值
+JNIEXPORT void JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativePlayScore(JNIEnv *env, jclass clazz,
+                                                        jlong engine_handle) {
     auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
     if (engine) {
-        engine->readSpectrumData(arr);
+        engine->playScore();
     } else {
         LOGE("Engine handle is invalid, call createEngine() to create a new one");
     }
-    //4.释放资源
-    env->ReleaseFloatArrayElements(jarr, arr, 0);
-    //5.返回数组
-    return jarr;
 }
 
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeStopScore(JNIEnv *env, jclass clazz,
+                                                        jlong engine_handle) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (engine) {
+        engine->stopScore();
+    } else {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+    }
+}
 
 extern "C"
-JNIEXPORT jobject JNICALL
-Java_com_yuan_midiplayer_MusicBoxEngine_nativeGetVuLevel(JNIEnv *env, jclass thiz,
-                                                         jlong engine_handle) {
+JNIEXPORT void JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeSeekScore(JNIEnv *env, jclass clazz,
+                                                        jlong engine_handle, jint score_tick) {
     auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
     if (engine) {
-        const VuLevel *frame = engine->vuMeterProcessor.snapshot.beginRead();
-        if (!frame) return nullptr;
+        engine->seekScore(static_cast<uint32_t>(score_tick));
+    } else {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+    }
+}
 
-        jclass cls = env->FindClass("com/customview/graph/VuLevel");
-        jmethodID ctor = env->GetMethodID(cls, "<init>", "()V");
-        jobject obj = env->NewObject(cls, ctor);
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeSetTranspose(JNIEnv *env, jclass clazz,
+                                                           jlong engine_handle, jint semitones) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (engine) {
+        engine->setTranspose(static_cast<int32_t>(semitones));
+    } else {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+    }
+}
 
-        jfieldID fidRms = env->GetFieldID(cls, "rmsDb", "F");
-        jfieldID fidPeak = env->GetFieldID(cls, "peakDb", "F");
-        jfieldID fidHold = env->GetFieldID(cls, "peakHoldDb", "F");
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeSetPolyphony(JNIEnv *env, jclass clazz,
+                                                           jlong engine_handle, jint voices) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (engine) {
+        engine->setPolyphony(static_cast<int32_t>(voices));
+    } else {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+    }
+}
 
-        env->SetFloatField(obj, fidRms, frame->rmsDb);
-        env->SetFloatField(obj, fidPeak, frame->peakDb);
-        env->SetFloatField(obj, fidHold, frame->peakHoldDb);
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeSetNoteCacheSize(JNIEnv *env, jclass clazz,
+                                                               jlong engine_handle,
+                                                               jlong max_bytes) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (engine) {
+        engine->setNoteCacheSize(static_cast<size_t>(std::max<jlong>(max_bytes, 0)));
+    } else {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+    }
+}
 
-        engine->vuMeterProcessor.snapshot.endRead(frame);
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeSetMultiThreadedRendering(JNIEnv *env,
+                                                                        jclass clazz,
+                                                                        jlong engine_handle,
+                                                                        jboolean enabled) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (engine) {
+        engine->setMultiThreadedRendering(enabled);
+    } else {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+    }
+}
 
-        return obj;
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeGetFramePosition(JNIEnv *env, jclass clazz,
+                                                               jlong engine_handle) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (engine) {
+        return static_cast<jlong>(engine->getFramePosition());
     } else {
         LOGE("Engine handle is invalid, call createEngine() to create a new one");
-        return nullptr;
+        return 0;
+    }
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeGetSampleRate(JNIEnv *env, jclass clazz,
+                                                            jlong engine_handle) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (engine) {
+        return static_cast<jint>(engine->getSampleRate());
+    } else {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+        return 0;
     }
+}
 
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeGetFramesPerBurst(JNIEnv *env, jclass clazz,
+                                                                jlong engine_handle) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (engine) {
+        return static_cast<jint>(engine->getFramesPerBurst());
+    } else {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+        return 0;
+    }
+}
 
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeGetBufferSizeInFrames(JNIEnv *env, jclass clazz,
+                                                                    jlong engine_handle) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (engine) {
+        return static_cast<jint>(engine->getBufferSizeInFrames());
+    } else {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+        return 0;
+    }
 }
 
 extern "C"
 JNIEXPORT void JNICALL
-Java_com_yuan_midiplayer_MusicBoxEngine_nativeResetSynthesizer(JNIEnv *env, jclass clazz,
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeSetBufferSizeInFrames(JNIEnv *env, jclass clazz,
+                                                                    jlong engine_handle,
+                                                                    jint frames) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (engine) {
+        engine->setBufferSizeInFrames(static_cast<int32_t>(frames));
+    } else {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+    }
+}
+
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeGetPlaybackClock(JNIEnv *env, jclass clazz,
                                                                jlong engine_handle) {
     auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
     if (engine) {
-        engine->resetSynthesizer();
+        // Valid until the engine is deleted
+        PlaybackClock::State *state = engine->getPlaybackClockState();
+        return env->NewDirectByteBuffer(state, sizeof(*state));
     } else {
         LOGE("Engine handle is invalid, call createEngine() to create a new one");
+        return nullptr;
     }
-}
\ No newline at end of file
+}
+
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeGetVisualData(JNIEnv *env, jclass clazz,
+                                                            jlong engine_handle) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (engine) {
+        // Valid until the engine is deleted
+        VisualDataBuffer::State *state = engine->getVisualDataState();
+        return env->NewDirectByteBuffer(state, sizeof(*state));
+    } else {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+        return nullptr;
+    }
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeGetEventQueueStats(JNIEnv *env, jclass clazz,
+                                                                 jlong engine_handle,
+                                                                 jlongArray stats) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (engine) {
+        EventQueueStats s = engine->getEventQueueStats();
+        // Same order as MusicBoxEngine.EventQueueStats reads them
+        const jlong values[] = {s.capacity, s.highWaterMark, s.droppedEvents};
+        env->SetLongArrayRegion(stats, 0, 3, values);
+    } else {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+    }
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeGetCallbackStats(JNIEnv *env, jclass clazz,
+                                                               jlong engine_handle,
+                                                               jlongArray stats) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (engine) {
+        CallbackStats s = engine->getCallbackStats();
+        // Same order as MusicBoxEngine.CallbackStats reads them; the load in 1/10000
+        const jlong values[] = {s.callbacks, s.p50RenderNanos, s.p99RenderNanos,
+                                s.maxRenderNanos, static_cast<jlong>(s.cpuLoad * 10000.0f),
+                                s.xRunCount, s.activeVoices, s.maxActiveVoices,
+                                s.eventsApplied, s.framesPerCallback};
+        env->SetLongArrayRegion(stats, 0, 10, values);
+    } else {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+    }
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_yuan_midiplayer_MusicBoxEngine_nativeResetCallbackStats(JNIEnv *env, jclass clazz,
+                                                                 jlong engine_handle) {
+    auto *engine = reinterpret_cast<MusicBoxEngine *>(engine_handle);
+    if (engine) {
+        engine->resetCallbackStats();
+    } else {
+        LOGE("Engine handle is invalid, call createEngine() to create a new one");
+    }
+}
@@ -0,0 +1,103 @@
+#ifndef BUFFER_SIZE_TUNER_H
+#define BUFFER_SIZE_TUNER_H
+
+#include <algorithm>
+#include <atomic>
+#include <cstdint>
+#include <oboe/Oboe.h>
+#include <logging_macros.h>
+
+/*
+ * Keeps the stream's buffer as small as the device can play without underruns, in whole bursts.
+ *
+ * Runs inside the audio callback, like Oboe's own LatencyTuner, so it never races the stream. A
+ * new stream starts at the smallest size, one burst, unless a size was requested with
+ * setStartSize(). Underruns grow the buffer by a burst at a time. After a long enough stretch
+ * without any, it tries a burst less. A size that underruns soon after such a shrink becomes the
+ * floor for the rest of the stream, so it is not tried again every few seconds.
+ */
+class BufferSizeTuner {
+public:
+    // Any thread. Size the next or current stream starts tuning from, 0 for the smallest
+    void setStartSize(int32_t frames) {
+        mStartSize.store(frames, std::memory_order_relaxed);
+        mRestartRequested.store(true, std::memory_order_release);
+    }
+
+    // Any thread. The stream was replaced, e.g. after a route change; its successor starts over
+    // from the smallest size
+    void reset() {
+        setStartSize(0);
+    }
+
+    // Audio thread, from every callback
+    void tune(oboe::AudioStream *stream, int32_t numFrames) {
+        if (stream != mStream || mRestartRequested.exchange(false, std::memory_order_acquire)) {
+            restart(stream);
+            return;
+        }
+        const int32_t checkFrames = stream->getSampleRate() * kCheckIntervalMs / 1000;
+        mFramesSinceCheck += numFrames;
+        if (mFramesSinceCheck < checkFrames)
+            return;
+        mFramesSinceResize += mFramesSinceCheck;
+        mFramesSinceCheck = 0;
+
+        auto xRuns = stream->getXRunCount();
+        if (!xRuns)
+            return;
+        const int32_t burst = stream->getFramesPerBurst();
+        const int32_t size = stream->getBufferSizeInFrames();
+        const int64_t sinceResizeMs = mFramesSinceResize * 1000 / stream->getSampleRate();
+        if (xRuns.value() > mLastXRuns) {
+            mLastXRuns = xRuns.value();
+            // The last shrink went a burst too far
+            if (mShrunk && sinceResizeMs < kShrinkProbationMs)
+                mFloor = size + burst;
+            resize(stream, std::min(size + burst, stream->getBufferCapacityInFrames()), false);
+        } else if (sinceResizeMs >= kShrinkAfterMs && size - burst >= std::max(burst, mFloor)) {
+            resize(stream, size - burst, true);
+        }
+    }
+
+private:
+    static constexpr int32_t kCheckIntervalMs = 250;
+    // Underrun-free time before trying a smaller buffer
+    static constexpr int64_t kShrinkAfterMs = 20000;
+    // Underruns this soon after a shrink are blamed on it
+    static constexpr int64_t kShrinkProbationMs = 5000;
+
+    void restart(oboe::AudioStream *stream) {
+        mStream = stream;
+        auto xRuns = stream->getXRunCount();
+        mLastXRuns = xRuns ? xRuns.value() : 0;
+        mFloor = 0;
+        mFramesSinceCheck = 0;
+        const int32_t burst = stream->getFramesPerBurst();
+        const int32_t start = mStartSize.load(std::memory_order_relaxed);
+        // Round to whole bursts
+        const int32_t bursts = start > 0 ? (start + burst - 1) / burst : 1;
+        resize(stream, std::min(bursts * burst, stream->getBufferCapacityInFrames()), false);
+    }
+
+    void resize(oboe::AudioStream *stream, int32_t frames, bool shrink) {
+        auto result = stream->setBufferSizeInFrames(frames);
+        if (result)
+            LOGD("Buffer size %d frames", result.value());
+        mShrunk = shrink;
+        mFramesSinceResize = 0;
+    }
+
+    std::atomic<int32_t> mStartSize{0};
+    std::atomic<bool> mRestartRequested{false};
+
+    // Audio thread only
+    oboe::AudioStream *mStream = nullptr;
+    int32_t mLastXRuns = 0;
+    int32_t mFloor = 0;
+    int64_t mFramesSinceCheck = 0;
+    int64_t mFramesSinceResize = 0;
+    bool mShrunk = false;
+};
+
+#endif // BUFFER_SIZE_TUNER_H
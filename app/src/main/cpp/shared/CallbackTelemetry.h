@@ -0,0 +1,154 @@
+#ifndef CALLBACK_TELEMETRY_H
+#define CALLBACK_TELEMETRY_H
+
+#include <atomic>
+#include <cstdint>
+
+struct CallbackStats {
+    int64_t callbacks;
+    // Render time percentiles, to the upper edge of their histogram bucket (under 19% above)
+    int64_t p50RenderNanos;
+    int64_t p99RenderNanos;
+    int64_t maxRenderNanos;
+    // Render time over buffer time, averaged over roughly the last 50 callbacks
+    float cpuLoad;
+    // Voices sounding in the last callback, and at most
+    int32_t activeVoices;
+    int32_t maxActiveVoices;
+    // Note events taken from the event queue
+    int64_t eventsApplied;
+    int32_t framesPerCallback;
+    // Underruns reported by the stream, -1 if it cannot tell
+    int32_t xRunCount;
+};
+
+/*
+ * How close the audio callback comes to its deadline: the render time of every callback in a
+ * histogram, next to the buffer's duration, the voices sounding and the events applied.
+ *
+ * The audio thread is the only writer and never waits; the counters are relaxed atomics that
+ * snapshot() reads from any thread. A snapshot taken while a callback is being recorded may mix
+ * counts from before and after it, which telemetry can live with. reset() only asks for a reset,
+ * the audio thread clears the counters when it records the next callback.
+ */
+class CallbackTelemetry {
+public:
+    // Audio thread, during the callback
+    void recordRender(uint32_t voices, uint32_t events) {
+        bump(eventsApplied, events);
+        activeVoices.store(voices, std::memory_order_relaxed);
+        if (voices > maxActiveVoices.load(std::memory_order_relaxed))
+            maxActiveVoices.store(voices, std::memory_order_relaxed);
+    }
+
+    // Audio thread, once the callback has rendered frames at sampleRate in renderNanos
+    void recordCallback(int64_t renderNanos, int32_t frames, int32_t sampleRate) {
+        if (resetRequested.exchange(false, std::memory_order_acquire))
+            clear();
+        bump(histogram[bucketOf(renderNanos)], 1);
+        bump(callbacks, 1);
+        if (renderNanos > maxRenderNanos.load(std::memory_order_relaxed))
+            maxRenderNanos.store(renderNanos, std::memory_order_relaxed);
+        framesPerCallback.store(frames, std::memory_order_relaxed);
+        if (frames > 0 && sampleRate > 0) {
+            const float bufferNanos = static_cast<float>(frames) * 1e9f / sampleRate;
+            const float average = cpuLoad.load(std::memory_order_relaxed);
+            cpuLoad.store(average + (renderNanos / bufferNanos - average) * kLoadSmoothing,
+                          std::memory_order_relaxed);
+        }
+    }
+
+    // Any thread. xRunCount is left to the caller, which owns the stream
+    CallbackStats snapshot() const {
+        CallbackStats stats{};
+        int64_t counts[kBuckets];
+        int64_t total = 0;
+        for (int i = 0; i < kBuckets; i++) {
+            counts[i] = histogram[i].load(std::memory_order_relaxed);
+            total += counts[i];
+        }
+        stats.callbacks = callbacks.load(std::memory_order_relaxed);
+        stats.p50RenderNanos = percentile(counts, total, 50);
+        stats.p99RenderNanos = percentile(counts, total, 99);
+        stats.maxRenderNanos = maxRenderNanos.load(std::memory_order_relaxed);
+        stats.cpuLoad = cpuLoad.load(std::memory_order_relaxed);
+        stats.activeVoices = static_cast<int32_t>(activeVoices.load(std::memory_order_relaxed));
+        stats.maxActiveVoices = static_cast<int32_t>(
+                maxActiveVoices.load(std::memory_order_relaxed));
+        stats.eventsApplied = eventsApplied.load(std::memory_order_relaxed);
+        stats.framesPerCallback = framesPerCallback.load(std::memory_order_relaxed);
+        stats.xRunCount = -1;
+        return stats;
+    }
+
+    // Any thread
+    void reset() {
+        resetRequested.store(true, std::memory_order_release);
+    }
+
+private:
+    // Four buckets per power of two of render time in 1024 ns units, from 1 us to ~130 ms
+    static constexpr int kBuckets = 64;
+    static constexpr int kUnitShift = 10;
+    static constexpr float kLoadSmoothing = 0.02f;
+
+    static int bucketOf(int64_t nanos) {
+        const uint64_t units = nanos > 0 ? static_cast<uint64_t>(nanos) >> kUnitShift : 0;
+        if (units < 4)
+            return static_cast<int>(units);
+        const int exponent = 63 - __builtin_clzll(units);
+        const int bucket = (exponent - 1) * 4 + static_cast<int>((units >> (exponent - 2)) & 3);
+        return bucket < kBuckets ? bucket : kBuckets - 1;
+    }
+
+    // Upper edge of bucket, in nanoseconds
+    static int64_t bucketLimit(int bucket) {
+        if (bucket < 4)
+            return static_cast<int64_t>(bucket + 1) << kUnitShift;
+        const int exponent = bucket / 4 + 1;
+        return static_cast<int64_t>(5 + bucket % 4) << (exponent - 2 + kUnitShift);
+    }
+
+    static int64_t percentile(const int64_t *counts, int64_t total, int percent) {
+        if (total == 0)
+            return 0;
+        // Smallest bucket with at least percent% of the callbacks at or below it
+        const int64_t rank = (total * percent + 99) / 100;
+        int64_t seen = 0;
+        for (int i = 0; i < kBuckets; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return bucketLimit(i);
+        }
+        return bucketLimit(kBuckets - 1);
+    }
+
+    // Single writer, so no read-modify-write is needed
+    template<typename T, typename U>
+    static void bump(std::atomic<T> &counter, U amount) {
+        counter.store(counter.load(std::memory_order_relaxed) + static_cast<T>(amount),
+                      std::memory_order_relaxed);
+    }
+
+    void clear() {
+        for (auto &count : histogram) {
+            count.store(0, std::memory_order_relaxed);
+        }
+        callbacks.store(0, std::memory_order_relaxed);
+        maxRenderNanos.store(0, std::memory_order_relaxed);
+        maxActiveVoices.store(0, std::memory_order_relaxed);
+        eventsApplied.store(0, std::memory_order_relaxed);
+    }
+
+    std::atomic<int64_t> histogram[kBuckets] = {};
+    std::atomic<int64_t> callbacks{0};
+    std::atomic<int64_t> maxRenderNanos{0};
+    std::atomic<float> cpuLoad{0.0f};
+    std::atomic<uint32_t> activeVoices{0};
+    std::atomic<uint32_t> maxActiveVoices{0};
+    std::atomic<int64_t> eventsApplied{0};
+    std::atomic<int32_t> framesPerCallback{0};
+    std::atomic<bool> resetRequested{false};
+};
+
+#endif // CALLBACK_TELEMETRY_H
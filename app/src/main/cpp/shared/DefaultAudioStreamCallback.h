@@ -18,12 +18,16 @@
 #define SAMPLES_DEFAULT_AUDIO_STREAM_CALLBACK_H
 
 
+#include <chrono>
 #include <vector>
 #include <oboe/AudioStreamCallback.h>
 #include <logging_macros.h>
 
 #include "IRenderableAudio.h"
 #include "IRestartable.h"
+#include "CallbackTelemetry.h"
+#include "BufferSizeTuner.h"
+#include "PlaybackClock.h"
 
 /**
  * This is a callback object which will render data from an `IRenderableAudio` source. It is
@@ -52,11 +56,28 @@ public:
             LOGE("Renderable source not set!");
             return oboe::DataCallbackResult::Stop;
         }
-        localRenderable->renderAudio(outputBuffer, numFrames);
+        PlaybackClock *clock = mPlaybackClock.load(std::memory_order_relaxed);
+        if (clock != nullptr)
+            clock->beginCallback(oboeStream, oboeStream->getFramesWritten());
+        CallbackTelemetry *telemetry = mTelemetry.load(std::memory_order_relaxed);
+        if (telemetry == nullptr) {
+            localRenderable->renderAudio(outputBuffer, numFrames);
+        } else {
+            const auto start = std::chrono::steady_clock::now();
+            localRenderable->renderAudio(outputBuffer, numFrames);
+            const auto renderNanos = std::chrono::duration_cast<std::chrono::nanoseconds>(
+                    std::chrono::steady_clock::now() - start).count();
+            telemetry->recordCallback(renderNanos, numFrames, oboeStream->getSampleRate());
+        }
+        if (clock != nullptr)
+            clock->endCallback(oboeStream, numFrames);
+        mBufferSizeTuner.tune(oboeStream, numFrames);
         return oboe::DataCallbackResult::Continue;
     }
 
     virtual void onErrorAfterClose(oboe::AudioStream *oboeStream, oboe::Result error) override {
+        // The next stream may be on another route, with another burst, tune it from scratch
+        mBufferSizeTuner.reset();
         // Restart the stream when it errors out with disconnect
         if (error == oboe::Result::ErrorDisconnected) {
             LOGE("Restarting AudioStream after disconnect");
@@ -84,6 +105,42 @@ public:
         mCpuIds = std::move(cpuIds);
     }
 
+    /**
+     * Bind the audio callback thread to the first of the CPU IDs only, leaving the others to the
+     * voice render workers (see VoiceRenderPool), or to all of them again. Takes effect on the
+     * next callback.
+     */
+    void setFirstCpuOnly(bool firstOnly) {
+        if (mFirstCpuOnly.exchange(firstOnly) != firstOnly)
+            mIsThreadAffinitySet = false;
+    }
+
+    /**
+     * Tunes the buffer size of the stream from inside the callback, see BufferSizeTuner
+     */
+    BufferSizeTuner &getBufferSizeTuner() {
+        return mBufferSizeTuner;
+    }
+
+    /**
+     * Record the render time of every callback in telemetry, which must outlive the callback
+     *
+     * @param telemetry - where to record, nullptr to stop recording
+     */
+    void setTelemetry(CallbackTelemetry *telemetry) {
+        mTelemetry = telemetry;
+    }
+
+    /**
+     * Publish the playback position heard from every callback through clock, which must outlive
+     * the callback. The source has to record its buffers in the same clock
+     *
+     * @param clock - where to publish, nullptr to stop
+     */
+    void setPlaybackClock(PlaybackClock *clock) {
+        mPlaybackClock = clock;
+    }
+
     /**
      * Enable or disable binding the audio callback thread to specific CPU cores. The CPU core IDs
      * can be specified using @see setCpuIds. If no CPU IDs are specified the initial core which the
@@ -102,6 +159,10 @@ private:
     std::vector<int> mCpuIds; // IDs of CPU cores which the audio callback should be bound to
     std::atomic<bool> mIsThreadAffinityEnabled { false };
     std::atomic<bool> mIsThreadAffinitySet { false };
+    std::atomic<bool> mFirstCpuOnly { false };
+    std::atomic<CallbackTelemetry *> mTelemetry { nullptr };
+    std::atomic<PlaybackClock *> mPlaybackClock { nullptr };
+    BufferSizeTuner mBufferSizeTuner;
 
     /**
      * Set the thread affinity for the current thread to mCpuIds. This can be useful to call on the
@@ -119,8 +180,9 @@ private:
             LOGD("Binding to current CPU ID %d", current_cpu_id);
             CPU_SET(current_cpu_id, &cpu_set);
         } else {
-            LOGD("Binding to %d CPU IDs", static_cast<int>(mCpuIds.size()));
-            for (size_t i = 0; i < mCpuIds.size(); i++) {
+            const size_t count = mFirstCpuOnly ? 1 : mCpuIds.size();
+            LOGD("Binding to %d CPU IDs", static_cast<int>(count));
+            for (size_t i = 0; i < count; i++) {
                 int cpu_id = mCpuIds.at(i);
                 LOGD("CPU ID %d added to cores set", cpu_id);
                 CPU_SET(cpu_id, &cpu_set);
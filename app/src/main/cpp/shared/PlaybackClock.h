@@ -0,0 +1,175 @@
+#ifndef PLAYBACK_CLOCK_H
+#define PLAYBACK_CLOCK_H
+
+#include <algorithm>
+#include <atomic>
+#include <cstdint>
+#include <time.h>
+#include <oboe/Oboe.h>
+
+/*
+ * What comes out of the speaker right now: the frame and score position being heard, worked
+ * out from the stream's presentation timestamps (AudioStream::getTimestamp) and published for
+ * the UI to read from a direct buffer, see AudioClock.java.
+ *
+ * The audio callback is the only writer. Every callback it notes which frame and score position
+ * its buffer starts with, keyed by the stream's frame index, so a presented stream frame can be
+ * mapped back to them for as far back as the buffer reaches, seeks included. It then publishes
+ * where playback is at the time of the callback, under a sequence lock: readers retry while the
+ * sequence is odd or has changed under them.
+ */
+class PlaybackClock {
+public:
+    // Shared with Java, see AudioClock.java for the offsets. Only 64-bit fields, in native byte
+    // order
+    struct State {
+        // Odd while being written
+        std::atomic<int64_t> sequence{0};
+        // CLOCK_MONOTONIC time, i.e. System.nanoTime(), at which the frames below are heard
+        std::atomic<int64_t> timeNanos{0};
+        // Frame being heard, on the source's frame clock (see getFramePosition())
+        std::atomic<int64_t> framePosition{0};
+        // End of the audio rendered so far; playback cannot get past it
+        std::atomic<int64_t> writtenFramePosition{0};
+        // Score sample being heard, -1 without a score
+        std::atomic<int64_t> scoreFrame{-1};
+        // 1 while the score moves on with the frames
+        std::atomic<int64_t> scorePlaying{0};
+        std::atomic<int64_t> sampleRate{0};
+        // 1 once the score has played to its end and the last notes have died away
+        std::atomic<int64_t> scoreFinished{0};
+    };
+
+    static_assert(sizeof(std::atomic<int64_t>) == sizeof(int64_t), "State is read as int64s");
+
+    State *getState() {
+        return &mState;
+    }
+
+    // Audio thread, before rendering. streamFrame is the stream's index of the first frame of
+    // the callback
+    void beginCallback(oboe::AudioStream *stream, int64_t streamFrame) {
+        // A new stream counts from 0 again
+        if (stream != mStream || (mAnchorCount > 0 && streamFrame < newestAnchor().streamFrame)) {
+            mStream = stream;
+            mAnchorCount = 0;
+            mHaveTimestamp = false;
+            mLastTimestampNanos = INT64_MIN / 2;
+        }
+        mCallbackStreamFrame = streamFrame;
+        mRecorded = false;
+    }
+
+    // Audio thread, from the source: the frame and score position its buffer starts with, and
+    // whether the score is over by then. scoreFrame is -1 without a score
+    void recordBuffer(int64_t framePosition, int64_t scoreFrame, bool scorePlaying,
+                      bool scoreFinished) {
+        mBuffer = Anchor{mCallbackStreamFrame, framePosition, scoreFrame, scorePlaying,
+                         scoreFinished};
+        mRecorded = true;
+    }
+
+    // Audio thread, after rendering numFrames
+    void endCallback(oboe::AudioStream *stream, int32_t numFrames) {
+        if (!mRecorded)
+            return;
+        mAnchors[mAnchorNext] = mBuffer;
+        mAnchorNext = (mAnchorNext + 1) % kAnchors;
+        mAnchorCount = std::min(mAnchorCount + 1, kAnchors);
+        const int64_t writtenStreamFrame = mBuffer.streamFrame + numFrames;
+        const int32_t sampleRate = stream->getSampleRate();
+
+        const int64_t now = monotonicNanos();
+        if (now - mLastTimestampNanos >= kTimestampIntervalNanos) {
+            mLastTimestampNanos = now;
+            auto timestamp = stream->getTimestamp(CLOCK_MONOTONIC);
+            if (timestamp) {
+                mPresentedStreamFrame = timestamp.value().position;
+                mPresentedNanos = timestamp.value().timestamp;
+                mHaveTimestamp = true;
+            } else if (now - mPresentedNanos > kMaxTimestampAgeNanos) {
+                // E.g. just after a pause, the old one no longer tells anything
+                mHaveTimestamp = false;
+            }
+        }
+        int64_t heard;
+        if (mHaveTimestamp) {
+            heard = mPresentedStreamFrame + (now - mPresentedNanos) * sampleRate / 1000000000;
+        } else {
+            // No timestamps (yet): assume the buffer plays out at its nominal latency
+            heard = writtenStreamFrame - stream->getBufferSizeInFrames() - numFrames;
+        }
+        heard = std::min(heard, writtenStreamFrame);
+
+        const Anchor &anchor = anchorAt(heard);
+        const int64_t offset = heard - anchor.streamFrame;
+        int64_t scoreFrame = anchor.scoreFrame;
+        if (scoreFrame >= 0 && anchor.scorePlaying)
+            scoreFrame = std::max<int64_t>(0, scoreFrame + offset);
+
+        const int64_t sequence = mState.sequence.load(std::memory_order_relaxed);
+        mState.sequence.store(sequence + 1, std::memory_order_relaxed);
+        std::atomic_thread_fence(std::memory_order_release);
+        mState.timeNanos.store(now, std::memory_order_relaxed);
+        mState.framePosition.store(anchor.framePosition + offset, std::memory_order_relaxed);
+        mState.writtenFramePosition.store(mBuffer.framePosition + numFrames,
+                                          std::memory_order_relaxed);
+        mState.scoreFrame.store(scoreFrame, std::memory_order_relaxed);
+        mState.scorePlaying.store(anchor.scorePlaying ? 1 : 0, std::memory_order_relaxed);
+        mState.sampleRate.store(sampleRate, std::memory_order_relaxed);
+        mState.scoreFinished.store(anchor.scoreFinished ? 1 : 0, std::memory_order_relaxed);
+        mState.sequence.store(sequence + 2, std::memory_order_release);
+    }
+
+private:
+    struct Anchor {
+        int64_t streamFrame;
+        int64_t framePosition;
+        int64_t scoreFrame;
+        bool scorePlaying;
+        bool scoreFinished;
+    };
+
+    // Buffers remembered, more than the output buffer can hold
+    static constexpr int kAnchors = 64;
+    // getTimestamp() is not free on every path, and the clocks hardly drift in between
+    static constexpr int64_t kTimestampIntervalNanos = 100000000;
+    static constexpr int64_t kMaxTimestampAgeNanos = 500000000;
+
+    static int64_t monotonicNanos() {
+        struct timespec now;
+        clock_gettime(CLOCK_MONOTONIC, &now);
+        return int64_t(now.tv_sec) * 1000000000 + now.tv_nsec;
+    }
+
+    const Anchor &newestAnchor() const {
+        return mAnchors[(mAnchorNext + kAnchors - 1) % kAnchors];
+    }
+
+    // Newest buffer starting at or before streamFrame, else the oldest one known
+    const Anchor &anchorAt(int64_t streamFrame) const {
+        for (int i = 1; i <= mAnchorCount; i++) {
+            const Anchor &anchor = mAnchors[(mAnchorNext + kAnchors - i) % kAnchors];
+            if (anchor.streamFrame <= streamFrame || i == mAnchorCount)
+                return anchor;
+        }
+        return newestAnchor();
+    }
+
+    State mState;
+
+    // Audio thread only
+    oboe::AudioStream *mStream = nullptr;
+    Anchor mAnchors[kAnchors];
+    int mAnchorNext = 0;
+    int mAnchorCount = 0;
+    Anchor mBuffer{};
+    bool mRecorded = false;
+    int64_t mCallbackStreamFrame = 0;
+    bool mHaveTimestamp = false;
+    int64_t mPresentedStreamFrame = 0;
+    int64_t mPresentedNanos = 0;
+    int64_t mLastTimestampNanos = INT64_MIN / 2;
+};
+
+#endif // PLAYBACK_CLOCK_H
@@ -2,8 +2,11 @@ package com.customview.graph;
 
 import android.content.Context;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.ViewGroup;
 
+import com.yuan.midiplayer.AudioVisualData;
+import com.yuan.midiplayer.Tracing;
 import com.yuan.music_box.R;
 
 public class AudioMeterView extends ViewGroup {
@@ -14,6 +17,28 @@ public class AudioMeterView extends ViewGroup {
 
     private final float vuRatio = 0.12f; // 右侧宽度占比
 
+    // 每帧从数据源读到这里，再交给子 View，不再分配
+    private final float[] waveform = new float[AudioVisualData.WAVEFORM_POINTS];
+    private final float[] spectrum = new float[AudioVisualData.SPECTRUM_BANDS];
+    private final VuLevel vuLevel = new VuLevel();
+    private VisualSource visualSource;
+    private boolean isRunning = false;
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!isRunning) return;
+            boolean traced = Tracing.begin("AudioMeterView.update");
+            try {
+                if (visualSource != null && visualSource.read(waveform, spectrum, vuLevel))
+                    setAudioVisualData(waveform, spectrum, vuLevel);
+            } finally {
+                Tracing.end(traced);
+            }
+            // 继续下一帧（VSync 同步）
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
     public AudioMeterView(Context context, AttributeSet attrs) {
         super(context, attrs);
 
@@ -37,6 +62,36 @@ public class AudioMeterView extends ViewGroup {
         vuMeterView.setVuLevel(vuLevel);
     }
 
+    /**
+     * 设置数据源，start() 之后每个 VSync 读取一次（UI 线程）
+     */
+    public void setVisualSource(VisualSource source) {
+        visualSource = source;
+    }
+
+    /**
+     * 开始随屏幕刷新更新，需在 UI 线程调用
+     */
+    public void start() {
+        if (isRunning) return;
+        isRunning = true;
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    /**
+     * 停止更新，保留最后一帧
+     */
+    public void stop() {
+        isRunning = false;
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        stop();
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         int w = MeasureSpec.getSize(widthMeasureSpec);
@@ -93,4 +148,15 @@ public class AudioMeterView extends ViewGroup {
     public VuMeterView getVuMeterView() {
         return vuMeterView;
     }
+
+    /**
+     * 可视化数据来源
+     */
+    public interface VisualSource {
+        /**
+         * 把最新数据写入 waveform、spectrum（dBFS）和 vuLevel，长度见 AudioVisualData；
+         * 没有新数据时返回 false，不修改它们
+         */
+        boolean read(float[] waveform, float[] spectrum, VuLevel vuLevel);
+    }
 }
@@ -7,6 +7,8 @@ import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.View;
 
+import com.yuan.midiplayer.Tracing;
+
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -18,14 +20,19 @@ import java.util.List;
  * 2. 底部固定钢琴键盘（完善版，带 attack/release 动画和辉光效果）
  * 3. 网格显示
  * 4. 键盘高亮（渐入渐出动画）
- * 5. 所有渲染状态由外部传入 playbackTimeMs
+ * 5. 所有渲染状态由外部传入 playbackTimeMs，或播放时每帧从 PlaybackClock 读取
  * 6. 支持设置当前时刻线在卷帘中的位置
  */
 public class PianoRollView extends View {
+    // 时钟与当前时间相差超过此值时按跳转处理（例如拖动进度）
+    private static final long CLOCK_SEEK_THRESHOLD_MS = 250;
 
     private final List<PianoKey> keys = new ArrayList<>();
     private final List<FallingNote> activeNotes = new ArrayList<>();
-    private final List<NoteEvent> noteEvents = new ArrayList<>();
+    // 音符数据由外部共享，只读不拷贝
+    private NoteSource noteSource = NoteSource.EMPTY;
+    // 横向网格线对应的节拍，随时间滚动
+    private BeatGrid beatGrid = BeatGrid.FIXED_500MS;
 
     private final PianoKey[] keyByMidi = new PianoKey[128];
 
@@ -70,6 +77,8 @@ public class PianoRollView extends View {
     private boolean isPlaying = false; // 播放状态
     private long lastUpdateTimeMs = 0; // 上次更新的系统时间
     private Choreographer.FrameCallback frameCallback; // VSync 回调
+    // 播放位置来源，为 null 时按系统时间推进
+    private PlaybackClock playbackClock;
 
     public PianoRollView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -155,38 +164,43 @@ public class PianoRollView extends View {
 
     @Override
     protected void onDraw(Canvas canvas) {
-        // 绘制背景
-        if (backgroundColor != Color.TRANSPARENT) {
-            canvas.drawColor(backgroundColor);
-        }
+        boolean traced = Tracing.begin("PianoRollView.onDraw");
+        try {
+            // 绘制背景
+            if (backgroundColor != Color.TRANSPARENT) {
+                canvas.drawColor(backgroundColor);
+            }
 
-        canvas.save();
-        canvas.translate(-scrollX, 0);
-        float waterfallHeight = getHeight() - keyHeight;
+            canvas.save();
+            canvas.translate(-scrollX, 0);
+            float waterfallHeight = getHeight() - keyHeight;
 
-        drawGrid(canvas, waterfallHeight);
-        fallingRenderer.draw(canvas, activeNotes, keys, msPerPx, whiteKeyWidth, blackKeyWidth, fallingNoteColor, transposeSemitone, keyByMidi);
+            drawGrid(canvas, waterfallHeight);
+            fallingRenderer.draw(canvas, activeNotes, keys, msPerPx, whiteKeyWidth, blackKeyWidth, fallingNoteColor, transposeSemitone, keyByMidi);
 
 
-        // 绘制当前时刻线
-        if (showCurrentTimeLine) {
-            drawCurrentTimeLine(canvas, waterfallHeight);
-        }
+            // 绘制当前时刻线
+            if (showCurrentTimeLine) {
+                drawCurrentTimeLine(canvas, waterfallHeight);
+            }
 
-        canvas.translate(0, waterfallHeight);
+            canvas.translate(0, waterfallHeight);
 
-        // currentTimeMs 由外部传入
-        long currentTimeMs = externalTimeMs;
-        boolean anyAlpha = keyboardRenderer.draw(canvas, keys, keyHeight, whiteKeyWidth, blackKeyWidth,
-                blackKeyHeight, highlightColor, currentTimeMs,
-                attackTimeMs, releaseTimeMs, scrollX, getWidth(),
-                whiteKeyColor, blackKeyColor, keyBorderColor);
+            // currentTimeMs 由外部传入
+            long currentTimeMs = externalTimeMs;
+            boolean anyAlpha = keyboardRenderer.draw(canvas, keys, keyHeight, whiteKeyWidth, blackKeyWidth,
+                    blackKeyHeight, highlightColor, currentTimeMs,
+                    attackTimeMs, releaseTimeMs, scrollX, getWidth(),
+                    whiteKeyColor, blackKeyColor, keyBorderColor);
 
-        canvas.restore();
+            canvas.restore();
 
-        // 如果有键在动画中，继续刷新
-        if (anyAlpha) {
-            postInvalidateOnAnimation();
+            // 如果有键在动画中，继续刷新
+            if (anyAlpha) {
+                postInvalidateOnAnimation();
+            }
+        } finally {
+            Tracing.end(traced);
         }
     }
 
@@ -203,13 +217,31 @@ public class PianoRollView extends View {
             }
         }
 
-        long gridStepMs = 500; // 例如 500ms 一条
-        float step = gridStepMs / msPerPx;
-        for (float y = 0; y < waterfallHeight; y += step) {
+        // 每一拍一条线：y = 当前时刻线 + (当前时间 - 拍时间) / msPerPx
+        final float currentLineY = currentTimeLineRatio * waterfallHeight;
+        final long topTimeMs = externalTimeMs + (long) (currentLineY * msPerPx);
+        final long bottomTimeMs = externalTimeMs - (long) ((waterfallHeight - currentLineY) * msPerPx);
+        long beat = Math.max(0, (long) Math.ceil(beatGrid.getBeatAt(bottomTimeMs)));
+        float lastY = Float.MAX_VALUE;
+        for (; ; beat++) {
+            long beatTimeMs = beatGrid.getBeatTimeMs(beat);
+            if (beatTimeMs > topTimeMs) break;
+            float y = currentLineY + (externalTimeMs - beatTimeMs) / msPerPx;
+            // 拍子过密时跳过，避免糊成一片
+            if (lastY - y < 4f) continue;
             canvas.drawLine(0, y, getWidth() + scrollX, y, gridPaint);
+            lastY = y;
         }
     }
 
+    /**
+     * 设置网格使用的节拍（例如歌曲的速度表），null 恢复为固定 500ms 网格
+     */
+    public void setBeatGrid(BeatGrid grid) {
+        beatGrid = grid != null ? grid : BeatGrid.FIXED_500MS;
+        invalidate();
+    }
+
     /**
      * 绘制当前时刻线
      */
@@ -238,6 +270,13 @@ public class PianoRollView extends View {
     }
 
 
+    /**
+     * 设置播放位置来源。设置后播放时每帧从时钟取时间，不再需要外部逐个音符调用 setPlaybackTime
+     */
+    public void setPlaybackClock(PlaybackClock clock) {
+        playbackClock = clock;
+    }
+
     /**
      * 获取当前播放时间
      */
@@ -306,6 +345,31 @@ public class PianoRollView extends View {
         invalidate();
     }
 
+    /**
+     * 跳转到指定播放时间，重新计算屏幕内的音符和琴键状态
+     */
+    public void seekTo(long timeMs) {
+        final float waterfallHeight = getHeight() - keyHeight;
+        // 时刻线以下仍可见的时间长度，结束得比这更早的音符直接跳过
+        final long visibleBelowMs =
+                (long) ((1f - currentTimeLineRatio) * waterfallHeight * msPerPx);
+
+        activeNotes.clear();
+        resetAllKeys();
+        nextEventIndex = 0;
+        final NoteSource notes = noteSource;
+        while (nextEventIndex < notes.size()
+                && notes.getStartTimeMs(nextEventIndex) + notes.getDurationMs(nextEventIndex)
+                < timeMs - visibleBelowMs) {
+            nextEventIndex++;
+        }
+
+        externalTimeMs = timeMs;
+        lastUpdateTimeMs = System.currentTimeMillis();
+        updateActiveNotes(timeMs);
+        invalidate();
+    }
+
     /**
      * 定时更新任务（使用 Choreographer 实现 VSync 同步）
      */
@@ -323,9 +387,19 @@ public class PianoRollView extends View {
                     long elapsed = now - lastUpdateTimeMs;
                     lastUpdateTimeMs = now;
 
-                    // 更新播放时间
-                    externalTimeMs += elapsed;
-                    updateActiveNotes(externalTimeMs);
+                    long clockMs = playbackClock != null
+                            ? playbackClock.getPlaybackTimeMs(frameTimeNanos) : -1;
+                    if (clockMs < 0) {
+                        // 没有时钟：按系统时间推进
+                        externalTimeMs += elapsed;
+                        updateActiveNotes(externalTimeMs);
+                    } else if (Math.abs(clockMs - externalTimeMs) > CLOCK_SEEK_THRESHOLD_MS) {
+                        seekTo(clockMs);
+                    } else if (clockMs > externalTimeMs) {
+                        // 时间戳校正可能让时钟略微后退，保持单调
+                        externalTimeMs = clockMs;
+                        updateActiveNotes(externalTimeMs);
+                    }
                     invalidate();
 
                     // 继续下一帧（VSync 同步）
@@ -338,24 +412,16 @@ public class PianoRollView extends View {
         Choreographer.getInstance().postFrameCallback(frameCallback);
     }
 
-    public void loadNoteEvents(List<NoteEvent> events) {
+    /**
+     * 载入音符数据。notes 必须按开始时间排序且之后不再修改，View 直接引用它而不做拷贝
+     */
+    public void loadNotes(NoteSource notes) {
         // 清空所有音符相关状态
-        noteEvents.clear();
+        noteSource = notes != null ? notes : NoteSource.EMPTY;
         activeNotes.clear();
 
         nextEventIndex = 0;
 
-
-        // 深拷贝 NoteEvent，避免修改外部对象
-        for (NoteEvent ev : events) {
-            NoteEvent copy = new NoteEvent();
-            copy.midiNote = ev.midiNote;
-            copy.startTimeMs = ev.startTimeMs;
-            copy.durationMs = ev.durationMs;
-            copy.velocity = ev.velocity;
-            noteEvents.add(copy);
-        }
-
         // 重置所有琴键的状态
         resetAllKeys();
 
@@ -381,7 +447,8 @@ public class PianoRollView extends View {
      */
     public void clear() {
         pausePlayback(); // 停止内部刷新
-        noteEvents.clear();
+        noteSource = NoteSource.EMPTY;
+        nextEventIndex = 0;
         activeNotes.clear();
         resetAllKeys();
         externalTimeMs = 0;
@@ -603,22 +670,23 @@ public class PianoRollView extends View {
         }
 
         /* =========================
-         * 2️⃣ 推进事件游标：把即将进入屏幕的 NoteEvent 变成 FallingNote
+         * 2️⃣ 推进事件游标：把即将进入屏幕的音符变成 FallingNote
          * ========================= */
-        while (nextEventIndex < noteEvents.size()) {
-            NoteEvent ev = noteEvents.get(nextEventIndex);
+        final NoteSource notes = noteSource;
+        while (nextEventIndex < notes.size()) {
+            long startTimeMs = notes.getStartTimeMs(nextEventIndex);
 
             // 还没到预加载时间窗口，停
-            if (ev.startTimeMs > currentTimeMs + advanceTimeMs) {
+            if (startTimeMs > currentTimeMs + advanceTimeMs) {
                 break;
             }
 
             // 生成 FallingNote
             FallingNote fn = new FallingNote();
-            fn.midiNote = ev.midiNote;
-            fn.startTimeMs = ev.startTimeMs;
-            fn.durationMs = ev.durationMs;
-            fn.velocity = ev.velocity;
+            fn.midiNote = notes.getMidiNote(nextEventIndex);
+            fn.startTimeMs = startTimeMs;
+            fn.durationMs = notes.getDurationMs(nextEventIndex);
+            fn.velocity = notes.getVelocity(nextEventIndex);
             fn.y = 0f;
 
             activeNotes.add(fn);
@@ -731,11 +799,83 @@ public class PianoRollView extends View {
         public float y;             // 当前 Y 坐标
     }
 
-    public static class NoteEvent {
-        public int midiNote;
-        public long startTimeMs;
-        public long durationMs;     // 音符持续时间
-        public float velocity;
+    /**
+     * 播放位置的来源，例如音频输出的时钟。播放时每个 VSync 调用一次
+     */
+    public interface PlaybackClock {
+        /**
+         * frameTimeNanos（System.nanoTime() 时基）时刻听到的播放位置，单位毫秒；未知时返回负数
+         */
+        long getPlaybackTimeMs(long frameTimeNanos);
+    }
+
+    /**
+     * 时间与节拍的换算，用于绘制网格
+     */
+    public interface BeatGrid {
+        BeatGrid FIXED_500MS = new BeatGrid() {
+            @Override
+            public double getBeatAt(long timeMs) {
+                return timeMs / 500.0;
+            }
+
+            @Override
+            public long getBeatTimeMs(long beat) {
+                return beat * 500;
+            }
+        };
+
+        /**
+         * timeMs 时刻对应的拍数（可带小数）
+         */
+        double getBeatAt(long timeMs);
+
+        /**
+         * 第 beat 拍开始的时间
+         */
+        long getBeatTimeMs(long beat);
+    }
+
+    /**
+     * 只读音符序列，按开始时间排序
+     */
+    public interface NoteSource {
+        NoteSource EMPTY = new NoteSource() {
+            @Override
+            public int size() {
+                return 0;
+            }
+
+            @Override
+            public int getMidiNote(int index) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            @Override
+            public long getStartTimeMs(int index) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            @Override
+            public long getDurationMs(int index) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            @Override
+            public float getVelocity(int index) {
+                throw new IndexOutOfBoundsException();
+            }
+        };
+
+        int size();
+
+        int getMidiNote(int index);
+
+        long getStartTimeMs(int index);
+
+        long getDurationMs(int index);     // 音符持续时间
+
+        float getVelocity(int index);
     }
 }
 
@@ -47,8 +47,10 @@ public class SpectrumView extends View {
         if (dbBands == null || dbBands.length == 0) return;
 
         synchronized (this) {
-            // 直接整帧替换（不保留历史）
-            bands = dbBands.clone();
+            // 直接整帧替换（不保留历史），长度不变时复用数组，避免每帧分配
+            if (bands.length != dbBands.length)
+                bands = new float[dbBands.length];
+            System.arraycopy(dbBands, 0, bands, 0, dbBands.length);
         }
 
         postInvalidateOnAnimation();
@@ -0,0 +1,99 @@
+package com.yuan.midiplayer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Playback position as it comes out of the speaker. Every audio callback of the engine works it
+ * out from the stream's presentation timestamps and publishes it to memory shared with this
+ * class (see PlaybackClock.h), so reading it takes no JNI call and can be done every vsync.
+ * Between callbacks the position is extrapolated at the sample rate, up to the end of the audio
+ * rendered so far.
+ * <p>
+ * Holds the result of the last {@link #update(long)}; use it from one thread, e.g. the UI thread.
+ */
+public final class AudioClock {
+    // Offsets in PlaybackClock::State
+    private static final int TIME_NANOS = 8;
+    private static final int FRAME_POSITION = 16;
+    private static final int WRITTEN_FRAME_POSITION = 24;
+    private static final int SCORE_FRAME = 32;
+    private static final int SCORE_PLAYING = 40;
+    private static final int SAMPLE_RATE = 48;
+    private static final int SCORE_FINISHED = 56;
+
+    private final SeqLockReader mState;
+    private long mFramePosition;
+    private long mScoreFrame = -1;
+    private int mSampleRate;
+    private boolean mScoreFinished;
+
+    AudioClock(ByteBuffer state) {
+        mState = new SeqLockReader(state);
+    }
+
+    /**
+     * Work out what is heard at {@code nowNanos}, on the {@link System#nanoTime()} clock like a
+     * Choreographer frame time. Returns false until the engine has played something.
+     */
+    public boolean update(long nowNanos) {
+        final ByteBuffer state = mState.buffer();
+        long sequence;
+        long timeNanos;
+        long framePosition;
+        long writtenFramePosition;
+        long scoreFrame;
+        long scorePlaying;
+        long sampleRate;
+        long scoreFinished;
+        do {
+            sequence = mState.begin();
+            timeNanos = state.getLong(TIME_NANOS);
+            framePosition = state.getLong(FRAME_POSITION);
+            writtenFramePosition = state.getLong(WRITTEN_FRAME_POSITION);
+            scoreFrame = state.getLong(SCORE_FRAME);
+            scorePlaying = state.getLong(SCORE_PLAYING);
+            sampleRate = state.getLong(SAMPLE_RATE);
+            scoreFinished = state.getLong(SCORE_FINISHED);
+        } while (!mState.validate(sequence));
+        if (sampleRate <= 0)
+            return false;
+
+        // Nothing plays past the rendered audio, e.g. while the stream is paused
+        final long elapsed = Math.min((nowNanos - timeNanos) * sampleRate / 1000000000L,
+                writtenFramePosition - framePosition);
+        mFramePosition = framePosition + elapsed;
+        if (scoreFrame >= 0 && scorePlaying != 0)
+            mScoreFrame = Math.max(0, scoreFrame + elapsed);
+        else
+            mScoreFrame = scoreFrame;
+        mSampleRate = (int) sampleRate;
+        mScoreFinished = scoreFinished != 0;
+        return true;
+    }
+
+    /**
+     * Frame heard at the last update, on the clock of {@link MusicBoxEngine#getFramePosition()}.
+     */
+    public long getFramePosition() {
+        return mFramePosition;
+    }
+
+    /**
+     * Position in the score heard at the last update, -1 if the engine has no score.
+     */
+    public long getScorePositionMs() {
+        return mScoreFrame < 0 ? -1 : mScoreFrame * 1000 / mSampleRate;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Whether the score had played to its end at the last update, the notes it left ringing
+     * included. A score that was stopped or rewound is not finished.
+     */
+    public boolean isScoreFinished() {
+        return mScoreFinished;
+    }
+}
@@ -0,0 +1,67 @@
+package com.yuan.midiplayer;
+
+import com.customview.graph.VuLevel;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Latest waveform, spectrum and VU levels of the engine's visual analysis. The analysis thread
+ * publishes them to memory shared with this class (see VisualDataBuffer.h), handed out once when
+ * the engine is created, so reading them takes no JNI call and allocates nothing.
+ * <p>
+ * Keeps the sequence of the last {@link #read}; use it from one thread, e.g. the UI thread.
+ */
+public final class AudioVisualData {
+    public static final int WAVEFORM_POINTS = 256;
+    public static final int SPECTRUM_BANDS = 128;
+
+    // Offsets in VisualDataBuffer::State
+    private static final int WAVEFORM = 8;
+    private static final int SPECTRUM = WAVEFORM + WAVEFORM_POINTS * 4;
+    private static final int RMS_DB = SPECTRUM + SPECTRUM_BANDS * 4;
+    private static final int PEAK_DB = RMS_DB + 4;
+    private static final int PEAK_HOLD_DB = PEAK_DB + 4;
+
+    private final SeqLockReader mState;
+    private final FloatBuffer mWaveform;
+    private final FloatBuffer mSpectrum;
+    private long mLastSequence;
+
+    AudioVisualData(ByteBuffer state) {
+        mState = new SeqLockReader(state);
+        mWaveform = floats(mState.buffer(), WAVEFORM, WAVEFORM_POINTS);
+        mSpectrum = floats(mState.buffer(), SPECTRUM, SPECTRUM_BANDS);
+    }
+
+    private static FloatBuffer floats(ByteBuffer buffer, int offset, int count) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + count * 4);
+        return view.slice().order(buffer.order()).asFloatBuffer();
+    }
+
+    /**
+     * Copy the latest data into {@code waveform} ({@link #WAVEFORM_POINTS} values from -1 to 1),
+     * {@code spectrum} ({@link #SPECTRUM_BANDS} values in dBFS) and {@code vuLevel}. Returns false,
+     * leaving them as they are, if nothing was published since the last call.
+     */
+    public boolean read(float[] waveform, float[] spectrum, VuLevel vuLevel) {
+        final ByteBuffer state = mState.buffer();
+        long sequence;
+        do {
+            sequence = mState.begin();
+            if (sequence == mLastSequence)
+                return false;
+            mWaveform.rewind();
+            mWaveform.get(waveform, 0, WAVEFORM_POINTS);
+            mSpectrum.rewind();
+            mSpectrum.get(spectrum, 0, SPECTRUM_BANDS);
+            vuLevel.rmsDb = state.getFloat(RMS_DB);
+            vuLevel.peakDb = state.getFloat(PEAK_DB);
+            vuLevel.peakHoldDb = state.getFloat(PEAK_HOLD_DB);
+        } while (!mState.validate(sequence));
+        mLastSequence = sequence;
+        return true;
+    }
+}
@@ -0,0 +1,53 @@
+package com.yuan.midiplayer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Remembers the output buffer size the engine tuned itself to, per device and stream
+ * configuration, so the next launch starts from a size known to play without underruns instead
+ * of tuning up from one burst again.
+ */
+public final class BufferSizeStore {
+    private static final String PREFS_NAME = "audio_tuning";
+
+    private BufferSizeStore() {
+    }
+
+    /**
+     * Start {@code engine} from the size saved for its current stream, if there is one.
+     */
+    public static void restore(Context context, MusicBoxEngine engine) {
+        String key = key(engine);
+        if (key == null)
+            return;
+        int frames = prefs(context).getInt(key, 0);
+        if (frames > 0)
+            engine.setBufferSizeInFrames(frames);
+    }
+
+    /**
+     * Save the size {@code engine} has tuned its current stream to.
+     */
+    public static void save(Context context, MusicBoxEngine engine) {
+        String key = key(engine);
+        int frames = engine.getBufferSizeInFrames();
+        if (key != null && frames > 0)
+            prefs(context).edit().putInt(key, frames).apply();
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    // Preferences can be restored onto another device from a backup, hence the model
+    private static String key(MusicBoxEngine engine) {
+        int sampleRate = engine.getSampleRate();
+        int framesPerBurst = engine.getFramesPerBurst();
+        if (sampleRate <= 0 || framesPerBurst <= 0)
+            return null;
+        return "bufferSize/" + Build.MANUFACTURER + "/" + Build.MODEL + "/" + sampleRate + "/"
+                + framesPerBurst;
+    }
+}
@@ -0,0 +1,122 @@
+package com.yuan.midiplayer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Immutable result of {@link SongCompiler}: everything the player, the analyser and the piano
+ * roll need from a MIDI file, produced by a single pass over its events.
+ */
+public final class CompiledSong {
+    private final NoteTable noteTable;
+    private final TempoMap tempoMap;
+    private final int[] pitchHistogram;
+    private final int lowestPitch;
+    private final int highestPitch;
+    private final int suggestedTranspose;
+    private final long[] playbackTimesMs;
+    private final byte[] playbackNotes;
+    private final int playbackEventCount;
+    private final long lengthMs;
+
+    CompiledSong(NoteTable noteTable, TempoMap tempoMap, int[] pitchHistogram, int lowestPitch,
+                 int highestPitch, int suggestedTranspose, long[] playbackTimesMs,
+                 byte[] playbackNotes, int playbackEventCount, long lengthMs) {
+        this.noteTable = noteTable;
+        this.tempoMap = tempoMap;
+        this.pitchHistogram = pitchHistogram;
+        this.lowestPitch = lowestPitch;
+        this.highestPitch = highestPitch;
+        this.suggestedTranspose = suggestedTranspose;
+        this.playbackTimesMs = playbackTimesMs;
+        this.playbackNotes = playbackNotes;
+        this.playbackEventCount = playbackEventCount;
+        this.lengthMs = lengthMs;
+    }
+
+    /**
+     * Notes sorted by start time, with durations resolved from their NoteOff.
+     */
+    public NoteTable getNoteTable() {
+        return noteTable;
+    }
+
+    public TempoMap getTempoMap() {
+        return tempoMap;
+    }
+
+    /**
+     * Number of (non-percussion) NoteOn events for each MIDI pitch.
+     */
+    public int getPitchOccurrences(int pitch) {
+        return pitchHistogram[pitch];
+    }
+
+    public int[] getPitchHistogram() {
+        return pitchHistogram.clone();
+    }
+
+    public boolean isEmpty() {
+        return playbackEventCount == 0;
+    }
+
+    public int getLowestPitch() {
+        return lowestPitch;
+    }
+
+    public int getHighestPitch() {
+        return highestPitch;
+    }
+
+    public int getSuggestedTranspose() {
+        return suggestedTranspose;
+    }
+
+    /**
+     * Playback stream: NoteOn events to be sent to the synthesizer, in time order.
+     */
+    public int getPlaybackEventCount() {
+        return playbackEventCount;
+    }
+
+    public long getPlaybackTimeMs(int index) {
+        return playbackTimesMs[index];
+    }
+
+    public int getPlaybackNote(int index) {
+        return playbackNotes[index];
+    }
+
+    public long getLengthMs() {
+        return lengthMs;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        noteTable.write(out);
+        tempoMap.write(out);
+        CompiledSongCache.writeInts(out, pitchHistogram, pitchHistogram.length);
+        out.writeInt(lowestPitch);
+        out.writeInt(highestPitch);
+        out.writeInt(suggestedTranspose);
+        CompiledSongCache.writeLongs(out, playbackTimesMs, playbackEventCount);
+        CompiledSongCache.writeBytes(out, playbackNotes, playbackEventCount);
+        out.writeLong(lengthMs);
+    }
+
+    static CompiledSong read(ByteBuffer in) {
+        NoteTable noteTable = NoteTable.read(in);
+        TempoMap tempoMap = TempoMap.read(in);
+        int[] pitchHistogram = CompiledSongCache.readInts(in);
+        int lowestPitch = in.getInt();
+        int highestPitch = in.getInt();
+        int suggestedTranspose = in.getInt();
+        long[] playbackTimesMs = CompiledSongCache.readLongs(in);
+        byte[] playbackNotes = CompiledSongCache.readBytes(in);
+        long lengthMs = in.getLong();
+        if (pitchHistogram.length != 128 || playbackNotes.length != playbackTimesMs.length)
+            throw new IllegalArgumentException("Inconsistent compiled song");
+        return new CompiledSong(noteTable, tempoMap, pitchHistogram, lowestPitch, highestPitch,
+                suggestedTranspose, playbackTimesMs, playbackNotes, playbackTimesMs.length, lengthMs);
+    }
+}
@@ -0,0 +1,201 @@
+package com.yuan.midiplayer;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Disk cache of {@link CompiledSong}s, keyed by the SHA-256 of the MIDI bytes and the compiler
+ * settings. Entries are plain files in a versioned binary format, read back with a single
+ * memory mapping. The least recently used entries are evicted once the total size goes over the
+ * limit; a hit refreshes the entry's modification time, which is what LRU order is based on.
+ */
+public class CompiledSongCache {
+    private static final int MAGIC = 0x4D425343; // "MBSC"
+    // Bump whenever the layout written by CompiledSong.write() changes
+    private static final int FORMAT_VERSION = 2;
+    private static final String SUFFIX = ".song";
+
+    private final String TAG = com.yuan.music_box.MainActivity.class.toString();
+    private final File mDir;
+    private final long mMaxBytes;
+
+    public CompiledSongCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Cache key of {@code data} compiled by {@code compiler}. The buffer is left untouched.
+     */
+    public static String keyOf(ByteBuffer data, SongCompiler compiler) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(data.duplicate());
+        digest.update(ByteBuffer.allocate(8)
+                .putInt(compiler.getRecommHighestPitch())
+                .putInt(compiler.getRecommLowestPitch())
+                .array());
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b & 0xFF));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the cached song for {@code key}, or null on a miss. Unreadable entries are dropped.
+     */
+    public synchronized CompiledSong get(String key) {
+        File file = new File(mDir, key + SUFFIX);
+        if (!file.isFile())
+            return null;
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                Log.d(TAG, "Dropping stale song cache entry " + file.getName());
+                file.delete();
+                return null;
+            }
+            CompiledSong song = CompiledSong.read(buffer);
+            file.setLastModified(System.currentTimeMillis());
+            return song;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Dropping unreadable song cache entry " + file.getName(), e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Store {@code song} under {@code key} and evict old entries if needed. Failures are logged
+     * and otherwise ignored, the cache is only an optimisation.
+     */
+    public synchronized void put(String key, CompiledSong song) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Cannot create song cache dir " + mDir);
+            return;
+        }
+
+        // Write to a temporary file first so a crash never leaves a truncated entry behind
+        File file = new File(mDir, key + SUFFIX);
+        File temp = new File(mDir, key + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            song.write(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write song cache entry", e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+        evict();
+    }
+
+    private void evict() {
+        File[] files = mDir.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null)
+            return;
+
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= mMaxBytes)
+            return;
+
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : files) {
+            if (total <= mMaxBytes)
+                break;
+            long length = f.length();
+            if (f.delete())
+                total -= length;
+        }
+    }
+
+    // Arrays are stored as an int count followed by the elements
+
+    static void writeBytes(DataOutputStream out, byte[] values, int count) throws IOException {
+        out.writeInt(count);
+        out.write(values, 0, count);
+    }
+
+    static void writeInts(DataOutputStream out, int[] values, int count) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    static void writeLongs(DataOutputStream out, long[] values, int count) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeLong(values[i]);
+        }
+    }
+
+    static void writeFloats(DataOutputStream out, float[] values, int count) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeFloat(values[i]);
+        }
+    }
+
+    static byte[] readBytes(ByteBuffer in) {
+        byte[] values = new byte[readCount(in, 1)];
+        in.get(values);
+        return values;
+    }
+
+    static int[] readInts(ByteBuffer in) {
+        int[] values = new int[readCount(in, 4)];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + values.length * 4);
+        return values;
+    }
+
+    static long[] readLongs(ByteBuffer in) {
+        long[] values = new long[readCount(in, 8)];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + values.length * 8);
+        return values;
+    }
+
+    static float[] readFloats(ByteBuffer in) {
+        float[] values = new float[readCount(in, 4)];
+        in.asFloatBuffer().get(values);
+        in.position(in.position() + values.length * 4);
+        return values;
+    }
+
+    private static int readCount(ByteBuffer in, int elementSize) {
+        int count = in.getInt();
+        if (count < 0 || (long) count * elementSize > in.remaining())
+            throw new IllegalArgumentException("Bad array length " + count);
+        return count;
+    }
+}
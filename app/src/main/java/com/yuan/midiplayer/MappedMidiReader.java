@@ -0,0 +1,125 @@
+package com.yuan.midiplayer;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Gets the bytes of a MIDI file as a {@link ByteBuffer} with as few copies as possible. Regular
+ * files, SAF documents backed by one and uncompressed assets are memory-mapped; anything that
+ * cannot be mapped (pipes, network providers, compressed assets) is read in a single bulk read.
+ */
+public final class MappedMidiReader {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Opens the file when the loader gets to it, on the loader thread.
+     */
+    public interface Source {
+        ByteBuffer open() throws IOException;
+    }
+
+    private MappedMidiReader() {
+    }
+
+    public static Source fromUri(ContentResolver resolver, Uri uri) {
+        return () -> {
+            ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "r");
+            if (pfd == null)
+                throw new FileNotFoundException(uri.toString());
+            try {
+                // Stat size is -1 for pipes and sockets, which cannot be mapped
+                long size = pfd.getStatSize();
+                if (size >= 0) {
+                    ByteBuffer mapped = tryMap(pfd.getFileDescriptor(), 0, size);
+                    if (mapped != null)
+                        return mapped;
+                }
+                return readFully(new FileInputStream(pfd.getFileDescriptor()), size);
+            } finally {
+                pfd.close();
+            }
+        };
+    }
+
+    public static Source fromAsset(AssetManager assets, String path) {
+        return () -> {
+            AssetFileDescriptor afd;
+            try {
+                afd = assets.openFd(path);
+            } catch (FileNotFoundException e) {
+                // openFd only works for assets stored uncompressed in the APK
+                try (InputStream in = assets.open(path)) {
+                    return readFully(in, -1);
+                }
+            }
+            try {
+                long length = afd.getLength();
+                if (length != AssetFileDescriptor.UNKNOWN_LENGTH) {
+                    ByteBuffer mapped = tryMap(afd.getFileDescriptor(), afd.getStartOffset(), length);
+                    if (mapped != null)
+                        return mapped;
+                }
+                try (InputStream in = afd.createInputStream()) {
+                    return readFully(in, length);
+                }
+            } finally {
+                afd.close();
+            }
+        };
+    }
+
+    // Returns null when the descriptor does not support mapping
+    private static ByteBuffer tryMap(FileDescriptor fd, long offset, long length) {
+        // The stream does not own fd, its owner closes it; the mapping outlives both
+        FileChannel channel = new FileInputStream(fd).getChannel();
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The remaining bytes of {@code buffer}, without copying when it already wraps exactly them.
+     */
+    static byte[] toArray(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.limit() == buffer.array().length)
+            return buffer.array();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+
+    static ByteBuffer readFully(InputStream in, long sizeHint) throws IOException {
+        byte[] data = new byte[sizeHint > 0 ? (int) sizeHint : READ_BUFFER_SIZE];
+        int length = 0;
+        while (true) {
+            if (length == data.length) {
+                // Full: usually the size hint was right and the stream is at its end
+                int b = in.read();
+                if (b == -1)
+                    break;
+                data = Arrays.copyOf(data, length * 2);
+                data[length++] = (byte) b;
+            }
+            int n = in.read(data, length, data.length - length);
+            if (n == -1)
+                break;
+            length += n;
+        }
+        return ByteBuffer.wrap(data, 0, length);
+    }
+}
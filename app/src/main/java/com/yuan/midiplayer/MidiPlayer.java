@@ -2,180 +2,226 @@ package com.yuan.midiplayer;
 
 import android.util.Log;
 
-import com.pgf.mididroid.MidiFile;
-import com.pgf.mididroid.event.MidiEvent;
-import com.pgf.mididroid.event.NoteOn;
-import com.pgf.mididroid.util.MidiEventListener;
-import com.pgf.mididroid.util.MidiProcessor;
+import com.customview.graph.VuLevel;
 
-import java.io.IOException;
 import java.io.InputStream;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class MidiPlayer extends Player {
+    // Pre-rendered notes take up to ~130 kB each at 48 kHz; enough for the range of most songs
+    private static final long NOTE_CACHE_BYTES = 8L << 20;
     private final String TAG = com.yuan.music_box.MainActivity.class.toString();
     public MusicBoxEngine mEngine;
-    private MidiProcessor mProcessor;
+    private final SongLoader mLoader = new SongLoader(new SongCompiler(60, 60)); //C4 in midi number
+    // Loaded song waiting to be swapped in by the player thread
+    private final AtomicReference<CompiledSong> mPendingSong = new AtomicReference<>();
+    // Stops the player once the engine has played the song out
+    private final SongEndWatcher mEndWatcher;
+    private volatile CompiledSong mSong;
     private String midiFilePath;
     private int mTransposeValue = 0;
     private MidiPlayerEventListener mListener;
-    private Timer visualizeTaskTimer = new Timer();
-    private TimerTask visualizeTask;
 
 
     public MidiPlayer(MidiPlayerEventListener listener) {
         super(listener);
         mListener = listener;
         mEngine = new MusicBoxEngine();
+        mEndWatcher = new SongEndWatcher(mEngine, this::stop);
+        int polyphony = MusicBoxEngine.suggestPolyphony();
+        // One core may not keep up with more voices than the default
+        if (polyphony > MusicBoxEngine.DEFAULT_POLYPHONY) {
+            if (mEngine.canRenderMultiThreaded()) {
+                mEngine.setMultiThreadedRendering(true);
+            } else {
+                Log.i(TAG, "No cores reserved for voice render workers, polyphony "
+                        + MusicBoxEngine.DEFAULT_POLYPHONY + " instead of " + polyphony);
+                polyphony = MusicBoxEngine.DEFAULT_POLYPHONY;
+            }
+        }
+        mEngine.setPolyphony(polyphony);
+        // Few cores: play pre-rendered notes rather than synthesizing every voice
+        if (Runtime.getRuntime().availableProcessors() < 4)
+            mEngine.setNoteCacheSize(NOTE_CACHE_BYTES);
+    }
+
+    /**
+     * Keep compiled songs in {@code cache} so reopening a song skips parsing and analysis.
+     */
+    public void setSongCache(CompiledSongCache cache) {
+        mLoader.setCache(cache);
+    }
+
+    /**
+     * Audio callback counters of the engine, see {@link MusicBoxEngine#getCallbackStats()}.
+     */
+    public MusicBoxEngine.CallbackStats getCallbackStats() {
+        return mEngine.getCallbackStats();
+    }
+
+    public void resetCallbackStats() {
+        mEngine.resetCallbackStats();
+    }
+
+    /**
+     * Song position heard from the speaker at {@code nowNanos} ({@link System#nanoTime()}), from
+     * the engine's {@link AudioClock}; -1 if it is not known (yet). Call it from one thread.
+     */
+    public long getPlaybackPositionMs(long nowNanos) {
+        AudioClock clock = mEngine.getAudioClock();
+        if (clock == null || !clock.update(nowNanos))
+            return -1;
+        return clock.getScorePositionMs();
+    }
+
+    /**
+     * Latest waveform, spectrum and VU levels of what is playing, see
+     * {@link AudioVisualData#read}. False if nothing new was analysed since the last call.
+     */
+    public boolean readVisualData(float[] waveform, float[] spectrum, VuLevel vuLevel) {
+        AudioVisualData data = mEngine.getVisualData();
+        return data != null && data.read(waveform, spectrum, vuLevel);
     }
 
     public void setTranspose(int transposeValue) {
         mTransposeValue = transposeValue;
+        if (mEngine != null)
+            mEngine.setTranspose(transposeValue);
     }
 
     @Override
     protected void internalPlay() {
-        if (mProcessor != null)
-            mProcessor.start();
-        if (mEngine != null)
+        CompiledSong song = mPendingSong.getAndSet(null);
+        if (song != null) {
+            boolean traced = Tracing.begin("MidiPlayer.installSong");
+            boolean installed;
+            try {
+                installed = installSong(song);
+            } finally {
+                Tracing.end(traced);
+            }
+            if (!installed) {
+                // Back to STOP; the previous song stays loaded
+                stop();
+                return;
+            }
+        }
+        if (mEngine != null) {
+            mEngine.playScore();
             mEngine.pause(false);
-        startInternalTimer();
+        }
+        mEndWatcher.start();
     }
 
     @Override
     protected void internalPause() {
-        if (mProcessor != null)
-            mProcessor.stop();
+        mEndWatcher.stop();
         if (mEngine != null)
             mEngine.pause(true);
-        stopInternalTimer();
     }
 
     @Override
     protected void internalResume() {
-        if (mProcessor != null)
-            mProcessor.start();
         if (mEngine != null)
             mEngine.pause(false);
-        startInternalTimer();
+        mEndWatcher.start();
     }
 
     @Override
     protected void internalStop() {
-        if (mProcessor != null)
-            mProcessor.reset();
+        mEndWatcher.stop();
         if (mEngine != null) {
             mEngine.pause(true);
+            mEngine.stopScore();
             mEngine.resetSynthesizer();
+            MusicBoxEngine.EventQueueStats stats = mEngine.getEventQueueStats();
+            if (stats.droppedEvents > 0)
+                Log.w(TAG, "Engine event queue overflowed: " + stats);
+            Log.i(TAG, "Audio callback: " + mEngine.getCallbackStats());
         }
-        stopInternalTimer();
     }
 
-    void stopInternalTimer() {
-        if (visualizeTaskTimer != null) {
-            visualizeTaskTimer.cancel();
-            visualizeTaskTimer = null;
-        }
-        if (visualizeTask != null) {
-            visualizeTask.cancel();
-            visualizeTask = null;
-        }
+    /**
+     * Load {@code input} in the background and play it once it is ready. Returns immediately;
+     * a song still loading from an earlier call is cancelled.
+     */
+    public void playMidiFile(InputStream input) {
+        mLoader.load(input, mLoadCallback);
+    }
+
+    /**
+     * Same as {@link #playMidiFile(InputStream)}, but lets the loader map the file instead of
+     * streaming it; see {@link MappedMidiReader}.
+     */
+    public void playMidiFile(MappedMidiReader.Source source) {
+        mLoader.load(source, mLoadCallback);
     }
 
-    void startInternalTimer() {
-        if (visualizeTaskTimer == null) {
-            visualizeTaskTimer = new Timer();
+    private final SongLoader.Callback mLoadCallback = new SongLoader.Callback() {
+        @Override
+        public void onProgress(float progress) {
+            mListener.onLoadProgress(progress);
         }
 
-        if (visualizeTask == null) {
-            visualizeTask = new TimerTask() {
-                @Override
-                public void run() {
-                    mListener.onVisualChangeChange(mEngine.getWaveformData(),
-                            mEngine.getSpectrumData(),
-                            mEngine.getVuLevelData());
-                }
-            };
+        @Override
+        public void onLoaded(CompiledSong song) {
+            // The player thread picks the song up between STOP and PLAY
+            mPendingSong.set(song);
+            stop();
+            play();
         }
 
-        if (visualizeTaskTimer != null && visualizeTask != null)
-            visualizeTaskTimer.schedule(visualizeTask, 0, 30);
+        @Override
+        public void onFailed(Exception e) {
+            Log.e(TAG, "Failed to load midi file", e);
+            mListener.onLoadFailed(e);
+        }
+    };
+
+    // Runs on the player thread, with the previous song already stopped. False if the engine
+    // did not take the song
+    private boolean installSong(CompiledSong song) {
+        // The engine plays the notes sample-accurately from the score, the UI follows its
+        // AudioClock
+        if (!mEngine.loadScore(ScoreEncoder.encode(song))) {
+            Log.e(TAG, "Engine did not take the score");
+            mListener.onLoadFailed(new IllegalStateException("Engine did not take the score"));
+            return false;
+        }
+        setTranspose(song.getSuggestedTranspose());
+        mListener.onSuggestTransposeChange(song.getSuggestedTranspose());
+        mSong = song;
+
+        mListener.onGetNoteTable(song.getNoteTable(), song.getTempoMap());
+        return true;
     }
 
-    public void playMidiFile(InputStream input) {
+    /**
+     * Jump to {@code positionMs} of the current song, keeping the play/pause state.
+     */
+    public void seekTo(long positionMs) {
+        boolean traced = Tracing.begin("MidiPlayer.seekTo");
         try {
-            // File input = new File(midiFilePath);
-            MidiFile midi = new MidiFile(input);
-            NoteListProcessor np = new NoteListProcessor(midi);
-            np.recommHighestPitch = 60; //C4 in midi number
-            np.recommLowestPitch = 60; //C4 in midi number
-            np.analyzeNoteMapByCentroid();
-            mListener.onSuggestTransposeChange(np.suggestTranpose);
-            mTransposeValue = np.suggestTranpose;
-            // Create a new MidiProcessor:
-            MidiEventPlayer ep = new MidiEventPlayer("sd");
-            mProcessor = new MidiProcessor(midi);
-            mProcessor.registerEventListener(ep, NoteOn.class);
-
-            MidiHelper helper = new MidiHelper(midi);
-            mListener.onGetNoteList(helper.generateNoteEvents());
-
-            play();
-            // Start the processor:
-        } catch (IOException e) {
-            System.err.println(e);
+            if (mEngine != null)
+                mEngine.seekScore(positionMs);
+        } finally {
+            Tracing.end(traced);
         }
     }
 
+    /**
+     * Length of the current song, 0 before one is loaded.
+     */
+    public long getSongLengthMs() {
+        CompiledSong song = mSong;
+        return song != null ? song.getLengthMs() : 0;
+    }
+
     public void releaseResource() {
+        mLoader.release();
         internalStop();
-        if (mProcessor != null)
-            mProcessor.reset();
         if (mEngine != null)
             mEngine.releaseResource();
     }
-
-    // This class will print any event it receives to the console
-    public class MidiEventPlayer implements MidiEventListener {
-        private String mLabel;
-
-        public MidiEventPlayer(String label) {
-            mLabel = label;
-        }
-
-        @Override
-        public void onStart(boolean fromBeginning) {
-            if (fromBeginning) {
-            } else {
-            }
-        }
-
-        @Override
-        public void onEvent(MidiEvent event, long ms) {
-            NoteOn ev = (NoteOn) event;
-            final int note = ev.getNoteValue();
-            int velocity = ev.getVelocity();
-            int channel = ev.getChannel();
-            if (velocity != 0 && channel != 9) {
-                final int noteTranspose = note + mTransposeValue;
-                if (noteTranspose >= 0 && noteTranspose <= 127) {
-                    mEngine.noteOn(noteTranspose);
-                    mListener.onNoteOn(noteTranspose, ms);
-
-                    //Log.d(TAG, String.format("onMidiEvent: %d", noteTranspose));
-                }
-            }
-        }
-
-        @Override
-        public void onStop(boolean finished) {
-            if (finished) {
-                Log.d(TAG, "onMidiEvent: Stop");
-                stop();
-            }
-        }
-
-    }
 }
@@ -1,16 +1,19 @@
 package com.yuan.midiplayer;
 
-import com.customview.graph.PianoRollView;
-import com.customview.graph.VuLevel;
-
-import java.util.List;
-
 public interface MidiPlayerEventListener extends PlayerEventListener {
     void onSuggestTransposeChange(int transpose);
 
-    void onGetNoteList(List<PianoRollView.NoteEvent> noteList);
+    /**
+     * Loading progress of the song requested by {@link MidiPlayer#playMidiFile}, from 0 to 1.
+     * Called on the loader thread.
+     */
+    void onLoadProgress(float progress);
 
-    void onNoteOn(int note, long ms);
+    void onLoadFailed(Exception e);
 
-    void onVisualChangeChange(float[] waveform, float[] spectrum, VuLevel vuLevel);
+    /**
+     * Notes and tempo map of the song about to play. Both are shared and must not be copied or
+     * modified.
+     */
+    void onGetNoteTable(NoteTable noteTable, TempoMap tempoMap);
 }
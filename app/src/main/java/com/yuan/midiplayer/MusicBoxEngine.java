@@ -3,10 +3,20 @@ package com.yuan.midiplayer;
 import android.os.Build;
 import android.util.Log;
 
-import com.customview.graph.VuLevel;
+import java.nio.ByteBuffer;
+import java.util.Locale;
 
 public class MusicBoxEngine {
+    // Polyphony range and default of the synthesizer, see POLY_MIN / POLY_MAX / POLY_NUM in
+    // SynthCore.h
+    public static final int MIN_POLYPHONY = 16;
+    public static final int DEFAULT_POLYPHONY = 32;
+    public static final int MAX_POLYPHONY = 128;
+
     private static long mEngineHandle = 0;
+    private AudioClock mAudioClock;
+    private AudioVisualData mVisualData;
+    private int mExclusiveCoreCount;
     private final String TAG = com.yuan.music_box.MainActivity.class.toString();
 
     private static native long createNativeEngine(int[] cpuIds);
@@ -19,14 +29,46 @@ public class MusicBoxEngine {
 
     private static native void nativeNoteOn(long engineHandle, int note);
 
-    private static native void nativeSetDefaultStreamValues(int sampleRate, int framesPerBurst);
+    private static native boolean nativeLoadScore(long engineHandle, ByteBuffer score, int length,
+                                                  int ticksPerSecond);
+
+    private static native void nativePlayScore(long engineHandle);
+
+    private static native void nativeStopScore(long engineHandle);
+
+    private static native void nativeSeekScore(long engineHandle, int scoreTick);
+
+    private static native void nativeSetTranspose(long engineHandle, int semitones);
+
+    private static native void nativeSetPolyphony(long engineHandle, int voices);
+
+    private static native void nativeSetNoteCacheSize(long engineHandle, long maxBytes);
+
+    private static native void nativeSetMultiThreadedRendering(long engineHandle, boolean enabled);
+
+    private static native void nativeGetEventQueueStats(long engineHandle, long[] stats);
+
+    private static native void nativeGetCallbackStats(long engineHandle, long[] stats);
+
+    private static native void nativeResetCallbackStats(long engineHandle);
 
-    private static native float[] nativeGetWaveformData(long engineHandle);
+    private static native long nativeGetFramePosition(long engineHandle);
 
-    private static native float[] nativeGetSpectrumData(long engineHandle);
+    private static native int nativeGetSampleRate(long engineHandle);
 
-    private static native VuLevel nativeGetVuLevel(long engineHandle);
+    private static native int nativeGetFramesPerBurst(long engineHandle);
 
+    private static native int nativeGetBufferSizeInFrames(long engineHandle);
+
+    private static native void nativeSetBufferSizeInFrames(long engineHandle, int frames);
+
+    private static native ByteBuffer nativeGetPlaybackClock(long engineHandle);
+
+    private static native ByteBuffer nativeGetVisualData(long engineHandle);
+
+    private static native void nativeSetDefaultStreamValues(int sampleRate, int framesPerBurst);
+
+    private static native void nativeSetTracingEnabled(boolean enabled);
 
     // Used to load the 'native-lib' library on application startup.
     static {
@@ -34,7 +76,14 @@ public class MusicBoxEngine {
     }
 
     MusicBoxEngine() {
-        mEngineHandle = createNativeEngine(getExclusiveCores());
+        int[] exclusiveCores = getExclusiveCores();
+        mExclusiveCoreCount = exclusiveCores.length;
+        mEngineHandle = createNativeEngine(exclusiveCores);
+        if (mEngineHandle != 0) {
+            ByteBuffer visualData = nativeGetVisualData(mEngineHandle);
+            if (visualData != null)
+                mVisualData = new AudioVisualData(visualData);
+        }
     }
 
     public void noteOn(int note) {
@@ -52,30 +101,293 @@ public class MusicBoxEngine {
             nativeResetSynthesizer(mEngineHandle);
     }
 
-    public void releaseResource() {
+    /**
+     * Hand a score encoded by {@link ScoreEncoder} over to the audio thread, which sequences it
+     * on its own from then on. {@code score} must be a direct buffer; it is copied between its
+     * position and limit, so it can be dropped afterwards. The score waits for
+     * {@link #playScore()}.
+     */
+    public boolean loadScore(ByteBuffer score) {
+        if (mEngineHandle == 0)
+            return false;
+        if (!score.isDirect())
+            throw new IllegalArgumentException("Score must be a direct buffer");
+        ByteBuffer data = score.slice();
+        return nativeLoadScore(mEngineHandle, data, data.remaining(), ScoreEncoder.TICKS_PER_SECOND);
+    }
+
+    public void playScore() {
         if (mEngineHandle != 0)
-            deleteNativeEngine(mEngineHandle);
+            nativePlayScore(mEngineHandle);
     }
 
-    public float[] getWaveformData() {
+    /**
+     * Stop the score and rewind it to the beginning.
+     */
+    public void stopScore() {
         if (mEngineHandle != 0)
-            return nativeGetWaveformData(mEngineHandle);
+            nativeStopScore(mEngineHandle);
+    }
+
+    public void seekScore(long positionMs) {
+        if (mEngineHandle != 0)
+            nativeSeekScore(mEngineHandle,
+                    (int) Math.min(positionMs * ScoreEncoder.TICKS_PER_SECOND / 1000, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Semitones added to every note of the score, applied by the audio thread.
+     */
+    public void setTranspose(int semitones) {
+        if (mEngineHandle != 0)
+            nativeSetTranspose(mEngineHandle, semitones);
+    }
+
+    /**
+     * Native output sample rate and burst size of the device, as reported by
+     * {@link android.media.AudioManager}. Streams opened afterwards use them where the audio
+     * API cannot find them out itself (OpenSL ES, before Android 8.1), so they run at the
+     * device's own rate without resampling.
+     */
+    public static void setDefaultStreamValues(int sampleRate, int framesPerBurst) {
+        nativeSetDefaultStreamValues(sampleRate, framesPerBurst);
+    }
+
+    /**
+     * Switch the native trace sections on or off, see {@link Tracing#setEnabled(boolean)}.
+     */
+    static void setTracingEnabled(boolean enabled) {
+        nativeSetTracingEnabled(enabled);
+    }
+
+    /**
+     * Number of voices the synthesizer may sound at once, {@link #MIN_POLYPHONY} to
+     * {@link #MAX_POLYPHONY}. Once all are busy a new note takes over the quietest voice, which
+     * fades out quickly. Takes effect with the next audio buffer.
+     */
+    public void setPolyphony(int voices) {
+        if (mEngineHandle != 0)
+            nativeSetPolyphony(mEngineHandle, voices);
+    }
+
+    /**
+     * Play notes from whole notes rendered ahead of time on a background thread, keeping up to
+     * {@code maxBytes} of them; 0 (the default) synthesizes every voice. A cached voice costs
+     * little more than a copy, so this helps devices that cannot keep up with the polyphony. The
+     * loaded song's notes are rendered first, other notes the first time they play.
+     */
+    public void setNoteCacheSize(long maxBytes) {
+        if (mEngineHandle != 0)
+            nativeSetNoteCacheSize(mEngineHandle, maxBytes);
+    }
+
+    /**
+     * Let the audio thread share the voices with worker threads pinned to the cores reserved for
+     * the app, for high polyphony. The engine only splits the voices while rendering them on one
+     * thread would take too much of each buffer, and needs at least two reserved cores
+     * ({@code Process.getExclusiveCores()}).
+     */
+    public void setMultiThreadedRendering(boolean enabled) {
+        if (mEngineHandle != 0)
+            nativeSetMultiThreadedRendering(mEngineHandle, enabled);
+    }
+
+    /**
+     * Whether {@link #setMultiThreadedRendering(boolean)} can do anything here. Most devices
+     * reserve no cores for the foreground app.
+     */
+    public boolean canRenderMultiThreaded() {
+        return mExclusiveCoreCount >= 2;
+    }
+
+    /**
+     * Polyphony this device can afford, going by its number of CPU cores. Rendering cost grows
+     * with the number of voices sounding.
+     */
+    public static int suggestPolyphony() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (cores >= 8)
+            return 64;
+        else if (cores >= 4)
+            return 32;
+        else
+            return MIN_POLYPHONY;
+    }
+
+    public EventQueueStats getEventQueueStats() {
+        long[] stats = new long[3];
+        if (mEngineHandle != 0)
+            nativeGetEventQueueStats(mEngineHandle, stats);
+        return new EventQueueStats(stats[0], stats[1], stats[2]);
+    }
+
+    /**
+     * Counters of the engine's note event queue, since the engine was created.
+     */
+    public static final class EventQueueStats {
+        public final long capacity;
+        // Most events ever waiting at once
+        public final long highWaterMark;
+        // Events lost because the queue was full
+        public final long droppedEvents;
+
+        EventQueueStats(long capacity, long highWaterMark, long droppedEvents) {
+            this.capacity = capacity;
+            this.highWaterMark = highWaterMark;
+            this.droppedEvents = droppedEvents;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("capacity %d, high-water %d, dropped %d",
+                    capacity, highWaterMark, droppedEvents);
+        }
+    }
+
+    /**
+     * How the audio callback has been keeping up since the engine was created or
+     * {@link #resetCallbackStats()}. Cheap enough to poll a few times a second.
+     */
+    public CallbackStats getCallbackStats() {
+        long[] stats = new long[10];
+        if (mEngineHandle != 0)
+            nativeGetCallbackStats(mEngineHandle, stats);
+        return new CallbackStats(stats);
+    }
+
+    /**
+     * Start the callback counters over, from the next audio buffer on. The underrun count comes
+     * from the stream and keeps counting.
+     */
+    public void resetCallbackStats() {
+        if (mEngineHandle != 0)
+            nativeResetCallbackStats(mEngineHandle);
+    }
+
+    /**
+     * Counters of the audio callback. Render times are in nanoseconds, the percentiles rounded up
+     * to the histogram bucket (less than 19% over).
+     */
+    public static final class CallbackStats {
+        public final long callbackCount;
+        public final long p50RenderNanos;
+        public final long p99RenderNanos;
+        public final long maxRenderNanos;
+        // Render time over buffer time, recent average, in percent
+        public final float cpuLoadPercent;
+        // Underruns reported by the stream, -1 if it cannot tell
+        public final long xRunCount;
+        // Voices sounding in the last callback, and at most
+        public final int activeVoices;
+        public final int maxActiveVoices;
+        // Note events applied from the event queue
+        public final long eventsApplied;
+        public final int framesPerCallback;
+
+        // In the order nativeGetCallbackStats fills them
+        CallbackStats(long[] stats) {
+            callbackCount = stats[0];
+            p50RenderNanos = stats[1];
+            p99RenderNanos = stats[2];
+            maxRenderNanos = stats[3];
+            cpuLoadPercent = stats[4] / 100f;
+            xRunCount = stats[5];
+            activeVoices = (int) stats[6];
+            maxActiveVoices = (int) stats[7];
+            eventsApplied = stats[8];
+            framesPerCallback = (int) stats[9];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "render p50 %.2f ms, p99 %.2f ms, max %.2f ms, load %.0f%%, xruns %d, "
+                            + "voices %d (max %d), events %d, %d frames, %d callbacks",
+                    p50RenderNanos / 1e6, p99RenderNanos / 1e6, maxRenderNanos / 1e6,
+                    cpuLoadPercent, xRunCount, activeVoices, maxActiveVoices, eventsApplied,
+                    framesPerCallback, callbackCount);
+        }
+    }
+
+    /**
+     * Frame time of the next buffer the engine renders. It only moves while the stream runs.
+     */
+    public long getFramePosition() {
+        if (mEngineHandle != 0)
+            return nativeGetFramePosition(mEngineHandle);
         else
-            return new float[256];
+            return 0;
     }
 
-    public float[] getSpectrumData() {
+    public int getSampleRate() {
         if (mEngineHandle != 0)
-            return nativeGetSpectrumData(mEngineHandle);
+            return nativeGetSampleRate(mEngineHandle);
         else
-            return new float[128];
+            return 0;
     }
 
-    public VuLevel getVuLevelData() {
+    public int getFramesPerBurst() {
         if (mEngineHandle != 0)
-            return nativeGetVuLevel(mEngineHandle);
+            return nativeGetFramesPerBurst(mEngineHandle);
         else
+            return 0;
+    }
+
+    /**
+     * Current size of the output buffer. The engine tunes it while playing: it grows a burst at a
+     * time on underruns and tries a burst less after a long stretch without any.
+     */
+    public int getBufferSizeInFrames() {
+        if (mEngineHandle != 0)
+            return nativeGetBufferSizeInFrames(mEngineHandle);
+        else
+            return 0;
+    }
+
+    /**
+     * Carry on tuning from {@code frames}, rounded up to whole bursts, e.g. a size learned on an
+     * earlier run (see {@link BufferSizeStore}). Without it a stream starts at one burst.
+     */
+    public void setBufferSizeInFrames(int frames) {
+        if (mEngineHandle != 0)
+            nativeSetBufferSizeInFrames(mEngineHandle, frames);
+    }
+
+    /**
+     * Playback position as heard from the speaker, see {@link AudioClock}. It reads the engine's
+     * memory, so it must be dropped with the engine; null once the engine is released.
+     */
+    public AudioClock getAudioClock() {
+        if (mAudioClock == null)
+            mAudioClock = newAudioClock();
+        return mAudioClock;
+    }
+
+    /**
+     * Another reader of the clock behind {@link #getAudioClock()}, for a second thread. The same
+     * rules apply: drop it with the engine.
+     */
+    AudioClock newAudioClock() {
+        if (mEngineHandle == 0)
             return null;
+        ByteBuffer state = nativeGetPlaybackClock(mEngineHandle);
+        return state != null ? new AudioClock(state) : null;
+    }
+
+    /**
+     * Waveform, spectrum and VU levels of what is playing, see {@link AudioVisualData}. Like
+     * {@link #getAudioClock()} it reads the engine's memory; null once the engine is released.
+     */
+    public AudioVisualData getVisualData() {
+        return mVisualData;
+    }
+
+    public void releaseResource() {
+        mAudioClock = null;
+        mVisualData = null;
+        if (mEngineHandle != 0)
+            deleteNativeEngine(mEngineHandle);
+        mEngineHandle = 0;
     }
 
     // Obtain CPU cores which are reserved for the foreground app. The audio thread can be
@@ -2,12 +2,7 @@ package com.yuan.midiplayer;
 
 import android.util.Log;
 
-import com.pgf.mididroid.MidiFile;
-
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.Map;
 
 public class NoteListProcessor {
     public int highestPitch;
@@ -22,13 +17,16 @@ public class NoteListProcessor {
     public int centroidPitch = 0;
     private final String TAG = com.yuan.music_box.MainActivity.class.toString();
 
-    private HashMap<Long, ArrayList<Integer>> tickNoteMap;
+    private final int[] pitchHistogram;
     private String pitchName[];
 
 
-    public NoteListProcessor(MidiFile midi) {
-        MidiHelper helper = new MidiHelper(midi);
-        tickNoteMap = helper.getTickNoteMap();
+    public NoteListProcessor(CompiledSong song) {
+        this(song.getPitchHistogram());
+    }
+
+    NoteListProcessor(int[] pitchHistogram) {
+        this.pitchHistogram = pitchHistogram;
         InitPitchName();
     }
 
@@ -57,29 +55,32 @@ public class NoteListProcessor {
 
     void analyzeNoteMapByCentroid() {
 
-        for (Map.Entry<Long, ArrayList<Integer>> entry : tickNoteMap.entrySet()) {
-            ArrayList<Integer> noteList = entry.getValue();
-            for (Integer note : noteList) {
-                if (noteOccurTimesMap.containsKey(note)) {
-                    noteOccurTimesMap.put(note, noteOccurTimesMap.get(note) + 1);
-                } else {
-                    noteOccurTimesMap.put(note, 1);
-                }
-            }
-        }
-
-        lowestPitch = Collections.min(noteOccurTimesMap.keySet());
-        highestPitch = Collections.max(noteOccurTimesMap.keySet());
+        noteOccurTimesMap.clear();
+        lowestPitch = -1;
+        highestPitch = -1;
 
         int centroidSum1 = 0;
         int centroidSum2 = 0;
 
-        for (Integer note : noteOccurTimesMap.keySet()) {
-            Integer occurTimes = noteOccurTimesMap.get(note);
+        for (int note = 0; note < pitchHistogram.length; note++) {
+            int occurTimes = pitchHistogram[note];
+            if (occurTimes == 0)
+                continue;
+            noteOccurTimesMap.put(note, occurTimes);
+            if (lowestPitch < 0)
+                lowestPitch = note;
+            highestPitch = note;
             centroidSum1 += note * occurTimes;
             centroidSum2 += occurTimes;
         }
 
+        if (centroidSum2 == 0) {
+            // No playable note at all, nothing to transpose
+            lowestPitch = highestPitch = centroidPitch = 0;
+            suggestTranpose = 0;
+            return;
+        }
+
         centroidPitch = centroidSum1 / centroidSum2;
         int centerOfSuggest = recommLowestPitch +
                 (recommHighestPitch - recommLowestPitch) / 2;
@@ -0,0 +1,167 @@
+package com.yuan.midiplayer;
+
+import com.customview.graph.PianoRollView;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Column store of the notes of a song, sorted by start time. It is built once and never
+ * modified afterwards, so the player and the piano roll read the same arrays without copying.
+ */
+public final class NoteTable implements PianoRollView.NoteSource {
+    private final byte[] pitches;
+    private final int[] startTimesMs;
+    private final int[] durationsMs;
+    private final float[] velocities;
+
+    private NoteTable(byte[] pitches, int[] startTimesMs, int[] durationsMs, float[] velocities) {
+        this.pitches = pitches;
+        this.startTimesMs = startTimesMs;
+        this.durationsMs = durationsMs;
+        this.velocities = velocities;
+    }
+
+    @Override
+    public int size() {
+        return pitches.length;
+    }
+
+    @Override
+    public int getMidiNote(int index) {
+        return pitches[index];
+    }
+
+    @Override
+    public long getStartTimeMs(int index) {
+        return startTimesMs[index];
+    }
+
+    @Override
+    public long getDurationMs(int index) {
+        return durationsMs[index];
+    }
+
+    @Override
+    public float getVelocity(int index) {
+        return velocities[index];
+    }
+
+    public long getEndTimeMs(int index) {
+        return (long) startTimesMs[index] + durationsMs[index];
+    }
+
+    /**
+     * Largest number of notes sounding at the same time. A note ending exactly when another
+     * starts does not overlap it.
+     */
+    public int getMaxPolyphony() {
+        final int count = pitches.length;
+        long[] endTimesMs = new long[count];
+        for (int i = 0; i < count; i++) {
+            endTimesMs[i] = getEndTimeMs(i);
+        }
+        Arrays.sort(endTimesMs);
+
+        // Starts are already sorted: sweep both lists, counting notes started but not ended
+        int maxPolyphony = 0;
+        int ended = 0;
+        for (int started = 0; started < count; started++) {
+            while (ended < started && endTimesMs[ended] <= startTimesMs[started]) {
+                ended++;
+            }
+            maxPolyphony = Math.max(maxPolyphony, started + 1 - ended);
+        }
+        return maxPolyphony;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        CompiledSongCache.writeBytes(out, pitches, pitches.length);
+        CompiledSongCache.writeInts(out, startTimesMs, startTimesMs.length);
+        CompiledSongCache.writeInts(out, durationsMs, durationsMs.length);
+        CompiledSongCache.writeFloats(out, velocities, velocities.length);
+    }
+
+    static NoteTable read(ByteBuffer in) {
+        byte[] pitches = CompiledSongCache.readBytes(in);
+        int[] startTimesMs = CompiledSongCache.readInts(in);
+        int[] durationsMs = CompiledSongCache.readInts(in);
+        float[] velocities = CompiledSongCache.readFloats(in);
+        if (startTimesMs.length != pitches.length || durationsMs.length != pitches.length
+                || velocities.length != pitches.length)
+            throw new IllegalArgumentException("Inconsistent note table");
+        return new NoteTable(pitches, startTimesMs, durationsMs, velocities);
+    }
+
+    public static class Builder {
+        private byte[] pitches;
+        private int[] startTimesMs;
+        private int[] durationsMs;
+        private float[] velocities;
+        private int count;
+
+        public Builder() {
+            this(256);
+        }
+
+        public Builder(int capacity) {
+            capacity = Math.max(capacity, 16);
+            pitches = new byte[capacity];
+            startTimesMs = new int[capacity];
+            durationsMs = new int[capacity];
+            velocities = new float[capacity];
+        }
+
+        public Builder add(int midiNote, long startTimeMs, long durationMs, float velocity) {
+            if (count == pitches.length) {
+                int capacity = count * 2;
+                pitches = Arrays.copyOf(pitches, capacity);
+                startTimesMs = Arrays.copyOf(startTimesMs, capacity);
+                durationsMs = Arrays.copyOf(durationsMs, capacity);
+                velocities = Arrays.copyOf(velocities, capacity);
+            }
+            pitches[count] = (byte) midiNote;
+            startTimesMs[count] = (int) startTimeMs;
+            durationsMs[count] = (int) durationMs;
+            velocities[count] = velocity;
+            count++;
+            return this;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        /**
+         * Sort the notes by start time (notes starting together keep their insertion order) and
+         * freeze them into a table. The builder must not be used afterwards.
+         */
+        public NoteTable build() {
+            // Sort (start, index) pairs packed in one long so no boxing or comparator is involved
+            long[] order = new long[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = ((long) startTimesMs[i] << 32) | i;
+            }
+            Arrays.sort(order);
+
+            byte[] sortedPitches = new byte[count];
+            int[] sortedStarts = new int[count];
+            int[] sortedDurations = new int[count];
+            float[] sortedVelocities = new float[count];
+            for (int i = 0; i < count; i++) {
+                int from = (int) order[i];
+                sortedPitches[i] = pitches[from];
+                sortedStarts[i] = startTimesMs[from];
+                sortedDurations[i] = durationsMs[from];
+                sortedVelocities[i] = velocities[from];
+            }
+            pitches = null;
+            startTimesMs = null;
+            durationsMs = null;
+            velocities = null;
+            return new NoteTable(sortedPitches, sortedStarts, sortedDurations, sortedVelocities);
+        }
+    }
+}
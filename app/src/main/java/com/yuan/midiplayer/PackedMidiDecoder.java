@@ -0,0 +1,221 @@
+package com.yuan.midiplayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Decodes a standard MIDI file straight from its bytes into a {@link PackedMidiFile}, without
+ * creating an object per event. Tracks are decoded concurrently on the fork-join pool, reading
+ * the shared buffer with absolute gets only. Meta events other than Tempo and SysEx messages are
+ * skipped.
+ */
+public class PackedMidiDecoder {
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int ID_MTHD = 0x4D546864; // "MThd"
+    private static final int ID_MTRK = 0x4D54726B; // "MTrk"
+    private static final int META_END_OF_TRACK = 0x2F;
+    private static final int META_TEMPO = 0x51;
+
+    private final ForkJoinPool mPool;
+
+    public PackedMidiDecoder() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public PackedMidiDecoder(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Decode the file held between the position and the limit of {@code data}. The buffer
+     * itself is left untouched.
+     *
+     * @throws IOException           if the data is not a standard MIDI file
+     * @throws CancellationException if the monitor reports cancellation mid-way
+     */
+    public PackedMidiFile decode(ByteBuffer data, SongCompiler.Monitor monitor) throws IOException {
+        final ByteBuffer buffer = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        final int base = buffer.position();
+        final int end = buffer.limit();
+        if (end - base < CHUNK_HEADER_SIZE + 6 || buffer.getInt(base) != ID_MTHD)
+            throw new IOException("Not a standard MIDI file");
+        final int headerLength = buffer.getInt(base + 4);
+        if (headerLength < 6 || headerLength > end - base - CHUNK_HEADER_SIZE)
+            throw new IOException("Bad MIDI header length " + headerLength);
+
+        final int declaredTracks = buffer.getShort(base + 10) & 0xFFFF;
+        final int resolution = buffer.getShort(base + 12) & 0xFFFF;
+
+        // Locate the MTrk chunks, skipping any chunk type we do not know about
+        List<int[]> chunks = new ArrayList<>();
+        int offset = base + CHUNK_HEADER_SIZE + headerLength;
+        while (chunks.size() < declaredTracks && end - offset >= CHUNK_HEADER_SIZE) {
+            int id = buffer.getInt(offset);
+            long length = buffer.getInt(offset + 4) & 0xFFFFFFFFL;
+            int dataStart = offset + CHUNK_HEADER_SIZE;
+            // A truncated last chunk is decoded as far as it goes
+            int dataEnd = (int) Math.min(end, dataStart + length);
+            if (id == ID_MTRK)
+                chunks.add(new int[]{dataStart, dataEnd});
+            offset = dataEnd;
+        }
+
+        List<ForkJoinTask<Track>> tasks = new ArrayList<>(chunks.size());
+        for (int[] chunk : chunks) {
+            tasks.add(mPool.submit(() -> {
+                if (monitor.isCancelled())
+                    throw new CancellationException();
+                return decodeTrack(buffer, chunk[0], chunk[1]);
+            }));
+        }
+
+        long[][] tracks = new long[tasks.size()][];
+        long endTick = 0;
+        long decodedBytes = 0;
+        boolean complete = false;
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                if (monitor.isCancelled())
+                    throw new CancellationException();
+                Track track = join(tasks.get(i));
+                tracks[i] = track.events;
+                endTick = Math.max(endTick, track.endTick);
+                decodedBytes += chunks.get(i)[1] - chunks.get(i)[0];
+                monitor.onProgress((float) decodedBytes / (end - base));
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                for (ForkJoinTask<Track> task : tasks) {
+                    task.cancel(false);
+                }
+            }
+        }
+        return new PackedMidiFile(resolution, tracks, endTick);
+    }
+
+    // join() wraps the IOException of a malformed track, give it back to the caller as such
+    private static Track join(ForkJoinTask<Track> task) throws IOException {
+        try {
+            return task.join();
+        } catch (RuntimeException e) {
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stored events of one track, and the tick of its last event of any kind, skipped ones
+     * included; End of Track does not count, as in MidiDroid.
+     */
+    static final class Track {
+        final long[] events;
+        final long endTick;
+
+        Track(long[] events, int count, long endTick) {
+            this.events = Arrays.copyOf(events, count);
+            this.endTick = endTick;
+        }
+    }
+
+    /**
+     * Decode the event data of one MTrk chunk, {@code buffer[start, end)}.
+     */
+    static Track decodeTrack(ByteBuffer buffer, int start, int end) throws IOException {
+        // Every stored event takes at least two bytes (delta + running-status data byte)
+        long[] events = new long[Math.max(16, (end - start) / 3)];
+        int count = 0;
+        long tick = 0;
+        long endTick = 0;
+        int runningStatus = 0;
+        int p = start;
+
+        while (p < end) {
+            // Delta time, variable length quantity
+            int delta = 0;
+            int b;
+            do {
+                if (p >= end)
+                    return new Track(events, count, endTick);
+                b = buffer.get(p++) & 0xFF;
+                delta = (delta << 7) | (b & 0x7F);
+            } while ((b & 0x80) != 0);
+            tick += delta;
+            if (p >= end)
+                break;
+
+            int status = buffer.get(p) & 0xFF;
+            if (status < 0x80) {
+                // Running status: reuse the last channel status, the byte is data1
+                if (runningStatus == 0)
+                    throw new IOException("Data byte without status at " + p);
+                status = runningStatus;
+            } else {
+                p++;
+            }
+
+            if (status == 0xFF) {
+                if (p >= end)
+                    break;
+                int type = buffer.get(p++) & 0xFF;
+                int length = 0;
+                do {
+                    if (p >= end)
+                        return new Track(events, count, endTick);
+                    b = buffer.get(p++) & 0xFF;
+                    length = (length << 7) | (b & 0x7F);
+                } while ((b & 0x80) != 0);
+                if (type == META_END_OF_TRACK)
+                    break;
+                if (type == META_TEMPO && length == 3 && p + 3 <= end) {
+                    int mpqn = ((buffer.get(p) & 0xFF) << 16) | ((buffer.get(p + 1) & 0xFF) << 8)
+                            | (buffer.get(p + 2) & 0xFF);
+                    if (count == events.length)
+                        events = Arrays.copyOf(events, count * 2);
+                    events[count++] = PackedMidiEvent.packTempo(tick, mpqn);
+                }
+                p += length;
+                runningStatus = 0;
+                endTick = tick;
+            } else if (status == 0xF0 || status == 0xF7) {
+                int length = 0;
+                do {
+                    if (p >= end)
+                        return new Track(events, count, endTick);
+                    b = buffer.get(p++) & 0xFF;
+                    length = (length << 7) | (b & 0x7F);
+                } while ((b & 0x80) != 0);
+                p += length;
+                runningStatus = 0;
+                endTick = tick;
+            } else if (status >= 0x80 && status < 0xF0) {
+                int type = status & 0xF0;
+                int dataLength = (type == 0xC0 || type == 0xD0) ? 1 : 2;
+                if (p + dataLength > end)
+                    break;
+                int data1 = buffer.get(p) & 0x7F;
+                int data2 = dataLength == 2 ? buffer.get(p + 1) & 0x7F : 0;
+                p += dataLength;
+                runningStatus = status;
+                if (count == events.length)
+                    events = Arrays.copyOf(events, count * 2);
+                events[count++] = PackedMidiEvent.pack(tick, status, data1, data2);
+                endTick = tick;
+            } else {
+                // System common / real-time messages carry no length, nothing sane to resume on
+                throw new IOException(String.format("Unsupported status 0x%02X at %d", status, p - 1));
+            }
+        }
+        return new Track(events, count, endTick);
+    }
+}
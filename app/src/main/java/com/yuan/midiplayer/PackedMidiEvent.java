@@ -0,0 +1,129 @@
+package com.yuan.midiplayer;
+
+import com.pgf.mididroid.event.MidiEvent;
+import com.pgf.mididroid.event.NoteOff;
+import com.pgf.mididroid.event.NoteOn;
+import com.pgf.mididroid.event.meta.Tempo;
+
+/**
+ * A MIDI event packed in one {@code long}, so a whole track fits in a {@code long[]}:
+ * <pre>
+ *   63..32  tick (unsigned)
+ *   31..24  status byte, {@link #STATUS_TEMPO} for a tempo change
+ *   15..8   data1, e.g. note number
+ *    7..0   data2, e.g. velocity
+ * </pre>
+ * A tempo change keeps its microseconds per quarter note in bits 23..0 instead of data1/data2.
+ * Only channel voice messages and tempo changes are represented.
+ */
+public final class PackedMidiEvent {
+    public static final int STATUS_NOTE_OFF = 0x80;
+    public static final int STATUS_NOTE_ON = 0x90;
+    // Pseudo status for the Tempo meta event, FF 51 in the file
+    public static final int STATUS_TEMPO = 0xFF;
+
+    /**
+     * Filter masks for {@link PackedMidiFile#cursor(int)}: one bit per status high nibble.
+     */
+    public static final int MASK_NOTE_OFF = 1 << 0x8;
+    public static final int MASK_NOTE_ON = 1 << 0x9;
+    public static final int MASK_POLY_PRESSURE = 1 << 0xA;
+    public static final int MASK_CONTROL_CHANGE = 1 << 0xB;
+    public static final int MASK_PROGRAM_CHANGE = 1 << 0xC;
+    public static final int MASK_CHANNEL_PRESSURE = 1 << 0xD;
+    public static final int MASK_PITCH_BEND = 1 << 0xE;
+    public static final int MASK_TEMPO = 1 << 0xF;
+    public static final int MASK_NOTES = MASK_NOTE_OFF | MASK_NOTE_ON;
+    public static final int MASK_ALL = 0xFF00;
+
+    /**
+     * Returned by {@link #fromMidiEvent} for events that have no packed form.
+     */
+    public static final long NONE = -1L;
+
+    private PackedMidiEvent() {
+    }
+
+    public static long pack(long tick, int status, int data1, int data2) {
+        return (tick << 32) | ((long) (status & 0xFF) << 24) | ((data1 & 0xFF) << 8) | (data2 & 0xFF);
+    }
+
+    public static long packTempo(long tick, int mpqn) {
+        return (tick << 32) | ((long) STATUS_TEMPO << 24) | (mpqn & 0xFFFFFF);
+    }
+
+    public static long fromMidiEvent(MidiEvent event) {
+        if (event instanceof NoteOn) {
+            NoteOn on = (NoteOn) event;
+            return pack(on.getTick(), STATUS_NOTE_ON | on.getChannel(), on.getNoteValue(), on.getVelocity());
+        } else if (event instanceof NoteOff) {
+            NoteOff off = (NoteOff) event;
+            return pack(off.getTick(), STATUS_NOTE_OFF | off.getChannel(), off.getNoteValue(), off.getVelocity());
+        } else if (event instanceof Tempo) {
+            return packTempo(event.getTick(), ((Tempo) event).getMpqn());
+        }
+        return NONE;
+    }
+
+    public static long getTick(long event) {
+        return event >>> 32;
+    }
+
+    public static int getStatus(long event) {
+        return (int) (event >>> 24) & 0xFF;
+    }
+
+    /**
+     * Status without the channel, e.g. {@link #STATUS_NOTE_ON}.
+     */
+    public static int getType(long event) {
+        return (int) (event >>> 24) & 0xF0;
+    }
+
+    public static int getChannel(long event) {
+        return (int) (event >>> 24) & 0x0F;
+    }
+
+    public static int getData1(long event) {
+        return (int) (event >>> 8) & 0xFF;
+    }
+
+    public static int getData2(long event) {
+        return (int) event & 0xFF;
+    }
+
+    public static int getNote(long event) {
+        return getData1(event);
+    }
+
+    public static int getVelocity(long event) {
+        return getData2(event);
+    }
+
+    public static int getMpqn(long event) {
+        return (int) event & 0xFFFFFF;
+    }
+
+    public static boolean isTempo(long event) {
+        return getStatus(event) == STATUS_TEMPO;
+    }
+
+    /**
+     * NoteOn with a non-zero velocity.
+     */
+    public static boolean isNoteOn(long event) {
+        return getType(event) == STATUS_NOTE_ON && getData2(event) != 0;
+    }
+
+    /**
+     * NoteOff, or NoteOn with velocity 0.
+     */
+    public static boolean isNoteOff(long event) {
+        int type = getType(event);
+        return type == STATUS_NOTE_OFF || (type == STATUS_NOTE_ON && getData2(event) == 0);
+    }
+
+    public static boolean matches(long event, int mask) {
+        return ((mask >>> (getStatus(event) >>> 4)) & 1) != 0;
+    }
+}
@@ -0,0 +1,187 @@
+package com.yuan.midiplayer;
+
+/**
+ * A MIDI file decoded by {@link PackedMidiDecoder}: one {@code long[]} of
+ * {@link PackedMidiEvent packed events} per track, each in tick order.
+ */
+public final class PackedMidiFile {
+    private final int resolution;
+    private final long[][] tracks;
+    private final long endTick;
+
+    PackedMidiFile(int resolution, long[][] tracks, long endTick) {
+        this.resolution = resolution;
+        this.tracks = tracks;
+        this.endTick = endTick;
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    public int getTrackCount() {
+        return tracks.length;
+    }
+
+    public int getTrackEventCount(int track) {
+        return tracks[track].length;
+    }
+
+    public long getEvent(int track, int index) {
+        return tracks[track][index];
+    }
+
+    public int getEventCount() {
+        int count = 0;
+        for (long[] track : tracks) {
+            count += track.length;
+        }
+        return count;
+    }
+
+    /**
+     * Number of events a {@link #cursor} over {@code mask} visits.
+     */
+    public int getEventCount(int mask) {
+        int count = 0;
+        for (long[] track : tracks) {
+            for (long event : track) {
+                if (PackedMidiEvent.matches(event, mask))
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Tick of the last event in the file, including the meta and SysEx events that were not
+     * stored.
+     */
+    public long getEndTick() {
+        return endTick;
+    }
+
+    /**
+     * Walk the events matching {@code mask} (a combination of the {@code PackedMidiEvent.MASK_*}
+     * bits) over all tracks in tick order; events on the same tick come out in track order.
+     */
+    public Cursor cursor(int mask) {
+        return new Cursor(tracks, mask);
+    }
+
+    /**
+     * K-way merge of the tracks over a primitive heap of (tick, track) heads.
+     * <pre>
+     *   Cursor c = file.cursor(PackedMidiEvent.MASK_NOTES);
+     *   while (c.next()) { long e = c.get(); ... }
+     * </pre>
+     */
+    public static final class Cursor {
+        private final long[][] mTracks;
+        private final int mMask;
+        private final int[] mPositions;
+        private final long[] mHeapTicks;
+        private final int[] mHeapTracks;
+        private int mHeapSize;
+        private long mCurrent;
+
+        Cursor(long[][] tracks, int mask) {
+            mTracks = tracks;
+            mMask = mask;
+            mPositions = new int[tracks.length];
+            mHeapTicks = new long[tracks.length];
+            mHeapTracks = new int[tracks.length];
+            for (int track = 0; track < tracks.length; track++) {
+                mPositions[track] = -1;
+                if (advance(track))
+                    push(track);
+            }
+        }
+
+        /**
+         * Move to the next matching event. Returns false once all tracks are exhausted.
+         */
+        public boolean next() {
+            if (mHeapSize == 0)
+                return false;
+
+            final int track = mHeapTracks[0];
+            mCurrent = mTracks[track][mPositions[track]];
+            if (advance(track)) {
+                mHeapTicks[0] = PackedMidiEvent.getTick(mTracks[track][mPositions[track]]);
+            } else {
+                mHeapSize--;
+                mHeapTicks[0] = mHeapTicks[mHeapSize];
+                mHeapTracks[0] = mHeapTracks[mHeapSize];
+            }
+            siftDown(0);
+            return true;
+        }
+
+        /**
+         * The packed event the cursor is on.
+         */
+        public long get() {
+            return mCurrent;
+        }
+
+        public long getTick() {
+            return PackedMidiEvent.getTick(mCurrent);
+        }
+
+        // Move the track to its next matching event, false when it has none left
+        private boolean advance(int track) {
+            final long[] events = mTracks[track];
+            int position = mPositions[track] + 1;
+            while (position < events.length && !PackedMidiEvent.matches(events[position], mMask)) {
+                position++;
+            }
+            mPositions[track] = position;
+            return position < events.length;
+        }
+
+        private void push(int track) {
+            int i = mHeapSize++;
+            mHeapTicks[i] = PackedMidiEvent.getTick(mTracks[track][mPositions[track]]);
+            mHeapTracks[i] = track;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!less(i, parent))
+                    break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int left = 2 * i + 1;
+                if (left >= mHeapSize)
+                    break;
+                int smallest = left;
+                int right = left + 1;
+                if (right < mHeapSize && less(right, left))
+                    smallest = right;
+                if (!less(smallest, i))
+                    break;
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private boolean less(int a, int b) {
+            if (mHeapTicks[a] != mHeapTicks[b])
+                return mHeapTicks[a] < mHeapTicks[b];
+            return mHeapTracks[a] < mHeapTracks[b];
+        }
+
+        private void swap(int a, int b) {
+            long tick = mHeapTicks[a];
+            mHeapTicks[a] = mHeapTicks[b];
+            mHeapTicks[b] = tick;
+            int track = mHeapTracks[a];
+            mHeapTracks[a] = mHeapTracks[b];
+            mHeapTracks[b] = track;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.yuan.midiplayer;
+
+import com.pgf.mididroid.MidiFile;
+import com.pgf.mididroid.MidiTrack;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Parses a standard MIDI file with its tracks decoded concurrently. The chunk headers are scanned
+ * first to find where every MTrk chunk starts, then each chunk is handed to MidiDroid's own
+ * {@link MidiTrack} parser on the fork-join pool. Files whose chunk layout cannot be followed fall
+ * back to the sequential {@link MidiFile} parser, so the result never differs from it.
+ */
+public class ParallelMidiLoader {
+    private static final int HEADER_CHUNK_SIZE = 14;
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int ID_MTHD = 0x4D546864; // "MThd"
+    private static final int ID_MTRK = 0x4D54726B; // "MTrk"
+
+    private final ForkJoinPool mPool;
+
+    public ParallelMidiLoader() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ParallelMidiLoader(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * @throws CancellationException if the monitor reports cancellation mid-way
+     */
+    public MidiFile parse(byte[] data, SongCompiler.Monitor monitor) throws IOException {
+        if (data.length < HEADER_CHUNK_SIZE || readInt(data, 0) != ID_MTHD)
+            return new MidiFile(new ByteArrayInputStream(data));
+
+        final int headerLength = readInt(data, 4);
+        if (headerLength < HEADER_CHUNK_SIZE - CHUNK_HEADER_SIZE || headerLength > data.length)
+            return new MidiFile(new ByteArrayInputStream(data));
+        final int resolution = readShort(data, 12);
+        final int declaredTracks = readShort(data, 10);
+        int offset = CHUNK_HEADER_SIZE + headerLength;
+
+        // Locate the MTrk chunks, skipping any chunk type we do not know about
+        List<int[]> chunks = new ArrayList<>();
+        while (chunks.size() < declaredTracks && offset + CHUNK_HEADER_SIZE <= data.length) {
+            int id = readInt(data, offset);
+            long length = readInt(data, offset + 4) & 0xFFFFFFFFL;
+            if (length > data.length - offset - CHUNK_HEADER_SIZE) {
+                // Truncated last chunk: MidiTrack reads what is left, like the sequential parser
+                length = data.length - offset - CHUNK_HEADER_SIZE;
+            }
+            int size = CHUNK_HEADER_SIZE + (int) length;
+            if (id == ID_MTRK)
+                chunks.add(new int[]{offset, size});
+            offset += size;
+        }
+        if (chunks.size() <= 1)
+            return new MidiFile(new ByteArrayInputStream(data));
+
+        List<ForkJoinTask<MidiTrack>> tasks = new ArrayList<>(chunks.size());
+        for (int[] chunk : chunks) {
+            tasks.add(mPool.submit(() -> {
+                if (monitor.isCancelled())
+                    throw new CancellationException();
+                return new MidiTrack(new ByteArrayInputStream(data, chunk[0], chunk[1]));
+            }));
+        }
+
+        // Join in file order so the track list matches the sequential parser
+        ArrayList<MidiTrack> tracks = new ArrayList<>(tasks.size());
+        long decodedBytes = 0;
+        boolean complete = false;
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                if (monitor.isCancelled())
+                    throw new CancellationException();
+                tracks.add(tasks.get(i).join());
+                decodedBytes += chunks.get(i)[1];
+                monitor.onProgress((float) decodedBytes / data.length);
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                for (ForkJoinTask<MidiTrack> task : tasks) {
+                    task.cancel(false);
+                }
+            }
+        }
+        return new MidiFile(resolution, tracks);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,109 @@
+package com.yuan.midiplayer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the playback stream of a {@link CompiledSong} into the compact score format read by the
+ * native player (see Player.h), at {@link #TICKS_PER_SECOND} score ticks per second:
+ * <pre>
+ *   delta  : n * 0xFF, then one byte below 0xFF; the delta is their sum
+ *   group  : note bytes, bit 7 set on the last one
+ *   score  : (delta group)* delta 0xFF
+ * </pre>
+ * Notes are stored untransposed, the engine applies the transpose while playing. A group made
+ * only of note 127 is closed an octave down, 127 with bit 7 set would be the end marker.
+ */
+public final class ScoreEncoder {
+    public static final int TICKS_PER_SECOND = 1000;
+
+    private static final int END_OF_GROUP = 0x80;
+    private static final int END_OF_SCORE = 0xFF;
+    // Closing a group with note 127 would read as END_OF_SCORE
+    private static final int HIGHEST_NOTE = 127;
+    // What a group of nothing but 127 closes with instead, the same key an octave down
+    private static final int FOLDED_HIGHEST_NOTE = HIGHEST_NOTE - 12;
+
+    private ScoreEncoder() {
+    }
+
+    /**
+     * Encode {@code song} into a direct buffer, positioned at 0 with the limit at the end of the
+     * score.
+     */
+    public static ByteBuffer encode(CompiledSong song) {
+        ByteBuffer score = ByteBuffer.allocateDirect(measure(song));
+        write(song, score);
+        score.flip();
+        return score;
+    }
+
+    private static int measure(CompiledSong song) {
+        final int count = song.getPlaybackEventCount();
+        int size = 0;
+        long lastMs = 0;
+        int i = 0;
+        while (i < count) {
+            long ms = song.getPlaybackTimeMs(i);
+            int end = groupEnd(song, i);
+            size += deltaSize(ms - lastMs) + (end - i);
+            lastMs = ms;
+            i = end;
+        }
+        return size + 2;
+    }
+
+    private static void write(CompiledSong song, ByteBuffer out) {
+        final int count = song.getPlaybackEventCount();
+        long lastMs = 0;
+        int i = 0;
+        while (i < count) {
+            long ms = song.getPlaybackTimeMs(i);
+            int end = groupEnd(song, i);
+            writeDelta(out, ms - lastMs);
+            lastMs = ms;
+
+            // Close the group with any note but 127, or fold the last 127 an octave down when
+            // the group has nothing else
+            int last = end - 1;
+            for (int j = end - 1; j >= i; j--) {
+                if (song.getPlaybackNote(j) != HIGHEST_NOTE) {
+                    last = j;
+                    break;
+                }
+            }
+            for (int j = i; j < end; j++) {
+                if (j != last)
+                    out.put((byte) song.getPlaybackNote(j));
+            }
+            int closing = song.getPlaybackNote(last);
+            if (closing == HIGHEST_NOTE)
+                closing = FOLDED_HIGHEST_NOTE;
+            out.put((byte) (closing | END_OF_GROUP));
+            i = end;
+        }
+        out.put((byte) 0);
+        out.put((byte) END_OF_SCORE);
+    }
+
+    // End of the run of events sharing the time of event i
+    private static int groupEnd(CompiledSong song, int i) {
+        final int count = song.getPlaybackEventCount();
+        final long ms = song.getPlaybackTimeMs(i);
+        int end = i + 1;
+        while (end < count && song.getPlaybackTimeMs(end) == ms) {
+            end++;
+        }
+        return end;
+    }
+
+    private static int deltaSize(long ticks) {
+        return (int) (ticks / 0xFF) + 1;
+    }
+
+    private static void writeDelta(ByteBuffer out, long ticks) {
+        for (long n = ticks / 0xFF; n > 0; n--) {
+            out.put((byte) 0xFF);
+        }
+        out.put((byte) (ticks % 0xFF));
+    }
+}
@@ -0,0 +1,51 @@
+package com.yuan.midiplayer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads native memory that the engine publishes under a sequence lock, shared through a direct
+ * {@link ByteBuffer}. The sequence is the long at offset 0: odd while the writer is busy, and
+ * different after every write. A read is consistent if the sequence was even before it and is
+ * unchanged after it:
+ * <pre>
+ * long sequence;
+ * do {
+ *     sequence = reader.begin();
+ *     ... absolute gets from reader.buffer() ...
+ * } while (!reader.validate(sequence));
+ * </pre>
+ */
+final class SeqLockReader {
+    private static volatile int sFence;
+
+    private final ByteBuffer mBuffer;
+
+    SeqLockReader(ByteBuffer buffer) {
+        mBuffer = buffer.order(ByteOrder.nativeOrder());
+    }
+
+    ByteBuffer buffer() {
+        return mBuffer;
+    }
+
+    long begin() {
+        long sequence;
+        while (((sequence = mBuffer.getLong(0)) & 1) != 0)
+            Thread.yield();
+        fence();
+        return sequence;
+    }
+
+    boolean validate(long sequence) {
+        fence();
+        return mBuffer.getLong(0) == sequence;
+    }
+
+    // Buffer gets are plain loads. A volatile write followed by a volatile read keeps the loads
+    // before it from moving past the loads after it, which is all a reader needs
+    private static int fence() {
+        sFence = 0;
+        return sFence;
+    }
+}
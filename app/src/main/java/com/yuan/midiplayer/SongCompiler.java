@@ -0,0 +1,229 @@
+package com.yuan.midiplayer;
+
+import com.pgf.mididroid.MidiFile;
+import com.pgf.mididroid.event.MidiEvent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Turns a {@link MidiFile} or a {@link PackedMidiFile} into a {@link CompiledSong} with one
+ * tempo-aware walk over its events. The note list, the pitch histogram, the transpose suggestion
+ * and the playback stream are all collected in that same walk, so loading a song never touches
+ * the event lists twice. Both front ends feed the same collector with packed events.
+ */
+public class SongCompiler {
+    private static final int PERCUSSION_CHANNEL = 0x09;
+    private static final int DANGLING_NOTE_DURATION_MS = 200;
+    private static final int MONITOR_INTERVAL = 4096;
+    // Sounding notes are tracked per (channel, note) key
+    private static final int KEY_COUNT = 16 * 128;
+
+    /**
+     * Lets a caller follow and abort a long compilation.
+     */
+    public interface Monitor {
+        void onProgress(float fraction);
+
+        boolean isCancelled();
+    }
+
+    static final Monitor NO_MONITOR = new Monitor() {
+        @Override
+        public void onProgress(float fraction) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private final int recommHighestPitch;
+    private final int recommLowestPitch;
+    private final PackedMidiDecoder decoder = new PackedMidiDecoder();
+    private final ParallelMidiLoader parser = new ParallelMidiLoader();
+
+    public SongCompiler(int recommHighestPitch, int recommLowestPitch) {
+        this.recommHighestPitch = recommHighestPitch;
+        this.recommLowestPitch = recommLowestPitch;
+    }
+
+    public int getRecommHighestPitch() {
+        return recommHighestPitch;
+    }
+
+    public int getRecommLowestPitch() {
+        return recommLowestPitch;
+    }
+
+    public CompiledSong compile(MidiFile midiFile) {
+        return compile(midiFile, NO_MONITOR);
+    }
+
+    /**
+     * Decode and compile the standard MIDI file in {@code data}, from its position to its limit.
+     * {@code parseMonitor} follows the decoding, {@code compileMonitor} the compilation.
+     *
+     * @throws IOException if the file cannot be decoded
+     * @throws CancellationException if a monitor reports cancellation mid-way
+     */
+    public CompiledSong compile(ByteBuffer data, Monitor parseMonitor, Monitor compileMonitor)
+            throws IOException {
+        PackedMidiFile packed;
+        try {
+            packed = decoder.decode(data, parseMonitor);
+        } catch (IOException e) {
+            // MidiDroid is more lenient with malformed files, let it have a go
+            return compile(parser.parse(MappedMidiReader.toArray(data), parseMonitor),
+                    compileMonitor);
+        }
+        return compile(packed, compileMonitor);
+    }
+
+    /**
+     * @throws CancellationException if the monitor reports cancellation mid-way
+     */
+    public CompiledSong compile(MidiFile midiFile, Monitor monitor) {
+        TrackMerger events = new TrackMerger(midiFile.getTracks());
+        Collector collector = new Collector(new TempoMap(midiFile), events.getEventCount(), monitor);
+        while (events.hasNext()) {
+            MidiEvent event = events.next();
+            long packed = PackedMidiEvent.fromMidiEvent(event);
+            if (packed != PackedMidiEvent.NONE)
+                collector.add(packed);
+            else
+                collector.skip(event.getTick());
+        }
+        return collector.finish();
+    }
+
+    public CompiledSong compile(PackedMidiFile midiFile) {
+        return compile(midiFile, NO_MONITOR);
+    }
+
+    /**
+     * @throws CancellationException if the monitor reports cancellation mid-way
+     */
+    public CompiledSong compile(PackedMidiFile midiFile, Monitor monitor) {
+        Collector collector = new Collector(new TempoMap(midiFile),
+                midiFile.getEventCount(PackedMidiEvent.MASK_NOTES), monitor);
+        PackedMidiFile.Cursor cursor = midiFile.cursor(PackedMidiEvent.MASK_NOTES);
+        while (cursor.next()) {
+            collector.add(cursor.get());
+        }
+        // Like the MidiDroid path, count the events after the last note towards the length
+        collector.extendTo(midiFile.getEndTick());
+        return collector.finish();
+    }
+
+    /**
+     * State of one compilation, fed with packed events in tick order.
+     */
+    private class Collector {
+        private final TempoMap tempoMap;
+        private final int eventCount;
+        private final Monitor monitor;
+        private final NoteTable.Builder notes;
+        // Start time and velocity of the note sounding on each key, -1 when the key is up
+        private final long[] activeStartMs = new long[KEY_COUNT];
+        private final byte[] activeVelocity = new byte[KEY_COUNT];
+        private final int[] pitchHistogram = new int[128];
+        private long[] playbackTimesMs = new long[256];
+        private byte[] playbackNotes = new byte[256];
+        private int playbackCount = 0;
+        private long currentMs = 0;
+        private int processed = 0;
+
+        Collector(TempoMap tempoMap, int eventCount, Monitor monitor) {
+            this.tempoMap = tempoMap;
+            this.eventCount = eventCount;
+            this.monitor = monitor;
+            notes = new NoteTable.Builder(eventCount / 2);
+            Arrays.fill(activeStartMs, -1);
+        }
+
+        // An event with no effect on the song still moves the clock, and so its length
+        void skip(long tick) {
+            tick();
+            currentMs = tempoMap.tickToMs(tick);
+        }
+
+        // Events that were not fed in still end the song no earlier than their tick
+        void extendTo(long tick) {
+            currentMs = Math.max(currentMs, tempoMap.tickToMs(tick));
+        }
+
+        void add(long event) {
+            tick();
+            currentMs = tempoMap.tickToMs(PackedMidiEvent.getTick(event));
+
+            final int type = PackedMidiEvent.getType(event);
+            if (type != PackedMidiEvent.STATUS_NOTE_ON && type != PackedMidiEvent.STATUS_NOTE_OFF)
+                return;
+            final int channel = PackedMidiEvent.getChannel(event);
+            final int note = PackedMidiEvent.getNote(event);
+            final int key = note + (channel << 7);
+
+            // NoteOn velocity=0 -> NoteOff, retriggering a sounding key ends the previous note
+            closeNote(key);
+            if (!PackedMidiEvent.isNoteOn(event) || channel == PERCUSSION_CHANNEL)
+                return;
+
+            activeStartMs[key] = currentMs;
+            activeVelocity[key] = (byte) PackedMidiEvent.getVelocity(event);
+
+            pitchHistogram[note]++;
+            if (playbackCount == playbackTimesMs.length) {
+                playbackTimesMs = Arrays.copyOf(playbackTimesMs, playbackCount * 2);
+                playbackNotes = Arrays.copyOf(playbackNotes, playbackCount * 2);
+            }
+            playbackTimesMs[playbackCount] = currentMs;
+            playbackNotes[playbackCount] = (byte) note;
+            playbackCount++;
+        }
+
+        private void tick() {
+            if (++processed % MONITOR_INTERVAL == 0) {
+                if (monitor.isCancelled())
+                    throw new CancellationException();
+                monitor.onProgress((float) processed / eventCount);
+            }
+        }
+
+        private void closeNote(int key) {
+            long startMs = activeStartMs[key];
+            if (startMs >= 0) {
+                notes.add(key & 0x7F, startMs, currentMs - startMs, activeVelocity[key] / 127f);
+                activeStartMs[key] = -1;
+            }
+        }
+
+        CompiledSong finish() {
+            // Notes without NoteOff get a short default length
+            for (int key = 0; key < KEY_COUNT; key++) {
+                if (activeStartMs[key] >= 0)
+                    notes.add(key & 0x7F, activeStartMs[key], DANGLING_NOTE_DURATION_MS,
+                            activeVelocity[key] / 127f);
+            }
+            NoteTable noteTable = notes.build();
+
+            NoteListProcessor np = new NoteListProcessor(pitchHistogram);
+            np.recommHighestPitch = recommHighestPitch;
+            np.recommLowestPitch = recommLowestPitch;
+            np.analyzeNoteMapByCentroid();
+
+            long lengthMs = currentMs;
+            for (int i = 0; i < noteTable.size(); i++) {
+                lengthMs = Math.max(lengthMs, noteTable.getEndTimeMs(i));
+            }
+
+            monitor.onProgress(1f);
+            return new CompiledSong(noteTable, tempoMap, pitchHistogram, np.lowestPitch,
+                    np.highestPitch, np.suggestTranpose, playbackTimesMs, playbackNotes,
+                    playbackCount, lengthMs);
+        }
+    }
+}
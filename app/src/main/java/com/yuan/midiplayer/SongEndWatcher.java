@@ -0,0 +1,81 @@
+package com.yuan.midiplayer;
+
+/**
+ * Tells when the engine has finished the song it is playing, going by what is heard: the
+ * engine's {@link AudioClock} reports the end once the score is over and its last notes have
+ * faded out of the speaker (see {@link AudioClock#isScoreFinished()}). It polls the clock at a
+ * low rate, the end of a song needs no finer timing than that.
+ */
+public class SongEndWatcher {
+    private static final long POLL_MS = 100;
+
+    private final MusicBoxEngine mEngine;
+    private final Runnable mOnFinished;
+    private final Object mLock = new Object();
+
+    private Thread mThread;
+    private boolean mRunning;
+
+    /**
+     * {@code onFinished} runs on the watcher's thread, once per {@link #start()} at most.
+     */
+    public SongEndWatcher(MusicBoxEngine engine, Runnable onFinished) {
+        mEngine = engine;
+        mOnFinished = onFinished;
+    }
+
+    /**
+     * Start watching. Only what the engine renders from now on counts, so the end of an earlier
+     * song still being heard is not taken for the end of this one.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mRunning)
+                return;
+            final long startFrame = mEngine.getFramePosition();
+            mRunning = true;
+            mThread = new Thread(() -> process(startFrame), "SongEndWatcher");
+            mThread.start();
+        }
+    }
+
+    public void stop() {
+        Thread thread;
+        synchronized (mLock) {
+            mRunning = false;
+            mLock.notifyAll();
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void process(long startFrame) {
+        // A reader of its own, the UI thread has the engine's
+        final AudioClock clock = mEngine.newAudioClock();
+
+        synchronized (mLock) {
+            while (true) {
+                if (!mRunning)
+                    return;
+                if (clock != null && clock.update(System.nanoTime())
+                        && clock.getFramePosition() >= startFrame && clock.isScoreFinished())
+                    break;
+                try {
+                    mLock.wait(POLL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            mRunning = false;
+            mThread = null;
+        }
+        mOnFinished.run();
+    }
+}
@@ -0,0 +1,57 @@
+package com.yuan.midiplayer;
+
+/**
+ * Summary of a song kept in the library index, enough for lists and search without parsing the
+ * file again.
+ */
+public final class SongInfo {
+    private final long durationMs;
+    private final int noteCount;
+    private final int lowestPitch;
+    private final int highestPitch;
+    private final int maxPolyphony;
+    private final int suggestedTranspose;
+
+    public SongInfo(long durationMs, int noteCount, int lowestPitch, int highestPitch,
+                    int maxPolyphony, int suggestedTranspose) {
+        this.durationMs = durationMs;
+        this.noteCount = noteCount;
+        this.lowestPitch = lowestPitch;
+        this.highestPitch = highestPitch;
+        this.maxPolyphony = maxPolyphony;
+        this.suggestedTranspose = suggestedTranspose;
+    }
+
+    static SongInfo of(CompiledSong song) {
+        NoteTable notes = song.getNoteTable();
+        return new SongInfo(song.getLengthMs(), notes.size(), song.getLowestPitch(),
+                song.getHighestPitch(), notes.getMaxPolyphony(), song.getSuggestedTranspose());
+    }
+
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    public int getNoteCount() {
+        return noteCount;
+    }
+
+    /**
+     * Lowest and highest pitch played, before transposition. Meaningless for an empty song.
+     */
+    public int getLowestPitch() {
+        return lowestPitch;
+    }
+
+    public int getHighestPitch() {
+        return highestPitch;
+    }
+
+    public int getMaxPolyphony() {
+        return maxPolyphony;
+    }
+
+    public int getSuggestedTranspose() {
+        return suggestedTranspose;
+    }
+}
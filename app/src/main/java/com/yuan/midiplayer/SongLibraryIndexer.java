@@ -0,0 +1,272 @@
+package com.yuan.midiplayer;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps a {@link SongInfo} for every song of the library in a small binary index file. Each song
+ * comes with a signature (e.g. size and modification time); only songs whose signature changed
+ * since the last run are analysed again, in parallel on low priority threads of the indexer's
+ * own, so loading the song being played is not kept waiting behind them. The index file is
+ * rewritten every few songs, work done before the process goes away is not lost.
+ * <p>
+ * Meant to live as long as the application: a screen that shows the index hands its callback
+ * to {@link #index} and takes it back with {@link #detach} when it goes away, indexing goes on.
+ */
+public class SongLibraryIndexer {
+    private static final int MAGIC = 0x4D42494E; // "MBIN"
+    // Bump whenever the record layout changes
+    private static final int FORMAT_VERSION = 2;
+    // Songs analysed between two writes of the index file
+    private static final int WRITE_BATCH = 8;
+
+    /**
+     * A song to index. The id is what the index is keyed by, e.g. an asset path or a URI.
+     */
+    public static final class Entry {
+        final String id;
+        final long signature;
+        final MappedMidiReader.Source source;
+
+        public Entry(String id, long signature, MappedMidiReader.Source source) {
+            this.id = id;
+            this.signature = signature;
+            this.source = source;
+        }
+    }
+
+    public interface Callback {
+        /**
+         * Called on the indexer thread, first with what the index file already knows, then again
+         * once out-of-date songs have been analysed. Songs that could not be analysed are
+         * missing from the map.
+         */
+        void onIndexChanged(Map<String, SongInfo> songs);
+    }
+
+    private final String TAG = com.yuan.music_box.MainActivity.class.toString();
+    private final File mIndexFile;
+    private final SongCompiler mCompiler;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            r -> new Thread(r, "SongLibraryIndexer"));
+    // Half the cores at most, the rest stay free for the player
+    private final ExecutorService mAnalysers = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2), r -> {
+                Thread thread = new Thread(r, "SongLibraryIndexer-analyser");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+    private volatile Callback mCallback;
+    private volatile boolean mReleased;
+
+    private final SongCompiler.Monitor mMonitor = new SongCompiler.Monitor() {
+        @Override
+        public void onProgress(float fraction) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mReleased;
+        }
+    };
+
+    public SongLibraryIndexer(File indexFile, SongCompiler compiler) {
+        mIndexFile = indexFile;
+        mCompiler = compiler;
+    }
+
+    /**
+     * Bring the index up to date with {@code entries} in the background. Songs no longer listed
+     * are dropped from the index. {@code callback} replaces the one given before and hears about
+     * this update and any still running.
+     */
+    public void index(List<Entry> entries, Callback callback) {
+        final List<Entry> snapshot = new ArrayList<>(entries);
+        mCallback = callback;
+        mExecutor.execute(() -> {
+            try {
+                update(snapshot);
+            } catch (CancellationException e) {
+                Log.d(TAG, "Song library indexing cancelled");
+            }
+        });
+    }
+
+    /**
+     * Stop calling {@code callback}, if it is still the current one. Indexing carries on.
+     */
+    public void detach(Callback callback) {
+        if (mCallback == callback)
+            mCallback = null;
+    }
+
+    public void release() {
+        mReleased = true;
+        mCallback = null;
+        mExecutor.shutdownNow();
+        mAnalysers.shutdownNow();
+    }
+
+    private void notifyChanged(Map<String, Record> records) {
+        Callback callback = mCallback;
+        if (callback != null)
+            callback.onIndexChanged(toSongs(records));
+    }
+
+    private void update(List<Entry> entries) {
+        final Map<String, Record> known = readIndex();
+        final Map<String, Record> records = new LinkedHashMap<>();
+        final List<Entry> stale = new ArrayList<>();
+        for (Entry entry : entries) {
+            Record record = known.get(entry.id);
+            if (record != null && record.signature == entry.signature)
+                records.put(entry.id, record);
+            else
+                stale.add(entry);
+        }
+        notifyChanged(records);
+        if (stale.isEmpty() && records.size() == known.size())
+            return;
+
+        List<Future<SongInfo>> tasks = new ArrayList<>(stale.size());
+        for (Entry entry : stale) {
+            tasks.add(mAnalysers.submit(() -> analyse(entry)));
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            Entry entry = stale.get(i);
+            try {
+                if (mReleased)
+                    throw new CancellationException();
+                records.put(entry.id, new Record(entry.signature, tasks.get(i).get()));
+            } catch (CancellationException | InterruptedException e) {
+                // Keep what is already done, the rest is analysed next time
+                for (int j = i; j < tasks.size(); j++) {
+                    tasks.get(j).cancel(true);
+                }
+                writeIndex(ordered(entries, records));
+                throw new CancellationException();
+            } catch (ExecutionException e) {
+                // The song is left out of the index, so it is tried again next time
+                Log.w(TAG, "Failed to index " + entry.id, e.getCause());
+            }
+            if ((i + 1) % WRITE_BATCH == 0 && i + 1 < tasks.size())
+                writeIndex(ordered(entries, records));
+        }
+
+        Map<String, Record> ordered = ordered(entries, records);
+        writeIndex(ordered);
+        notifyChanged(ordered);
+    }
+
+    // Keep the caller's order rather than completion order
+    private static Map<String, Record> ordered(List<Entry> entries, Map<String, Record> records) {
+        Map<String, Record> ordered = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            Record record = records.get(entry.id);
+            if (record != null)
+                ordered.put(entry.id, record);
+        }
+        return ordered;
+    }
+
+    private SongInfo analyse(Entry entry) throws IOException {
+        return SongInfo.of(mCompiler.compile(entry.source.open(), mMonitor, mMonitor));
+    }
+
+    private static Map<String, SongInfo> toSongs(Map<String, Record> records) {
+        Map<String, SongInfo> songs = new LinkedHashMap<>();
+        for (Map.Entry<String, Record> e : records.entrySet()) {
+            songs.put(e.getKey(), e.getValue().info);
+        }
+        return Collections.unmodifiableMap(songs);
+    }
+
+    private Map<String, Record> readIndex() {
+        Map<String, Record> records = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mIndexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                return records;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                long signature = in.readLong();
+                long durationMs = in.readInt() & 0xFFFFFFFFL;
+                int noteCount = in.readInt();
+                int lowestPitch = in.readByte();
+                int highestPitch = in.readByte();
+                int maxPolyphony = in.readShort() & 0xFFFF;
+                int suggestedTranspose = in.readByte();
+                records.put(id, new Record(signature, new SongInfo(durationMs, noteCount,
+                        lowestPitch, highestPitch, maxPolyphony, suggestedTranspose)));
+            }
+        } catch (FileNotFoundException e) {
+            // First run
+        } catch (EOFException e) {
+            Log.w(TAG, "Truncated song index, rebuilding");
+            records.clear();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read song index", e);
+            records.clear();
+        }
+        return records;
+    }
+
+    private void writeIndex(Map<String, Record> records) {
+        File temp = new File(mIndexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(records.size());
+            for (Map.Entry<String, Record> e : records.entrySet()) {
+                SongInfo info = e.getValue().info;
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().signature);
+                out.writeInt((int) Math.min(info.getDurationMs(), 0xFFFFFFFFL));
+                out.writeInt(info.getNoteCount());
+                out.writeByte(info.getLowestPitch());
+                out.writeByte(info.getHighestPitch());
+                out.writeShort(Math.min(info.getMaxPolyphony(), 0xFFFF));
+                out.writeByte(info.getSuggestedTranspose());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write song index", e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(mIndexFile))
+            temp.delete();
+    }
+
+    private static final class Record {
+        final long signature;
+        final SongInfo info;
+
+        Record(long signature, SongInfo info) {
+            this.signature = signature;
+            this.info = info;
+        }
+    }
+}
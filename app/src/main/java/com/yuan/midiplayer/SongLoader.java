@@ -0,0 +1,237 @@
+package com.yuan.midiplayer;
+
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parses and compiles songs on a background thread. Only the most recent request is alive:
+ * starting a new load cancels the one in flight, and a cancelled load never reports a result.
+ */
+public class SongLoader {
+
+    public interface Callback {
+        void onProgress(float progress);
+
+        void onLoaded(CompiledSong song);
+
+        void onFailed(Exception e);
+    }
+
+    // Share of the progress bar given to reading the file, then to reading plus parsing it;
+    // the rest goes to compiling
+    private static final float READ_PROGRESS = 0.1f;
+    private static final float PARSE_PROGRESS = 0.5f;
+    // Smallest progress step worth a callback
+    private static final float PROGRESS_STEP = 0.01f;
+
+    private final String TAG = com.yuan.music_box.MainActivity.class.toString();
+    private final SongCompiler mCompiler;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            r -> new Thread(r, "SongLoader"));
+    private volatile CompiledSongCache mCache;
+    private LoadTask mCurrentTask;
+    private Future<?> mCurrentFuture;
+
+    public SongLoader(SongCompiler compiler) {
+        mCompiler = compiler;
+    }
+
+    /**
+     * Look compiled songs up in {@code cache} before compiling them, and store new ones there.
+     * Null disables caching.
+     */
+    public void setCache(CompiledSongCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Start loading {@code input}, cancelling any load still in progress. The stream is closed
+     * once the load ends, whatever the outcome.
+     */
+    public synchronized void load(InputStream input, Callback callback) {
+        start(new LoadTask(input, null, callback));
+    }
+
+    /**
+     * Start loading from {@code source}, opened on the loader thread; mapped sources are decoded
+     * in place without copying.
+     */
+    public synchronized void load(MappedMidiReader.Source source, Callback callback) {
+        start(new LoadTask(null, source, callback));
+    }
+
+    private void start(LoadTask task) {
+        cancel();
+        mCurrentTask = task;
+        mCurrentFuture = mExecutor.submit(task);
+    }
+
+    public synchronized void cancel() {
+        if (mCurrentTask != null) {
+            mCurrentTask.cancelled = true;
+            mCurrentFuture.cancel(true);
+            mCurrentTask = null;
+            mCurrentFuture = null;
+        }
+    }
+
+    public synchronized void release() {
+        cancel();
+        mExecutor.shutdownNow();
+    }
+
+    private synchronized boolean finish(LoadTask task) {
+        if (mCurrentTask != task)
+            return false;
+        mCurrentTask = null;
+        mCurrentFuture = null;
+        return true;
+    }
+
+    private class LoadTask implements Runnable, SongCompiler.Monitor {
+        // Exactly one of mInput and mSource is set
+        private final InputStream mInput;
+        private final MappedMidiReader.Source mSource;
+        private final Callback mCallback;
+        private float mReported = -1f;
+        volatile boolean cancelled;
+
+        LoadTask(InputStream input, MappedMidiReader.Source source, Callback callback) {
+            mInput = input;
+            mSource = source;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            CompiledSong song = null;
+            Exception error = null;
+            try {
+                ByteBuffer data = open();
+                if (isCancelled())
+                    throw new CancellationException();
+                onProgress(READ_PROGRESS);
+
+                CompiledSongCache cache = mCache;
+                String key = null;
+                if (cache != null) {
+                    key = CompiledSongCache.keyOf(data, mCompiler);
+                    song = cache.get(key);
+                }
+                if (song == null) {
+                    song = compile(data);
+                    if (cache != null)
+                        cache.put(key, song);
+                }
+                onProgress(1f);
+            } catch (CancellationException | InterruptedIOException e) {
+                Log.d(TAG, "Song loading cancelled");
+                return;
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+
+            // A newer request may have superseded this one while it was finishing
+            if (isCancelled() || !finish(this))
+                return;
+            if (song != null)
+                mCallback.onLoaded(song);
+            else
+                mCallback.onFailed(error);
+        }
+
+        private CompiledSong compile(ByteBuffer data) throws IOException {
+            return mCompiler.compile(data, range(READ_PROGRESS, PARSE_PROGRESS),
+                    range(PARSE_PROGRESS, 1f));
+        }
+
+        private ByteBuffer open() throws IOException {
+            if (mSource != null)
+                return mSource.open();
+            try (InputStream in = new ProgressInputStream(mInput, this)) {
+                return MappedMidiReader.readFully(in, in.available());
+            }
+        }
+
+        // Monitor reporting its 0..1 progress into [from, to] of the whole load
+        private SongCompiler.Monitor range(float from, float to) {
+            return new SongCompiler.Monitor() {
+                @Override
+                public void onProgress(float fraction) {
+                    LoadTask.this.onProgress(from + fraction * (to - from));
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return LoadTask.this.isCancelled();
+                }
+            };
+        }
+
+        @Override
+        public void onProgress(float fraction) {
+            if (isCancelled() || (fraction - mReported < PROGRESS_STEP && fraction < 1f))
+                return;
+            mReported = fraction;
+            mCallback.onProgress(fraction);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled || Thread.currentThread().isInterrupted();
+        }
+    }
+
+    /**
+     * Reports read progress from the bytes consumed and aborts the read once cancelled.
+     */
+    private static class ProgressInputStream extends FilterInputStream {
+        private final SongCompiler.Monitor mMonitor;
+        private final long mTotal;
+        private long mConsumed;
+
+        ProgressInputStream(InputStream in, SongCompiler.Monitor monitor) throws IOException {
+            super(in);
+            mMonitor = monitor;
+            mTotal = in.available();
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled();
+            int b = super.read();
+            if (b >= 0)
+                advance(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            int n = super.read(b, off, len);
+            if (n > 0)
+                advance(n);
+            return n;
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if (mMonitor.isCancelled())
+                throw new InterruptedIOException("Song loading cancelled");
+        }
+
+        private void advance(int n) {
+            mConsumed += n;
+            if (mTotal > 0)
+                mMonitor.onProgress(Math.min(1f, (float) mConsumed / mTotal) * READ_PROGRESS);
+        }
+    }
+}
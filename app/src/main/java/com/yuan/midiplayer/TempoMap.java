@@ -0,0 +1,189 @@
+package com.yuan.midiplayer;
+
+import com.customview.graph.PianoRollView;
+import com.pgf.mididroid.MidiFile;
+import com.pgf.mididroid.MidiTrack;
+import com.pgf.mididroid.event.MidiEvent;
+import com.pgf.mididroid.event.meta.Tempo;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tick/time conversion for one {@link MidiFile}. Tempo changes of every track are collected once
+ * into segments that start at a tick and carry the absolute time at that tick, so any conversion
+ * is a binary search plus one multiplication, whatever track order the file uses.
+ */
+public final class TempoMap implements PianoRollView.BeatGrid {
+    private final int ppq;
+    // Segment i starts at segmentTicks[i] / segmentMicros[i] and runs at segmentMpqn[i]
+    private final long[] segmentTicks;
+    private final long[] segmentMicros;
+    private final int[] segmentMpqn;
+
+    public TempoMap(MidiFile midiFile) {
+        this(midiFile.getResolution(), collectTempos(midiFile));
+    }
+
+    public TempoMap(PackedMidiFile midiFile) {
+        this(midiFile.getResolution(), collectTempos(midiFile));
+    }
+
+    /**
+     * @param tempos packed tempo events in tick order; on equal ticks the last one wins
+     */
+    private TempoMap(int ppq, long[] tempos) {
+        this.ppq = ppq;
+
+        long[] ticks = new long[tempos.length + 1];
+        long[] micros = new long[tempos.length + 1];
+        int[] mpqn = new int[tempos.length + 1];
+        ticks[0] = 0;
+        micros[0] = 0;
+        mpqn[0] = Tempo.DEFAULT_MPQN;
+        int count = 1;
+        for (long tempo : tempos) {
+            long tick = PackedMidiEvent.getTick(tempo);
+            int last = count - 1;
+            if (tick == ticks[last]) {
+                mpqn[last] = mpqnOf(tempo);
+                continue;
+            }
+            ticks[count] = tick;
+            micros[count] = micros[last] + (tick - ticks[last]) * mpqn[last] / ppq;
+            mpqn[count] = mpqnOf(tempo);
+            count++;
+        }
+
+        segmentTicks = Arrays.copyOf(ticks, count);
+        segmentMicros = Arrays.copyOf(micros, count);
+        segmentMpqn = Arrays.copyOf(mpqn, count);
+    }
+
+    // A zero tempo would stop the clock, and microsToTick divides by it
+    private static int mpqnOf(long tempo) {
+        return Math.max(1, PackedMidiEvent.getMpqn(tempo));
+    }
+
+    private TempoMap(int ppq, long[] segmentTicks, long[] segmentMicros, int[] segmentMpqn) {
+        this.ppq = ppq;
+        this.segmentTicks = segmentTicks;
+        this.segmentMicros = segmentMicros;
+        this.segmentMpqn = segmentMpqn;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(ppq);
+        CompiledSongCache.writeLongs(out, segmentTicks, segmentTicks.length);
+        CompiledSongCache.writeLongs(out, segmentMicros, segmentMicros.length);
+        CompiledSongCache.writeInts(out, segmentMpqn, segmentMpqn.length);
+    }
+
+    static TempoMap read(ByteBuffer in) {
+        int ppq = in.getInt();
+        long[] ticks = CompiledSongCache.readLongs(in);
+        long[] micros = CompiledSongCache.readLongs(in);
+        int[] mpqn = CompiledSongCache.readInts(in);
+        if (ticks.length == 0 || micros.length != ticks.length || mpqn.length != ticks.length)
+            throw new IllegalArgumentException("Inconsistent tempo map");
+        for (int value : mpqn) {
+            if (value < 1)
+                throw new IllegalArgumentException("Inconsistent tempo map");
+        }
+        return new TempoMap(ppq, ticks, micros, mpqn);
+    }
+
+    private static long[] collectTempos(MidiFile midiFile) {
+        List<Tempo> tempos = new ArrayList<>();
+        for (MidiTrack track : midiFile.getTracks()) {
+            for (MidiEvent event : track.getEvents()) {
+                if (event instanceof Tempo)
+                    tempos.add((Tempo) event);
+            }
+        }
+        // Stable sort: on equal ticks the tempo of the later track wins
+        tempos.sort((a, b) -> Long.compare(a.getTick(), b.getTick()));
+
+        long[] packed = new long[tempos.size()];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = PackedMidiEvent.fromMidiEvent(tempos.get(i));
+        }
+        return packed;
+    }
+
+    private static long[] collectTempos(PackedMidiFile midiFile) {
+        long[] packed = new long[16];
+        int count = 0;
+        PackedMidiFile.Cursor cursor = midiFile.cursor(PackedMidiEvent.MASK_TEMPO);
+        while (cursor.next()) {
+            if (count == packed.length)
+                packed = Arrays.copyOf(packed, count * 2);
+            packed[count++] = cursor.get();
+        }
+        return Arrays.copyOf(packed, count);
+    }
+
+    public int getResolution() {
+        return ppq;
+    }
+
+    public int getSegmentCount() {
+        return segmentTicks.length;
+    }
+
+    /**
+     * Tempo in microseconds per quarter note at {@code tick}.
+     */
+    public int getMpqnAt(long tick) {
+        return segmentMpqn[findSegment(segmentTicks, tick)];
+    }
+
+    public long tickToMicros(long tick) {
+        int i = findSegment(segmentTicks, tick);
+        return segmentMicros[i] + (tick - segmentTicks[i]) * segmentMpqn[i] / ppq;
+    }
+
+    public long microsToTick(long micros) {
+        int i = findSegment(segmentMicros, micros);
+        return segmentTicks[i] + (micros - segmentMicros[i]) * ppq / segmentMpqn[i];
+    }
+
+    public long tickToMs(long tick) {
+        return tickToMicros(tick) / 1000;
+    }
+
+    public long msToTick(long ms) {
+        return microsToTick(ms * 1000);
+    }
+
+    @Override
+    public double getBeatAt(long timeMs) {
+        long micros = timeMs * 1000;
+        int i = findSegment(segmentMicros, micros);
+        double tick = segmentTicks[i] + (double) (micros - segmentMicros[i]) * ppq / segmentMpqn[i];
+        return tick / ppq;
+    }
+
+    @Override
+    public long getBeatTimeMs(long beat) {
+        return tickToMs(beat * ppq);
+    }
+
+    // Index of the last segment starting at or before value, segment 0 for anything earlier
+    private static int findSegment(long[] starts, long value) {
+        int low = 0;
+        int high = starts.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= value)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+}
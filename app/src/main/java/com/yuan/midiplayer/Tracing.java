@@ -0,0 +1,49 @@
+package com.yuan.midiplayer;
+
+import android.os.Trace;
+
+/**
+ * Runtime switch for the trace sections of the app, shown in systrace / Perfetto captures. It
+ * covers the Java sections below as well as the engine's native ones (audio callback, visual
+ * analysis, JNI calls). Off by default; while off a section only costs a volatile read.
+ * <p>
+ * A section has to end on the thread it began on:
+ * <pre>
+ * boolean traced = Tracing.begin("name");
+ * try {
+ *     ...
+ * } finally {
+ *     Tracing.end(traced);
+ * }
+ * </pre>
+ */
+public final class Tracing {
+    private static volatile boolean sEnabled;
+
+    private Tracing() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+        MusicBoxEngine.setTracingEnabled(enabled);
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Begin a section if tracing is on. Returns whether it did, to be passed to {@link #end}.
+     */
+    public static boolean begin(String name) {
+        if (!sEnabled)
+            return false;
+        Trace.beginSection(name);
+        return true;
+    }
+
+    public static void end(boolean begun) {
+        if (begun)
+            Trace.endSection();
+    }
+}
@@ -0,0 +1,126 @@
+package com.yuan.midiplayer;
+
+import com.pgf.mididroid.MidiTrack;
+import com.pgf.mididroid.event.MidiEvent;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks the events of several tracks in global tick order. Every track is already sorted, so a
+ * k-way merge over a small binary heap of track heads is enough; the combined event list is never
+ * built. Events on the same tick come out in track order, then in their order within the track.
+ */
+public class TrackMerger implements Iterator<MidiEvent> {
+    private final List<Iterator<MidiEvent>> mTrackIterators;
+    private final MidiEvent[] mHeads;
+    private final int mEventCount;
+    // Min-heap of track indices, ordered by (tick of the head event, track index)
+    private final long[] mHeapTicks;
+    private final int[] mHeapTracks;
+    private int mHeapSize;
+
+    public TrackMerger(List<MidiTrack> tracks) {
+        final int trackCount = tracks.size();
+        mTrackIterators = new ArrayList<>(trackCount);
+        mHeads = new MidiEvent[trackCount];
+        mHeapTicks = new long[trackCount];
+        mHeapTracks = new int[trackCount];
+
+        int eventCount = 0;
+        for (int i = 0; i < trackCount; i++) {
+            MidiTrack track = tracks.get(i);
+            eventCount += track.getEvents().size();
+            Iterator<MidiEvent> it = track.getEvents().iterator();
+            mTrackIterators.add(it);
+            if (it.hasNext()) {
+                mHeads[i] = it.next();
+                push(mHeads[i].getTick(), i);
+            }
+        }
+        mEventCount = eventCount;
+    }
+
+    /**
+     * Number of events over all tracks, consumed or not.
+     */
+    public int getEventCount() {
+        return mEventCount;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return mHeapSize > 0;
+    }
+
+    @Override
+    public MidiEvent next() {
+        if (mHeapSize == 0)
+            throw new NoSuchElementException();
+
+        final int track = mHeapTracks[0];
+        final MidiEvent event = mHeads[track];
+        final Iterator<MidiEvent> it = mTrackIterators.get(track);
+        if (it.hasNext()) {
+            // Replace the root with the next head of the same track
+            mHeads[track] = it.next();
+            mHeapTicks[0] = mHeads[track].getTick();
+            siftDown(0);
+        } else {
+            mHeads[track] = null;
+            mHeapSize--;
+            if (mHeapSize > 0) {
+                mHeapTicks[0] = mHeapTicks[mHeapSize];
+                mHeapTracks[0] = mHeapTracks[mHeapSize];
+                siftDown(0);
+            }
+        }
+        return event;
+    }
+
+    private boolean less(int a, int b) {
+        if (mHeapTicks[a] != mHeapTicks[b])
+            return mHeapTicks[a] < mHeapTicks[b];
+        return mHeapTracks[a] < mHeapTracks[b];
+    }
+
+    private void swap(int a, int b) {
+        long tick = mHeapTicks[a];
+        mHeapTicks[a] = mHeapTicks[b];
+        mHeapTicks[b] = tick;
+        int track = mHeapTracks[a];
+        mHeapTracks[a] = mHeapTracks[b];
+        mHeapTracks[b] = track;
+    }
+
+    private void push(long tick, int track) {
+        int i = mHeapSize++;
+        mHeapTicks[i] = tick;
+        mHeapTracks[i] = track;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(i, parent))
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= mHeapSize)
+                break;
+            int smallest = left;
+            int right = left + 1;
+            if (right < mHeapSize && less(right, left))
+                smallest = right;
+            if (!less(smallest, i))
+                break;
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+}
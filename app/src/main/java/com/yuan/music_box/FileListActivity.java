@@ -2,6 +2,7 @@ package com.yuan.music_box;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -15,9 +16,16 @@ import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.yuan.midiplayer.MappedMidiReader;
+import com.yuan.midiplayer.SongInfo;
+import com.yuan.midiplayer.SongLibraryIndexer;
+
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /* =========================
  * 文件数据模型
@@ -49,6 +57,8 @@ class FileItemAdapter extends ArrayAdapter<FileItem> {
     private final int resourceId;
     private final List<FileItem> originalList;
     private final List<FileItem> displayList;
+    // 索引器给出的歌曲信息，按文件路径查找
+    private Map<String, SongInfo> songInfos = Collections.emptyMap();
 
     public FileItemAdapter(Context context, int resourceId, List<FileItem> data) {
         super(context, resourceId, new ArrayList<>(data));
@@ -75,9 +85,41 @@ class FileItemAdapter extends ArrayAdapter<FileItem> {
         TextView fileName = view.findViewById(R.id.fileName);
         fileName.setText(getItem(position).getName());
 
+        TextView fileDetail = view.findViewById(R.id.fileDetail);
+        SongInfo info = songInfos.get(getItem(position).getPath());
+        if (info != null) {
+            fileDetail.setText(describe(info));
+            fileDetail.setVisibility(View.VISIBLE);
+        } else {
+            fileDetail.setVisibility(View.GONE);
+        }
+
         return view;
     }
 
+    public void setSongInfos(Map<String, SongInfo> infos) {
+        songInfos = infos;
+        notifyDataSetChanged();
+    }
+
+    private static final String[] NOTE_NAMES =
+            {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
+
+    private static String noteName(int midi) {
+        return NOTE_NAMES[midi % 12] + (midi / 12 - 1);
+    }
+
+    private static String describe(SongInfo info) {
+        long seconds = info.getDurationMs() / 1000;
+        if (info.getNoteCount() == 0)
+            return String.format(Locale.getDefault(), "%d:%02d · 无音符", seconds / 60, seconds % 60);
+        return String.format(Locale.getDefault(),
+                "%d:%02d · %d 个音符 · %s–%s · 最大复音 %d · 建议移调 %+d",
+                seconds / 60, seconds % 60, info.getNoteCount(),
+                noteName(info.getLowestPitch()), noteName(info.getHighestPitch()),
+                info.getMaxPolyphony(), info.getSuggestedTranspose());
+    }
+
     /** 搜索过滤 */
     public void filter(String keyword) {
         displayList.clear();
@@ -102,6 +144,8 @@ class FileItemAdapter extends ArrayAdapter<FileItem> {
 public class FileListActivity extends AppCompatActivity {
 
     private FileItemAdapter adapter;
+    private SongLibraryIndexer indexer;
+    private SongLibraryIndexer.Callback indexCallback;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -134,6 +178,11 @@ public class FileListActivity extends AppCompatActivity {
         );
         listView.setAdapter(adapter);
 
+        // 后台分析所有歌曲，只有变化过的文件才会重新分析；索引器属于整个应用，界面关闭后继续分析
+        indexer = ((MusicBoxApplication) getApplication()).getSongLibraryIndexer();
+        indexCallback = songs -> runOnUiThread(() -> adapter.setSongInfos(songs));
+        indexer.index(buildIndexEntries(fileList), indexCallback);
+
         // 搜索监听
         searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
             @Override
@@ -170,4 +219,27 @@ public class FileListActivity extends AppCompatActivity {
             }
         });
     }
+
+    @Override
+    protected void onDestroy() {
+        indexer.detach(indexCallback);
+        super.onDestroy();
+    }
+
+    private List<SongLibraryIndexer.Entry> buildIndexEntries(List<FileItem> files) {
+        // assets 只会随 APK 更新而变化，用安装包的更新时间作为签名
+        long apkSignature = 0;
+        try {
+            apkSignature = getPackageManager().getPackageInfo(getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            e.printStackTrace();
+        }
+
+        List<SongLibraryIndexer.Entry> entries = new ArrayList<>();
+        for (FileItem item : files) {
+            entries.add(new SongLibraryIndexer.Entry(item.getPath(), apkSignature,
+                    MappedMidiReader.fromAsset(getAssets(), item.getPath())));
+        }
+        return entries;
+    }
 }
@@ -7,11 +7,14 @@ import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageButton;
+import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -21,18 +24,25 @@ import androidx.preference.PreferenceManager;
 import com.customview.graph.AudioMeterView;
 import com.customview.graph.PianoRollView;
 import com.customview.graph.TransposeSliderView;
-import com.customview.graph.VuLevel;
+import com.yuan.midiplayer.BufferSizeStore;
+import com.yuan.midiplayer.CompiledSongCache;
+import com.yuan.midiplayer.MappedMidiReader;
 import com.yuan.midiplayer.MidiPlayer;
 import com.yuan.midiplayer.MidiPlayerEventListener;
+import com.yuan.midiplayer.MusicBoxEngine;
+import com.yuan.midiplayer.NoteTable;
 import com.yuan.midiplayer.Player;
+import com.yuan.midiplayer.TempoMap;
+import com.yuan.midiplayer.Tracing;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.List;
+import java.io.File;
+import java.util.Locale;
 
 
 public class MainActivity extends AppCompatActivity {
+    private static final long SONG_CACHE_MAX_BYTES = 32 * 1024 * 1024;
+    private static final long PERF_OVERLAY_INTERVAL_MS = 500;
+    private static final long SEEK_BAR_INTERVAL_MS = 200;
     private final String TAG = com.yuan.music_box.MainActivity.class.toString();
     private MidiPlayer midiPlayer;
     private String midiFilePath;
@@ -43,6 +53,42 @@ public class MainActivity extends AppCompatActivity {
 
     private TransposeSliderView transposeSlider;
 
+    private TextView tvPerfOverlay;
+
+    private SeekBar seekBar;
+
+    // 拖动进度条期间不跟随播放位置
+    private boolean seekBarTracking;
+
+    private final Handler perfOverlayHandler = new Handler(Looper.getMainLooper());
+
+    // 进度条跟随音频输出的时钟
+    private final Runnable seekBarUpdater = new Runnable() {
+        @Override
+        public void run() {
+            long positionMs = midiPlayer.getPlaybackPositionMs(System.nanoTime());
+            if (!seekBarTracking && positionMs >= 0)
+                seekBar.setProgress((int) positionMs);
+            perfOverlayHandler.postDelayed(this, SEEK_BAR_INTERVAL_MS);
+        }
+    };
+
+    // 调试浮层：定时刷新音频回调的统计
+    private final Runnable perfOverlayUpdater = new Runnable() {
+        @Override
+        public void run() {
+            MusicBoxEngine.CallbackStats stats = midiPlayer.getCallbackStats();
+            tvPerfOverlay.setText(String.format(Locale.US,
+                    "render p50 %.2f ms\np99 %.2f ms  max %.2f ms\nload %.0f%%  xruns %d\n"
+                            + "voices %d/%d  %d frames\nbuffer %d frames",
+                    stats.p50RenderNanos / 1e6, stats.p99RenderNanos / 1e6,
+                    stats.maxRenderNanos / 1e6, stats.cpuLoadPercent, stats.xRunCount,
+                    stats.activeVoices, stats.maxActiveVoices, stats.framesPerCallback,
+                    midiPlayer.mEngine.getBufferSizeInFrames()));
+            perfOverlayHandler.postDelayed(this, PERF_OVERLAY_INTERVAL_MS);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         Log.d(TAG, "onCreate");
@@ -64,8 +110,31 @@ public class MainActivity extends AppCompatActivity {
 
         transposeSlider.setMainColor(getResources().getColor(R.color.colorPrimary));
 
+        tvPerfOverlay = findViewById(R.id.tvPerfOverlay);
+        // 点击浮层清零统计
+        tvPerfOverlay.setOnClickListener(v -> midiPlayer.resetCallbackStats());
+
         final TextView tvPlayStatus = findViewById(R.id.tvPlayStatus);
 
+        seekBar = findViewById(R.id.seekBar);
+        seekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar bar, int progress, boolean fromUser) {
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar bar) {
+                seekBarTracking = true;
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar bar) {
+                seekBarTracking = false;
+                // 卷帘发现时钟跳变后会自己跳过去
+                midiPlayer.seekTo(bar.getProgress());
+            }
+        });
+
         ImageButton btnStop = findViewById(R.id.btnStop);
 
         final TextView tvFileName = findViewById(R.id.tvFileName);
@@ -149,6 +218,8 @@ public class MainActivity extends AppCompatActivity {
         Intent intent = new Intent(MainActivity.this, FileListActivity.class);
         startActivityForResult(intent, 0);//此处的requestCode应与下面结果处理函中调用的requestCode一致
 
+        // 引擎以设备原生采样率打开输出流，必须在创建引擎之前设置
+        setDefaultStreamValues(this);
         midiPlayer = new MidiPlayer(new MidiPlayerEventListener() {
             @Override
             public void onPlayStateChange(Player.PlayerState state) {
@@ -165,13 +236,16 @@ public class MainActivity extends AppCompatActivity {
                                 pianoRollView.startPlayback();
                             case RESUME:
                                 pianoRollView.resumePlayback();
+                                meterView.start();
                                 break;
                             case PAUSE:
                             case PAUSE_BY_OS:
                                 pianoRollView.pausePlayback();
+                                meterView.stop();
                                 break;
                             case STOP:
                                 pianoRollView.stopPlayback();
+                                meterView.stop();
                                 break;
                         }
                     }
@@ -202,37 +276,48 @@ public class MainActivity extends AppCompatActivity {
             }
 
             @Override
-            public void onVisualChangeChange(float[] waveform, float[] spectrum, VuLevel vuLevel) {
+            public void onLoadProgress(float progress) {
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-
-                        meterView.setAudioVisualData(waveform, spectrum, vuLevel);
+                        tvPlayStatus.setText(String.format("LOADING %d%%", (int) (progress * 100)));
                     }
                 });
             }
 
             @Override
-            public void onNoteOn(int note, long ms) {
+            public void onLoadFailed(Exception e) {
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        pianoRollView.setPlaybackTime(ms);
+                        tvPlayStatus.setText("LOAD FAILED");
+                        Toast.makeText(MainActivity.this, e.toString(), Toast.LENGTH_SHORT).show();
                     }
                 });
             }
 
             @Override
-            public void onGetNoteList(List<PianoRollView.NoteEvent> noteList) {
+            public void onGetNoteTable(NoteTable noteTable, TempoMap tempoMap) {
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        pianoRollView.loadNoteEvents(noteList);
+                        pianoRollView.loadNotes(noteTable);
+                        pianoRollView.setBeatGrid(tempoMap);
+                        seekBar.setMax((int) midiPlayer.getSongLengthMs());
+                        seekBar.setProgress(0);
                     }
                 });
             }
 
         });
+        // 卷帘跟随音频输出的时钟，音符落到键盘时正好发声
+        pianoRollView.setPlaybackClock(midiPlayer::getPlaybackPositionMs);
+        // 频谱等数据直接从引擎共享的内存读取，每帧不经过 JNI
+        meterView.setVisualSource(midiPlayer::readVisualData);
+        midiPlayer.setSongCache(new CompiledSongCache(new File(getCacheDir(), "songs"),
+                SONG_CACHE_MAX_BYTES));
+        // 从上次调好的缓冲区大小开始
+        BufferSizeStore.restore(this, midiPlayer.mEngine);
     }
 
     //结果处理函数，当从secondActivity中返回时调用此函数
@@ -245,13 +330,8 @@ public class MainActivity extends AppCompatActivity {
                 midiFilePath = bundle.getString("filePath");
                 TextView tvFileName = findViewById(R.id.tvFileName);
                 tvFileName.setText(midiFilePath);
-                try {
-                    InputStream input = getAssets().open(midiFilePath);
-                    midiPlayer.stop();
-                    midiPlayer.playMidiFile(input);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                midiPlayer.stop();
+                midiPlayer.playMidiFile(MappedMidiReader.fromAsset(getAssets(), midiFilePath));
             }
         } else if (requestCode == 2 && resultCode == RESULT_OK) {
             Bundle bundle = data.getExtras();
@@ -260,13 +340,8 @@ public class MainActivity extends AppCompatActivity {
             Toast.makeText(MainActivity.this, midiFilePath, Toast.LENGTH_SHORT).show();
             TextView tvFileName = findViewById(R.id.tvFileName);
             tvFileName.setText(midiFilePath);
-            try {
-                InputStream inputStream = getContentResolver().openInputStream(uri);
-                midiPlayer.stop();
-                midiPlayer.playMidiFile(inputStream);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
+            midiPlayer.stop();
+            midiPlayer.playMidiFile(MappedMidiReader.fromUri(getContentResolver(), uri));
 
         } else if (requestCode == 3 && resultCode == RESULT_OK) {
             Bundle bundle = data.getExtras();
@@ -287,6 +362,16 @@ public class MainActivity extends AppCompatActivity {
         Log.d(TAG, "onResume");
         super.onResume();
         midiPlayer.returnFromBack();
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplication());
+        if (prefs.getBoolean("prefShowPerfOverlay", false)) {
+            tvPerfOverlay.setVisibility(View.VISIBLE);
+            perfOverlayHandler.post(perfOverlayUpdater);
+        } else {
+            tvPerfOverlay.setVisibility(View.GONE);
+        }
+        Tracing.setEnabled(prefs.getBoolean("prefTracing", false));
+        perfOverlayHandler.post(seekBarUpdater);
     }
 
 
@@ -294,6 +379,9 @@ public class MainActivity extends AppCompatActivity {
     protected void onPause() {
         Log.d(TAG, "onPause");
         super.onPause();
+        perfOverlayHandler.removeCallbacks(perfOverlayUpdater);
+        perfOverlayHandler.removeCallbacks(seekBarUpdater);
+        BufferSizeStore.save(this, midiPlayer.mEngine);
         midiPlayer.goToBack();
     }
 
@@ -330,6 +418,7 @@ public class MainActivity extends AppCompatActivity {
             int defaultSampleRate = Integer.parseInt(sampleRateStr);
             String framesPerBurstStr = myAudioMgr.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER);
             int defaultFramesPerBurst = Integer.parseInt(framesPerBurstStr);
+            MusicBoxEngine.setDefaultStreamValues(defaultSampleRate, defaultFramesPerBurst);
         }
     }
 }
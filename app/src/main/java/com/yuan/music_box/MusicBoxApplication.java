@@ -0,0 +1,25 @@
+package com.yuan.music_box;
+
+import android.app.Application;
+
+import com.yuan.midiplayer.SongCompiler;
+import com.yuan.midiplayer.SongLibraryIndexer;
+
+import java.io.File;
+
+/* =========================
+ * 应用级对象：生命周期跟随进程，不随某个界面销毁
+ * ========================= */
+public class MusicBoxApplication extends Application {
+
+    private SongLibraryIndexer songLibraryIndexer;
+
+    // 曲库索引在选曲界面关闭后继续进行，下次打开时直接可用
+    public synchronized SongLibraryIndexer getSongLibraryIndexer() {
+        if (songLibraryIndexer == null) {
+            songLibraryIndexer = new SongLibraryIndexer(new File(getFilesDir(), "song_index.bin"),
+                    new SongCompiler(60, 60));
+        }
+        return songLibraryIndexer;
+    }
+}
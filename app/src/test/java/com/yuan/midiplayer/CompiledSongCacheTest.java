@@ -0,0 +1,98 @@
+package com.yuan.midiplayer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompiledSongCacheTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final SongCompiler compiler = new SongCompiler(84, 48);
+
+    // Two notes at 120 bpm, then 60 bpm from beat 2
+    private static final byte[] SONG = TestMidi.file(480, TestMidi.track(
+            0x00, 0xFF, 0x51, 0x03, 0x07, 0xA1, 0x20,
+            0x00, 0x90, 60, 100,
+            0x83, 0x60, 0x80, 60, 0,
+            0x00, 0x90, 67, 64,
+            0x83, 0x60, 0xFF, 0x51, 0x03, 0x0F, 0x42, 0x40,
+            0x83, 0x60, 0x80, 67, 0,
+            0x00, 0xFF, 0x2F, 0x00));
+
+    @Test
+    public void songSurvivesAWriteReadRoundTrip() throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(SONG);
+        CompiledSong song = compiler.compile(data, SongCompiler.NO_MONITOR,
+                SongCompiler.NO_MONITOR);
+        String key = CompiledSongCache.keyOf(data, compiler);
+        CompiledSongCache cache = new CompiledSongCache(folder.newFolder("songs"), 1 << 20);
+
+        assertNull(cache.get(key));
+        cache.put(key, song);
+        CompiledSong cached = cache.get(key);
+        assertNotNull(cached);
+
+        NoteTable notes = song.getNoteTable();
+        NoteTable cachedNotes = cached.getNoteTable();
+        assertEquals(2, notes.size());
+        assertEquals(notes.size(), cachedNotes.size());
+        for (int i = 0; i < notes.size(); i++) {
+            assertEquals(notes.getMidiNote(i), cachedNotes.getMidiNote(i));
+            assertEquals(notes.getStartTimeMs(i), cachedNotes.getStartTimeMs(i));
+            assertEquals(notes.getDurationMs(i), cachedNotes.getDurationMs(i));
+            assertEquals(notes.getVelocity(i), cachedNotes.getVelocity(i), 0f);
+        }
+        assertEquals(2000, notes.getEndTimeMs(1));
+
+        TempoMap tempoMap = cached.getTempoMap();
+        assertEquals(480, tempoMap.getResolution());
+        assertEquals(2, tempoMap.getSegmentCount());
+        for (long tick = 0; tick <= 1440; tick += 240) {
+            assertEquals(song.getTempoMap().tickToMs(tick), tempoMap.tickToMs(tick));
+        }
+
+        assertArrayEquals(song.getPitchHistogram(), cached.getPitchHistogram());
+        assertEquals(song.getLowestPitch(), cached.getLowestPitch());
+        assertEquals(song.getHighestPitch(), cached.getHighestPitch());
+        assertEquals(song.getSuggestedTranspose(), cached.getSuggestedTranspose());
+        assertEquals(song.getPlaybackEventCount(), cached.getPlaybackEventCount());
+        for (int i = 0; i < song.getPlaybackEventCount(); i++) {
+            assertEquals(song.getPlaybackTimeMs(i), cached.getPlaybackTimeMs(i));
+            assertEquals(song.getPlaybackNote(i), cached.getPlaybackNote(i));
+        }
+        assertEquals(2000, cached.getLengthMs());
+    }
+
+    @Test
+    public void keyDependsOnTheCompilerSettings() {
+        ByteBuffer data = ByteBuffer.wrap(SONG);
+        assertEquals(CompiledSongCache.keyOf(data, compiler),
+                CompiledSongCache.keyOf(data, new SongCompiler(84, 48)));
+        assertNotEquals(CompiledSongCache.keyOf(data, compiler),
+                CompiledSongCache.keyOf(data, new SongCompiler(96, 48)));
+    }
+
+    @Test
+    public void corruptEntriesAreDropped() throws IOException {
+        File dir = folder.newFolder("songs");
+        CompiledSongCache cache = new CompiledSongCache(dir, 1 << 20);
+        File entry = new File(dir, "0123.song");
+        assertTrue(entry.createNewFile());
+
+        assertNull(cache.get("0123"));
+        assertFalse(entry.exists());
+    }
+}
@@ -0,0 +1,110 @@
+package com.yuan.midiplayer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PackedMidiDecoderTest {
+    private static PackedMidiFile decode(byte[] file) throws IOException {
+        return new PackedMidiDecoder().decode(ByteBuffer.wrap(file), SongCompiler.NO_MONITOR);
+    }
+
+    @Test
+    public void runningStatusReusesTheLastChannelStatus() throws IOException {
+        PackedMidiFile file = decode(TestMidi.file(480, TestMidi.track(
+                0x00, 0x91, 60, 100,
+                0x10, 64, 90,           // NoteOn 64, running status
+                0x10, 60, 0,            // NoteOn 60 velocity 0, running status
+                0x00, 0xFF, 0x2F, 0x00)));
+
+        assertEquals(1, file.getTrackCount());
+        assertEquals(3, file.getTrackEventCount(0));
+        long[] expected = {
+                PackedMidiEvent.pack(0, 0x91, 60, 100),
+                PackedMidiEvent.pack(16, 0x91, 64, 90),
+                PackedMidiEvent.pack(32, 0x91, 60, 0),
+        };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], file.getEvent(0, i));
+        }
+        assertEquals(1, PackedMidiEvent.getChannel(file.getEvent(0, 1)));
+        assertTrue(PackedMidiEvent.isNoteOn(file.getEvent(0, 1)));
+        assertFalse(PackedMidiEvent.isNoteOn(file.getEvent(0, 2)));
+    }
+
+    @Test
+    public void keepsTempoAndSkipsOtherMetaAndSysEx() throws IOException {
+        PackedMidiFile file = decode(TestMidi.file(96, TestMidi.track(
+                0x00, 0xFF, 0x51, 0x03, 0x07, 0xA1, 0x20,   // Tempo 500000
+                0x00, 0xFF, 0x03, 0x03, 'a', 'b', 'c',      // Track name
+                0x00, 0xF0, 0x03, 0x7E, 0x7F, 0xF7,         // SysEx
+                0x60, 0x90, 60, 100,
+                0x60, 0x80, 60, 0,
+                0x60, 0xFF, 0x01, 0x01, 'x',                // Text after the last note
+                0x60, 0xFF, 0x2F, 0x00)));
+
+        assertEquals(96, file.getResolution());
+        assertEquals(3, file.getEventCount());
+        assertEquals(2, file.getEventCount(PackedMidiEvent.MASK_NOTES));
+
+        long tempo = file.getEvent(0, 0);
+        assertTrue(PackedMidiEvent.isTempo(tempo));
+        assertEquals(0, PackedMidiEvent.getTick(tempo));
+        assertEquals(500000, PackedMidiEvent.getMpqn(tempo));
+        assertEquals(PackedMidiEvent.pack(96, 0x90, 60, 100), file.getEvent(0, 1));
+        assertEquals(PackedMidiEvent.pack(192, 0x80, 60, 0), file.getEvent(0, 2));
+        // The skipped text event still ends the file, End of Track does not
+        assertEquals(288, file.getEndTick());
+    }
+
+    @Test(expected = IOException.class)
+    public void runningStatusDoesNotSurviveAMetaEvent() throws IOException {
+        decode(TestMidi.file(480, TestMidi.track(
+                0x00, 0x90, 60, 100,
+                0x00, 0xFF, 0x01, 0x01, 'x',
+                0x10, 60, 0)));
+    }
+
+    @Test
+    public void cursorMergesTracksInTickOrder() throws IOException {
+        PackedMidiFile file = decode(TestMidi.file(480,
+                TestMidi.track(
+                        0x00, 0xFF, 0x51, 0x03, 0x0F, 0x42, 0x40,   // Tempo 1000000
+                        0x20, 0x90, 62, 80,
+                        0x00, 0xFF, 0x2F, 0x00),
+                TestMidi.track(
+                        0x00, 0x90, 60, 80,
+                        0x20, 0x90, 64, 80,
+                        0x00, 0xFF, 0x2F, 0x00)));
+
+        PackedMidiFile.Cursor cursor = file.cursor(PackedMidiEvent.MASK_NOTES);
+        int[] notes = {60, 62, 64};
+        long[] ticks = {0, 32, 32};
+        for (int i = 0; i < notes.length; i++) {
+            assertTrue(cursor.next());
+            assertEquals(ticks[i], cursor.getTick());
+            assertEquals(notes[i], PackedMidiEvent.getNote(cursor.get()));
+        }
+        assertFalse(cursor.next());
+
+        cursor = file.cursor(PackedMidiEvent.MASK_TEMPO);
+        assertTrue(cursor.next());
+        assertEquals(1000000, PackedMidiEvent.getMpqn(cursor.get()));
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void rejectsFilesThatAreNotMidi() {
+        try {
+            decode(new byte[]{'R', 'I', 'F', 'F', 0, 0, 0, 6, 0, 1, 0, 1, 0, 96});
+            fail("Decoded a file without MThd");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.yuan.midiplayer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ScoreEncoderTest {
+    private final SongCompiler compiler = new SongCompiler(84, 48);
+
+    private byte[] encode(byte[] file) throws IOException {
+        CompiledSong song = compiler.compile(ByteBuffer.wrap(file), SongCompiler.NO_MONITOR,
+                SongCompiler.NO_MONITOR);
+        ByteBuffer score = ScoreEncoder.encode(song);
+        byte[] bytes = new byte[score.remaining()];
+        score.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void longDeltasAreRunsOf0xFF() throws IOException {
+        // 60 bpm at 1000 ticks per beat, one MIDI tick per score tick
+        byte[] score = encode(TestMidi.file(1000, TestMidi.track(
+                0x00, 0xFF, 0x51, 0x03, 0x0F, 0x42, 0x40,
+                0x00, 0x90, 60, 100,
+                0x81, 0x7F, 0x90, 62, 100,     // 255 later
+                0x83, 0x7E, 0x90, 64, 100,     // 510 later
+                0x81, 0x7E, 0x90, 65, 100,     // 254 later
+                0x00, 0xFF, 0x2F, 0x00)));
+
+        assertArrayEquals(bytes(
+                0x00, 60 | 0x80,
+                0xFF, 0x00, 62 | 0x80,
+                0xFF, 0xFF, 0x00, 64 | 0x80,
+                0xFE, 65 | 0x80,
+                0x00, 0xFF), score);
+    }
+
+    @Test
+    public void note127NeverClosesAGroup() throws IOException {
+        // 120 bpm at 480 ticks per beat, 500 score ticks per beat
+        byte[] score = encode(TestMidi.file(480, TestMidi.track(
+                0x00, 0x90, 127, 100,
+                0x00, 0x90, 64, 100,
+                0x83, 0x60, 0x90, 127, 90,     // 127 alone, folded an octave down
+                0x83, 0x60, 0x90, 60, 100,
+                0x00, 0xFF, 0x2F, 0x00)));
+
+        assertArrayEquals(bytes(
+                0x00, 127, 64 | 0x80,
+                0xFF, 0xF5, 115 | 0x80,
+                0xFF, 0xF5, 60 | 0x80,
+                0x00, 0xFF), score);
+    }
+
+    @Test
+    public void emptySongIsJustTheEndMarker() throws IOException {
+        byte[] score = encode(TestMidi.file(480, TestMidi.track(
+                0x00, 0xFF, 0x2F, 0x00)));
+
+        assertArrayEquals(bytes(0x00, 0xFF), score);
+    }
+}
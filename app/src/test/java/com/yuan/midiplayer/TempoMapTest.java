@@ -0,0 +1,61 @@
+package com.yuan.midiplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TempoMapTest {
+    private static TempoMap tempoMap(int ppq, long... tempos) {
+        return new TempoMap(new PackedMidiFile(ppq, new long[][]{tempos}, 0));
+    }
+
+    @Test
+    public void defaultTempoWithoutTempoEvents() {
+        TempoMap map = tempoMap(480);
+        assertEquals(1, map.getSegmentCount());
+        assertEquals(500, map.tickToMs(480));
+        assertEquals(960, map.msToTick(1000));
+    }
+
+    @Test
+    public void convertsAcrossTempoChanges() {
+        // 120 bpm, 240 bpm from beat 2, 60 bpm from beat 4
+        TempoMap map = tempoMap(480,
+                PackedMidiEvent.packTempo(0, 500000),
+                PackedMidiEvent.packTempo(960, 250000),
+                PackedMidiEvent.packTempo(1920, 1000000));
+
+        long[] ticks = {0, 480, 960, 1440, 1920, 2400};
+        long[] ms = {0, 500, 1000, 1250, 1500, 2500};
+        for (int i = 0; i < ticks.length; i++) {
+            assertEquals(ms[i], map.tickToMs(ticks[i]));
+            assertEquals(ticks[i], map.msToTick(ms[i]));
+        }
+        assertEquals(500000, map.getMpqnAt(959));
+        assertEquals(250000, map.getMpqnAt(960));
+        assertEquals(1000000, map.getMpqnAt(100000));
+        assertEquals(2.5, map.getBeatAt(1125), 1e-9);
+        assertEquals(1500, map.getBeatTimeMs(4));
+    }
+
+    @Test
+    public void lastTempoOnATickWins() {
+        TempoMap map = tempoMap(480,
+                PackedMidiEvent.packTempo(0, 1000000),
+                PackedMidiEvent.packTempo(0, 250000));
+        assertEquals(1, map.getSegmentCount());
+        assertEquals(250, map.tickToMs(480));
+    }
+
+    @Test
+    public void zeroTempoDoesNotStopTheClock() {
+        TempoMap map = tempoMap(480,
+                PackedMidiEvent.packTempo(0, 500000),
+                PackedMidiEvent.packTempo(480, 0));
+        assertEquals(500, map.tickToMs(480));
+        assertEquals(480, map.msToTick(500));
+        assertEquals(1.0, map.getBeatAt(500), 1e-9);
+        map.msToTick(1000);
+        map.getBeatAt(1000);
+    }
+}
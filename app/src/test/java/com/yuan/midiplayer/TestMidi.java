@@ -0,0 +1,56 @@
+package com.yuan.midiplayer;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Builds small standard MIDI files byte by byte for the tests.
+ */
+final class TestMidi {
+    private TestMidi() {
+    }
+
+    /**
+     * A format 1 file with the given MTrk chunks, see {@link #track}.
+     */
+    static byte[] file(int resolution, byte[]... tracks) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('M');
+        out.write('T');
+        out.write('h');
+        out.write('d');
+        writeInt(out, 6);
+        writeShort(out, 1);
+        writeShort(out, tracks.length);
+        writeShort(out, resolution);
+        for (byte[] track : tracks) {
+            out.write(track, 0, track.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * An MTrk chunk holding {@code events}, raw delta times and messages, written as given.
+     */
+    static byte[] track(int... events) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('M');
+        out.write('T');
+        out.write('r');
+        out.write('k');
+        writeInt(out, events.length);
+        for (int b : events) {
+            out.write(b);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value >>> 16);
+        writeShort(out, value);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}